@@ -0,0 +1,176 @@
+package net.symplifier.lib.state;
+
+import java.util.TreeMap;
+
+/**
+ * An aggregate over a numeric field of the Elements in a list, maintained
+ * incrementally from the old and the new values as the field changes and
+ * as the Elements join and leave the list, instead of going through the
+ * list on every change.
+ *
+ * <p>
+ *   The aggregates over a list field of an Element are registered with
+ *   {@link ElementType#registerAggregate(String, String, String, Function)}
+ *   and published as a Double field of the Element itself. The aggregates
+ *   over a seed list are created with
+ *   {@link State#createAggregate(String, String, String, Function)} and
+ *   informed through {@link State.EventListener#onAggregateChangedEvent(Aggregate)}.
+ * </p>
+ * <p>
+ *   The {@code null} values are left out, as is the case with SQL, so the
+ *   COUNT is the number of Elements with a value.
+ * </p>
+ */
+public final class Aggregate {
+
+  /**
+   * The supported aggregate functions
+   */
+  public enum Function {
+    COUNT,
+    SUM,
+    MIN,
+    MAX,
+    AVG
+  }
+
+  private final String name;
+  private final Function function;
+  /* The index of the aggregated field on the Elements of the list */
+  private final int field;
+  /* The index of the field on the owner Element where the value is
+     published, -1 for a seed list */
+  private final int target;
+
+  private long count;
+  private double sum;
+  /* The values with the number of times they occur, only for MIN and MAX */
+  private final TreeMap<Double, Integer> values;
+  /* The bits of the value last published */
+  private long published = Double.doubleToLongBits(Double.NaN);
+
+  /**
+   * Create an empty aggregate
+   *
+   * @param name The name of the aggregate
+   * @param function The aggregate function
+   * @param field The index of the aggregated field
+   * @param target The index of the field the value is published on, -1 for
+   *               none
+   */
+  Aggregate(String name, Function function, int field, int target) {
+    this.name = name;
+    this.function = function;
+    this.field = field;
+    this.target = target;
+    this.values = function == Function.MIN || function == Function.MAX ? new TreeMap<>() : null;
+  }
+
+  /**
+   * Create an empty aggregate with the same definition as the given one
+   *
+   * @param template The aggregate as registered on the ElementType
+   */
+  Aggregate(Aggregate template) {
+    this(template.name, template.function, template.field, template.target);
+  }
+
+  /**
+   * The name of the aggregate as registered
+   *
+   * @return The name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The aggregate function
+   *
+   * @return {@link Function}
+   */
+  public Function getFunction() {
+    return function;
+  }
+
+  int getField() {
+    return field;
+  }
+
+  int getTarget() {
+    return target;
+  }
+
+  /**
+   * The current value of the aggregate
+   *
+   * @return The value or {@link Double#NaN} for the MIN, MAX and AVG of no
+   *         values
+   */
+  public synchronized double getValue() {
+    switch(function) {
+      case COUNT: return count;
+      case SUM: return sum;
+      case AVG: return count == 0 ? Double.NaN : sum / count;
+      case MIN: return values.isEmpty() ? Double.NaN : values.firstKey();
+      default: return values.isEmpty() ? Double.NaN : values.lastKey();
+    }
+  }
+
+  /**
+   * Add a value that has joined the aggregate
+   *
+   * @param value The value, {@link Double#NaN} for {@code null}
+   */
+  synchronized void add(double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+
+    count += 1;
+    sum += value;
+    if (values != null) {
+      Integer times = values.get(value);
+      values.put(value, times == null ? 1 : times + 1);
+    }
+  }
+
+  /**
+   * Remove a value that has left the aggregate
+   *
+   * @param value The value as it was added, {@link Double#NaN} for {@code null}
+   */
+  synchronized void remove(double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+
+    count -= 1;
+    sum -= value;
+    if (values != null) {
+      Integer times = values.get(value);
+      if (times != null) {
+        if (times == 1) {
+          values.remove(value);
+        } else {
+          values.put(value, times - 1);
+        }
+      }
+    }
+  }
+
+  /**
+   * Check if the value has changed since it was last published, marking it
+   * as published
+   *
+   * @return {@code true} if the value needs to be published
+   */
+  synchronized boolean publish() {
+    long bits = Double.doubleToLongBits(getValue());
+    if (bits == published) {
+      return false;
+    }
+    published = bits;
+    return true;
+  }
+}
@@ -0,0 +1,221 @@
+package net.symplifier.lib.state;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The ChangePublisher hands out the changes of a {@link State}, or of a
+ * filtered subset of it, to the subscribers only as fast as they ask for
+ * them. It follows the shape of {@code java.util.concurrent.Flow} so that a
+ * subscriber can be adapted to it with a few lines, the library itself
+ * stays on Java 8.
+ *
+ * <p>
+ *   The changes a subscriber hasn't asked for yet are conflated per proxy.
+ *   A proxy changing many times before it is delivered is delivered once,
+ *   in the position of its first change, and the subscriber reads the
+ *   latest values from it. The memory held for a slow subscriber is bounded
+ *   by the number of distinct proxies and not by the rate of the changes.
+ *   The changes held back for the higher priority types (see
+ *   {@link ElementType#setPriority(ElementType.Priority)}) are delivered
+ *   before the others.
+ * </p>
+ * <p>
+ *   The changes are delivered on the thread doing the sync, or on the thread
+ *   calling {@link Subscription#request(long)} for the changes held back,
+ *   never on two threads at the same time for the same subscription.
+ * </p>
+ */
+public class ChangePublisher {
+
+  /**
+   * The receiver of the changes, the same as {@code Flow.Subscriber}
+   */
+  public interface Subscriber {
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * Invoked with a proxy that has changed since it was last delivered
+     *
+     * @param proxy The proxy that has changed
+     */
+    void onNext(ElementProxy proxy);
+
+    void onError(Throwable throwable);
+
+    void onComplete();
+  }
+
+  /**
+   * The link between the publisher and a subscriber, the same as
+   * {@code Flow.Subscription}
+   */
+  public interface Subscription {
+    /**
+     * Ask for up to the given number of changes more
+     *
+     * @param n The number of changes, must be positive
+     */
+    void request(long n);
+
+    /**
+     * Stop receiving the changes
+     */
+    void cancel();
+  }
+
+  private final State state;
+  private final Predicate<ElementProxy> filter;
+
+  /**
+   * Create a publisher of the changes of the given State that pass the
+   * filter, use {@link State#publish(Predicate)}
+   *
+   * @param state The State
+   * @param filter The filter on the changed proxies
+   */
+  ChangePublisher(State state, Predicate<ElementProxy> filter) {
+    this.state = state;
+    this.filter = filter;
+  }
+
+  /**
+   * Subscribe for the changes from now on. The subscriber doesn't receive
+   * anything until it asks with {@link Subscription#request(long)}.
+   *
+   * @param subscriber The subscriber
+   */
+  public void subscribe(Subscriber subscriber) {
+    ChangeSubscription subscription = new ChangeSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+    subscription.listen();
+  }
+
+  /**
+   * The subscription of a single subscriber, listening on the State
+   */
+  private class ChangeSubscription implements Subscription, State.EventListener {
+    private final Subscriber subscriber;
+
+    /* The state of the subscription, guarded by the subscription. The
+       proxies held back by the priority of their types. */
+    private final List<LinkedHashSet<ElementProxy>> pending = new ArrayList<>();
+    private int pendingCount;
+    private long demand;
+    private boolean emitting;
+    private boolean cancelled;
+
+    ChangeSubscription(Subscriber subscriber) {
+      this.subscriber = subscriber;
+      for(int i=0; i<ElementType.Priority.values().length; ++i) {
+        pending.add(new LinkedHashSet<>());
+      }
+    }
+
+    // Start listening unless cancelled already within onSubscribe
+    private void listen() {
+      synchronized (this) {
+        if (!cancelled) {
+          state.addEventListener(this);
+        }
+      }
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        cancel();
+        subscriber.onError(new IllegalArgumentException("Non positive request " + n));
+        return;
+      }
+
+      synchronized (this) {
+        // Capped, a demand of Long.MAX_VALUE is unbounded
+        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+      }
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (this) {
+        cancelled = true;
+        for(LinkedHashSet<ElementProxy> proxies:pending) {
+          proxies.clear();
+        }
+        pendingCount = 0;
+      }
+      state.removeEventListener(this);
+    }
+
+    @Override
+    public void onChangedEvent(ElementProxy proxy) {
+      if (!filter.test(proxy)) {
+        return;
+      }
+
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        if (pending.get(proxy.getType().getPriority().ordinal()).add(proxy)) {
+          pendingCount += 1;
+        }
+      }
+      drain();
+    }
+
+    // The first proxy held back of the highest priority
+    private ElementProxy poll() {
+      for(LinkedHashSet<ElementProxy> proxies:pending) {
+        if (!proxies.isEmpty()) {
+          Iterator<ElementProxy> it = proxies.iterator();
+          ElementProxy proxy = it.next();
+          it.remove();
+          pendingCount -= 1;
+          return proxy;
+        }
+      }
+      return null;
+    }
+
+    // Deliver as many as asked for, a thread finding another one already
+    // delivering leaves its changes to it
+    private void drain() {
+      synchronized (this) {
+        if (emitting) {
+          return;
+        }
+        emitting = true;
+      }
+
+      while(true) {
+        ElementProxy next;
+        synchronized (this) {
+          if (cancelled || demand == 0 || pendingCount == 0) {
+            emitting = false;
+            return;
+          }
+
+          next = poll();
+          if (demand != Long.MAX_VALUE) {
+            demand -= 1;
+          }
+        }
+
+        try {
+          subscriber.onNext(next);
+        } catch(RuntimeException e) {
+          // The subscriber is not expected to throw, it is not given
+          // anything more
+          cancel();
+          subscriber.onError(e);
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package net.symplifier.lib.state;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Conflator holds back the change events of the proxies whose
+ * {@link ElementType} has a conflation window (see
+ * {@link ElementType#setConflationWindow(long, TimeUnit)}).
+ *
+ * <p>
+ *   The first change of a proxy puts it in the dirty set and on a timing
+ *   wheel at the end of the window. All the changes until then only update
+ *   the values, and the States are informed once when the window is over,
+ *   by which time the proxy has the latest values. A single thread serves
+ *   all the proxies, there is no timer per proxy.
+ * </p>
+ */
+final class Conflator {
+
+  static final Conflator INSTANCE = new Conflator();
+
+  /* The resolution of the wheel */
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  /* The number of slots on the wheel */
+  private static final int WHEEL_SIZE = 1024;
+
+  private final List<List<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+  /* The number of proxies currently held back */
+  private int pending;
+  private int cursor;
+
+  private final Thread thread;
+
+  private Conflator() {
+    for(int i=0; i<WHEEL_SIZE; ++i) {
+      wheel.add(new ArrayList<>());
+    }
+
+    thread = new Thread(this::run, "state-conflator");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Hold back the change event of the given proxy till the end of the
+   * conflation window of its type. Nothing is done if the proxy is already
+   * being held back.
+   *
+   * @param proxy The proxy that has changed
+   */
+  void changed(ElementProxy proxy) {
+    boolean wake;
+    synchronized (this) {
+      if (proxy.isConflating()) {
+        return;
+      }
+      proxy.setConflating(true);
+
+      long ticks = Math.max(1, proxy.getType().getConflationWindow() / TICK_NANOS);
+      Entry entry = new Entry(proxy, (int)((ticks - 1) / WHEEL_SIZE));
+      wheel.get((int)((cursor + ticks) % WHEEL_SIZE)).add(entry);
+
+      wake = pending == 0;
+      pending += 1;
+    }
+
+    if (wake) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void run() {
+    long next = System.nanoTime();
+    List<ElementProxy> due = new ArrayList<>();
+    while(true) {
+      synchronized (this) {
+        if (pending > 0) {
+          cursor = (cursor + 1) % WHEEL_SIZE;
+          Iterator<Entry> it = wheel.get(cursor).iterator();
+          while(it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.rounds > 0) {
+              entry.rounds -= 1;
+            } else {
+              it.remove();
+              // Clear the flag before the event, a change made while the
+              // listeners are running starts a new window
+              entry.proxy.setConflating(false);
+              due.add(entry.proxy);
+              pending -= 1;
+            }
+          }
+        }
+      }
+
+      for(ElementProxy proxy:due) {
+        try {
+          proxy.syncStates();
+        } catch(RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+      due.clear();
+
+      boolean idle;
+      synchronized (this) {
+        idle = pending == 0;
+      }
+
+      if (idle) {
+        // Nothing to do until the next change, the cursor stays where it is
+        LockSupport.park(this);
+        next = System.nanoTime();
+      } else {
+        next += TICK_NANOS;
+        long delay = next - System.nanoTime();
+        if (delay > 0) {
+          LockSupport.parkNanos(this, delay);
+        }
+      }
+    }
+  }
+
+  /**
+   * A proxy on the wheel
+   */
+  private static class Entry {
+    private final ElementProxy proxy;
+    /* The number of revolutions left before the entry is due */
+    private int rounds;
+
+    Entry(ElementProxy proxy, int rounds) {
+      this.proxy = proxy;
+      this.rounds = rounds;
+    }
+  }
+}
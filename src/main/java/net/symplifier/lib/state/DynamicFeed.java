@@ -0,0 +1,147 @@
+package net.symplifier.lib.state;
+
+/**
+ * Pushes the values of the elements of a type directly into their proxies,
+ * by the id of the element and the index of the field. Meant for the types
+ * defined at runtime with {@link State#defineElementType(String,
+ * java.util.function.Consumer)}, where a high volume feed would otherwise
+ * need a wrapper Element for every record just to call
+ * {@link State.Element#sync()}.
+ *
+ * <pre>
+ *   DynamicFeed feed = new DynamicFeed(sensor);
+ *   feed.begin(id).set(value, reading).commit();
+ * </pre>
+ *
+ * <p>
+ *   The changes pushed between {@link #begin(long)} and {@link #commit()}
+ *   are informed to the States as a single change of the element. A feed is
+ *   meant for a single thread, and all the values of an element must be
+ *   pushed from the same thread, the same as with the syncs.
+ * </p>
+ */
+public class DynamicFeed {
+
+  private final ElementType type;
+
+  /* The proxy of the element being pushed, null outside begin and commit */
+  private ElementProxy proxy;
+  private boolean changed;
+
+  /**
+   * Create a feed for the given type
+   *
+   * @param type The type of the elements
+   */
+  public DynamicFeed(ElementType type) {
+    this.type = type;
+  }
+
+  /**
+   * The type of the elements of this feed
+   *
+   * @return {@link ElementType}
+   */
+  public ElementType getType() {
+    return type;
+  }
+
+  /**
+   * Start pushing the values of the element with the given id. The proxy is
+   * created if it doesn't exist yet, it is informed to the States once it is
+   * added to a list with {@link ElementList#addById(Long)}.
+   *
+   * @param id The id of the element
+   * @return This feed
+   */
+  public DynamicFeed begin(long id) {
+    assert(proxy == null):"The previous element was not committed";
+    proxy = type.findOrCreateProxy(id);
+    changed = false;
+    return this;
+  }
+
+  /**
+   * Push the value of a Byte, Short, Integer, Long or Date (as epoch millis)
+   * field
+   *
+   * @param field The index of the field
+   * @param value The value
+   * @return This feed
+   */
+  public DynamicFeed set(int field, long value) {
+    changed |= proxy.apply(field, value);
+    return this;
+  }
+
+  /**
+   * Push the value of a Float or Double field, a value within the dead-band
+   * of the field is not taken
+   *
+   * @param field The index of the field
+   * @param value The value
+   * @return This feed
+   */
+  public DynamicFeed set(int field, double value) {
+    changed |= proxy.apply(field, value);
+    return this;
+  }
+
+  /**
+   * Push the value of any other field, or a {@code null}. A Date field
+   * takes its epoch millis as a {@link Long}.
+   *
+   * @param field The index of the field
+   * @param value The value
+   * @return This feed
+   */
+  public DynamicFeed set(int field, Object value) {
+    ValueKind kind = type.getFieldKind(field);
+    assert(!kind.isReference()):"Use setReference or setList for " + type.getValueName(field);
+    assert(value == null || type.getValueType(field).isValid(value)
+            || kind == ValueKind.DATE && value instanceof Long):"The value provided for "
+            + type.getValueName(field) + " doesn't match the registered type for " + type;
+
+    changed |= proxy.apply(field, value);
+    return this;
+  }
+
+  /**
+   * Push the reference to another element by its id
+   *
+   * @param field The index of the reference field
+   * @param id The id of the referenced element, {@code null} for none
+   * @return This feed
+   */
+  public DynamicFeed setReference(int field, Long id) {
+    changed |= proxy.applyReference(field, id);
+    return this;
+  }
+
+  /**
+   * Push the content of a list by the ids of its elements
+   *
+   * @param field The index of the list field
+   * @param ids The ids of the elements in order
+   * @return This feed
+   */
+  public DynamicFeed setList(int field, long[] ids) {
+    changed |= proxy.applyList(field, ids);
+    return this;
+  }
+
+  /**
+   * Let the States know about the element if any of its values has changed
+   *
+   * @return {@code true} if the element was changed
+   */
+  public boolean commit() {
+    ElementProxy committed = proxy;
+    proxy = null;
+    if (changed) {
+      committed.markChanged();
+      committed.fireChanged();
+    }
+    return changed;
+  }
+}
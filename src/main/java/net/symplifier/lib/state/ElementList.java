@@ -54,6 +54,52 @@ public class ElementList<T extends State.Element> implements List<T> {
     return linkedProxy.getType();
   }
 
+  /**
+   * The proxies of the elements in this list. On a {@link StateFollower} the
+   * seed lists are only maintained through their proxies, so this is the way
+   * to get to the ids of the list irrespective of where the State lives.
+   *
+   * @return The proxies in the same order as the list
+   */
+  public Iterable<ElementProxy> getProxies() {
+    return linkedProxy.getElements();
+  }
+
+  /**
+   * Open a window over a range of this list, for a client that only needs
+   * a page of a long list. See {@link ListWindow}.
+   *
+   * @param offset The position of the first element of the window
+   * @param limit The size of the window
+   * @param listener The listener for the content of the window
+   * @return The window, to be closed when no longer needed
+   */
+  public ListWindow openWindow(int offset, int limit, ListWindow.Listener listener) {
+    return linkedProxy.openWindow(offset, limit, listener);
+  }
+
+  /**
+   * Add the element with the given id at the end of the list, through its
+   * proxy alone. Meant for the lists of the types defined at runtime, whose
+   * elements exist only as proxies fed by a {@link DynamicFeed}. The list
+   * itself doesn't hold such elements, use {@link #getProxies()} to go
+   * through them.
+   *
+   * @param id The id of the element
+   */
+  public void addById(Long id) {
+    linkedProxy.add(id);
+  }
+
+  /**
+   * Remove the element with the given id added with {@link #addById(Long)}
+   *
+   * @param id The id of the element
+   */
+  public void removeById(Long id) {
+    linkedProxy.remove(id);
+  }
+
   @Override
   public boolean add(T element) {
     if (linkedProxy != null) {
@@ -1,22 +1,38 @@
 package net.symplifier.lib.state;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
 
 /**
  * Created by ranjan on 11/16/15.
  */
 public class ElementListProxy implements ElementProxyOwner {
 
-  private final List<ElementProxy> children = new ArrayList<>();
+  private final PositionTree children = new PositionTree();
   private final Class<? extends State.Element> entityClass;
   private final ElementType type;
   private final Set<ElementProxyOwner> owner;
+  /* The owner of this list, a State when this is a seed list */
+  private final ElementProxyOwner parent;
+  /* The aggregates maintained over the elements of this list, replaced as a
+     whole under this list */
+  private volatile Aggregate[] aggregates = new Aggregate[0];
+  /* The windows open on this list */
+  private final List<ListWindow> windows = new CopyOnWriteArrayList<>();
+  /* The bytes charged to the State for each entry of a seed list, along
+     with the number of times the entry is in the list, guarded by the map.
+     Null for the other lists. */
+  private final Map<ElementProxy, long[]> charges;
 
   public ElementListProxy(ElementProxyOwner owner, ElementType type) {
     this.owner = Collections.singleton(owner);
+    this.parent = owner;
 
     this.type = type;
     entityClass = type.getElementClass();
+    charges = owner.isState() == null ? null : new IdentityHashMap<>();
+    type.account(Footprint.LIST);
   }
 
   public Iterable<ElementProxy> getElements() {
@@ -31,19 +47,167 @@ public class ElementListProxy implements ElementProxyOwner {
     return type;
   }
 
+  /**
+   * The owner of this list, the State for a seed list otherwise the proxy
+   * of the Element having the list
+   *
+   * @return The owner
+   */
+  ElementProxyOwner getParent() {
+    return parent;
+  }
+
+  /**
+   * Let go of the elements of this list, as the proxy owning it is being
+   * released by the {@link ProxyCollector}. The elements that are condemned
+   * as well are left as they are, since they go away along with it.
+   */
+  void release() {
+    synchronized (this) {
+      for(ElementProxy proxy:children) {
+        if (!proxy.isCondemned()) {
+          proxy.removeOwner(this);
+        }
+      }
+
+      type.account(-getFootprint());
+      children.clear();
+    }
+    windows.clear();
+  }
+
+  /**
+   * The approximate bytes retained by this list, not including the proxies
+   *
+   * @return The bytes
+   */
+  long getFootprint() {
+    return Footprint.LIST + (long) children.size() * Footprint.LIST_NODE;
+  }
+
+  /**
+   * Retrieve the proxy at the given position
+   *
+   * @param index The position in the list
+   * @return The proxy
+   */
+  synchronized ElementProxy get(int index) {
+    return children.get(index);
+  }
+
+  /**
+   * Retrieve the proxies within the given range, the range may go beyond
+   * the end of the list
+   *
+   * @param offset The position of the first proxy
+   * @param limit The maximum number of proxies
+   * @return The proxies in order
+   */
+  synchronized List<ElementProxy> getRange(int offset, int limit) {
+    // A window may be as large as the list could ever be
+    int available = Math.max(0, children.size() - offset);
+    return ListWindow.collect(children.iterator(offset), Math.min(limit, available));
+  }
+
+  /**
+   * Open a window over the given range of this list
+   *
+   * @param offset The position of the first element of the window
+   * @param limit The size of the window
+   * @param listener The listener for the changes within the window
+   * @return The window
+   */
+  ListWindow openWindow(int offset, int limit, ListWindow.Listener listener) {
+    ListWindow window = new ListWindow(this, offset, limit, listener);
+    windows.add(window);
+    window.reset();
+    return window;
+  }
+
+  void closeWindow(ListWindow window) {
+    windows.remove(window);
+  }
+
+  /**
+   * Push the elements of this list not visited yet on to the stack of a
+   * traversal. Done under this list, so that the traversals on the other
+   * threads don't run into the changes of the list.
+   *
+   * @param visited The proxies visited so far, the pushed ones are added
+   * @param stack The stack of the traversal
+   */
+  synchronized void pushElements(ProxyBitmap visited, Deque<ElementProxy> stack) {
+    for(ElementProxy proxy:children) {
+      if (visited.add(proxy)) {
+        stack.push(proxy);
+      }
+    }
+  }
+
+  /**
+   * Claim the elements of this list not visited yet, for the traversals
+   * sharing the visited proxies among many threads
+   *
+   * @param visited The proxies visited so far, the claimed ones are added
+   * @param claimed Where the claimed proxies are collected
+   */
+  synchronized void claimElements(Set<ElementProxy> visited, Collection<ElementProxy> claimed) {
+    for(ElementProxy proxy:children) {
+      if (visited.add(proxy)) {
+        claimed.add(proxy);
+      }
+    }
+  }
+
   public void add(State.Element element) {
     assert(element.getClass() == entityClass);
-    children.add(type.createProxy(this, element));
+    ElementProxy proxy = admit(element);
+    inserted(append(proxy));
+    fireListChanged();
+  }
+
+  /**
+   * Add the element with the given id, when the element itself is not
+   * available
+   *
+   * @param id The id of the element
+   */
+  void add(Long id) {
+    ElementProxy proxy = admit(id, () -> type.createProxy(this, id));
+    inserted(append(proxy));
+    fireListChanged();
+  }
+
+  /**
+   * Insert the element with the given id at the given position, when the
+   * element itself is not available
+   *
+   * @param index The position
+   * @param id The id of the element
+   */
+  void add(int index, Long id) {
+    ElementProxy proxy = admit(id, () -> type.createProxy(this, id));
+    insert(index, proxy);
+    inserted(index);
+    fireListChanged();
   }
 
   public ElementProxy set(int index, State.Element element) {
     assert(element.getClass() == entityClass);
-    ElementProxy previous = children.get(index);
+    ElementProxy previous = get(index);
     if (!previous.getId().equals(element.getId())) {
       // only need to process if the element was actually different
+      ElementProxy proxy = admit(element);
+      synchronized (this) {
+        previous = children.set(index, proxy);
+        detached(previous);
+        attached(proxy);
+      }
       previous.removeOwner(this);
-      ElementProxy proxy = type.createProxy(this, element);
-      children.set(index, proxy);
+      for(ListWindow window:windows) {
+        window.replaced(index);
+      }
+      fireListChanged();
       return previous;
     }
 
@@ -52,33 +216,248 @@ public class ElementListProxy implements ElementProxyOwner {
 
   public void add(int index, State.Element element) {
     assert(element.getClass() == entityClass);
-    ElementProxy proxy = type.createProxy(this, element);
-    children.add(index, proxy);
+    ElementProxy proxy = admit(element);
+    insert(index, proxy);
+    inserted(index);
+    fireListChanged();
   }
 
   public ElementProxy remove(int index) {
-    ElementProxy proxy = children.remove(index);
+    ElementProxy proxy;
+    synchronized (this) {
+      proxy = children.remove(index);
+      detached(proxy);
+    }
     proxy.removeOwner(this);
+    removed(index);
+    fireListChanged();
     return proxy;
   }
 
   public void remove(State.Element element) {
-    ElementProxy proxy = type.findProxy(element);
+    remove(type.findProxy(element));
+  }
+
+  /**
+   * Remove the first occurrence of the element with the given id
+   *
+   * @param id The id of the element
+   */
+  void remove(Long id) {
+    remove(type.findProxy(id));
+  }
+
+  private void remove(ElementProxy proxy) {
     assert(proxy != null):"Trying to remove an element which was never registered";
-    assert(children.contains(proxy)):"Trying to remove an element from a list " +
-            "without adding. We are doing reference counting, where this is " +
-            "quite sensitive";
+    int index;
+    synchronized (this) {
+      index = children.indexOf(proxy);
+      assert(index >= 0):"Trying to remove an element from a list " +
+              "without adding. We are doing reference counting, where this is " +
+              "quite sensitive";
 
-    children.remove(proxy);
+      children.remove(index);
+      detached(proxy);
+    }
     proxy.removeOwner(this);
+    removed(index);
+    fireListChanged();
   }
 
   void clear() {
-    Iterator<ElementProxy> it = children.iterator();
-    while(it.hasNext()) {
-      ElementProxy proxy = it.next();
+    synchronized (this) {
+      for(ElementProxy proxy:children) {
+        proxy.removeOwner(this);
+        detached(proxy);
+      }
+      children.clear();
+    }
+
+    for(ListWindow window:windows) {
+      window.reset();
+    }
+    fireListChanged();
+  }
+
+  /**
+   * Add an aggregate to be maintained over the elements of this list, taking
+   * in the elements already in the list
+   *
+   * @param aggregate The empty aggregate
+   */
+  void addAggregate(Aggregate aggregate) {
+    // Folded and published under this list, like the changes of the values
+    // coming from the threads syncing the elements
+    synchronized (this) {
+      for(ElementProxy proxy:children) {
+        aggregate.add(proxy.getNumber(aggregate.getField()));
+      }
+
+      Aggregate[] updated = Arrays.copyOf(aggregates, aggregates.length + 1);
+      updated[aggregates.length] = aggregate;
+      aggregates = updated;
+      publishAggregates();
+    }
+  }
+
+  /**
+   * Update the aggregates over the given field of the elements with the
+   * changed value of one of the elements
+   *
+   * @param field The index of the field on the element
+   * @param previous The previous value, {@link Double#NaN} for {@code null}
+   * @param value The new value, {@link Double#NaN} for {@code null}
+   * @param occurrences The number of times the element is in this list
+   */
+  void valueChanged(int field, double previous, double value, int occurrences) {
+    // Called on the thread syncing the element, guarded by this list against
+    // the others syncing its other elements
+    synchronized (this) {
+      boolean affected = false;
+      for(Aggregate aggregate:aggregates) {
+        if (aggregate.getField() == field) {
+          for(int i=0; i<occurrences; ++i) {
+            aggregate.remove(previous);
+            aggregate.add(value);
+          }
+          affected = true;
+        }
+      }
+
+      if (affected) {
+        publishAggregates();
+      }
+    }
+  }
+
+  // Create the proxy of an element joining the list. A seed list lets its
+  // State check the memory limits against all that the element pulls in.
+  private ElementProxy admit(State.Element element) {
+    return admit(element.getId(), () -> type.createProxy(this, element));
+  }
+
+  private ElementProxy admit(Long id, Supplier<ElementProxy> creator) {
+    State state = parent.isState();
+    if (state == null) {
+      return creator.get();
+    }
+
+    // A new entry pulls in exactly what is created for it on this thread. An
+    // entry that is already there, possibly retained by another State, is
+    // charged with everything it reaches.
+    boolean shared = type.findProxy(id) != null;
+    long before = Footprint.accounted();
+    ElementProxy proxy = creator.get();
+    long growth = shared ? State.measure(proxy) : Footprint.accounted() - before;
+    try {
+      state.admit(growth, shared);
+    } catch(MemoryLimitExceededException e) {
       proxy.removeOwner(this);
-      it.remove();
+      throw e;
+    }
+
+    synchronized (charges) {
+      long[] charge = charges.computeIfAbsent(proxy, k -> new long[2]);
+      charge[0] += growth;
+      charge[1] += 1;
+    }
+    return proxy;
+  }
+
+  // An entry has left a seed list, give back its share of the bytes charged
+  private void discharge(ElementProxy proxy) {
+    long bytes;
+    synchronized (charges) {
+      long[] charge = charges.get(proxy);
+      if (charge == null) {
+        return;
+      }
+
+      bytes = charge[0] / charge[1];
+      charge[0] -= bytes;
+      charge[1] -= 1;
+      if (charge[1] == 0) {
+        charges.remove(proxy);
+      }
+    }
+    parent.isState().discharge(bytes);
+  }
+
+  // An element has been inserted at the given position
+  private void inserted(int index) {
+    for(ListWindow window:windows) {
+      window.inserted(index);
+    }
+  }
+
+  // An element has been removed from the given position
+  private void removed(int index) {
+    for(ListWindow window:windows) {
+      window.removed(index);
+    }
+  }
+
+  // Add the proxy at the end, returning its position
+  private synchronized int append(ElementProxy proxy) {
+    children.add(proxy);
+    attached(proxy);
+    return children.size() - 1;
+  }
+
+  // Insert the proxy at the given position
+  private synchronized void insert(int index, ElementProxy proxy) {
+    children.add(index, proxy);
+    attached(proxy);
+  }
+
+  // An element has joined the list, called under this list
+  private void attached(ElementProxy proxy) {
+    type.account(Footprint.LIST_NODE);
+    for(Aggregate aggregate:aggregates) {
+      aggregate.add(proxy.getNumber(aggregate.getField()));
+    }
+  }
+
+  // An element has left the list, called under this list
+  private void detached(ElementProxy proxy) {
+    type.account(-Footprint.LIST_NODE);
+    if (charges != null) {
+      discharge(proxy);
+    }
+    for(Aggregate aggregate:aggregates) {
+      aggregate.remove(proxy.getNumber(aggregate.getField()));
+    }
+  }
+
+  // Publish the aggregates whose values have changed on the owner. Guarded by
+  // this list, so that a value read by one thread is never published after
+  // a later one read by another.
+  private synchronized void publishAggregates() {
+    for(Aggregate aggregate:aggregates) {
+      if (aggregate.publish()) {
+        State state = parent.isState();
+        if (state != null) {
+          state.fireAggregateListeners(aggregate);
+        } else if (parent instanceof ElementProxy) {
+          ((ElementProxy) parent).setAggregate(aggregate.getTarget(), aggregate.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Seed lists don't belong to any Element, so the State is informed
+   * directly whenever they are changed. A list on an Element changed directly
+   * through an {@link ElementList} changes the Element itself.
+   */
+  private void fireListChanged() {
+    publishAggregates();
+
+    State state = parent.isState();
+    if (state != null) {
+      state.fireListChangedListeners(this);
+    } else if (parent instanceof ElementProxy) {
+      ((ElementProxy) parent).markChanged();
     }
   }
 
@@ -91,6 +470,13 @@ public class ElementListProxy implements ElementProxyOwner {
    * @return true if the children was changed due to update
    */
   boolean update(Collection<? extends State.Element> elements) {
+    // Most of the time the list hasn't changed at all, which is found out
+    // without creating any iterator
+    if (elements instanceof List && elements instanceof RandomAccess
+            && children.matches((List<? extends State.Element>) elements)) {
+      return false;
+    }
+
     // Find out the difference between the two list, removing and adding to
     // the target (children) to maintain the list to look like the source(elements)
     boolean changed = false;
@@ -99,6 +485,7 @@ public class ElementListProxy implements ElementProxyOwner {
     Iterator<? extends State.Element> source = elements.iterator();
 
     State.Element srcElement = source.hasNext() ? source.next() : null;
+    int index = 0;
     while(it.hasNext()) {
       ElementProxy proxy = it.next();
 
@@ -106,19 +493,69 @@ public class ElementListProxy implements ElementProxyOwner {
       if (srcElement == null || !proxy.getId().equals(srcElement.getId())) {
         changed = true;
         proxy.removeOwner(this);
+        detached(proxy);
         it.remove();
+        removed(index);
       } else {
         // matching elements, we move to the next element
         srcElement = source.hasNext() ? source.next() : null;
+        index += 1;
       }
     }
 
     while(srcElement != null) {
       changed = true;
-      children.add(type.createProxy(this, srcElement));
+      ElementProxy proxy = type.createProxy(this, srcElement);
+      children.add(proxy);
+      attached(proxy);
+      inserted(children.size() - 1);
       srcElement = source.hasNext() ? source.next() : null;
     }
 
+    if (changed) {
+      publishAggregates();
+    }
+    return changed;
+  }
+
+  /**
+   * Update the list with the elements identified by the given ids, using the
+   * same optimization logic as {@link #update(Collection)}. Used by
+   * {@link StateFollower} where the elements themselves are not available.
+   *
+   * @param ids The ids of the elements that the list should contain
+   * @return true if the children was changed due to update
+   */
+  boolean apply(long[] ids) {
+    boolean changed = false;
+
+    Iterator<ElementProxy> it = children.iterator();
+    int src = 0;
+    while(it.hasNext()) {
+      ElementProxy proxy = it.next();
+
+      if (src == ids.length || proxy.getId() != ids[src]) {
+        changed = true;
+        proxy.removeOwner(this);
+        detached(proxy);
+        it.remove();
+        removed(src);
+      } else {
+        src += 1;
+      }
+    }
+
+    for(; src < ids.length; ++src) {
+      changed = true;
+      ElementProxy proxy = type.createProxy(this, ids[src]);
+      children.add(proxy);
+      attached(proxy);
+      inserted(children.size() - 1);
+    }
+
+    if (changed) {
+      fireListChanged();
+    }
     return changed;
   }
 //
@@ -168,4 +605,15 @@ public class ElementListProxy implements ElementProxyOwner {
   public Set<ElementProxyOwner> getOwners() {
     return owner;
   }
+
+  // The only owner is the parent, no need to go through the set
+  @Override
+  public void updateStates(Set<State> container) {
+    State state = parent.isState();
+    if (state != null) {
+      container.add(state);
+    } else {
+      parent.updateStates(container);
+    }
+  }
 }
@@ -1,6 +1,8 @@
 package net.symplifier.lib.state;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * The ElementProxy keeps track of the changes in the Element. Any element that
@@ -20,19 +22,85 @@ import java.util.*;
  */
 public class ElementProxy implements ElementProxyOwner {
 
+  /**
+   * The epoch millis reserved for a {@code null} Date, as returned by
+   * {@link #getEpochMillis(int)}
+   */
+  public static final long NO_DATE = Long.MIN_VALUE;
+
+  private static final AtomicLongFieldUpdater<ElementProxy> REVISION
+          = AtomicLongFieldUpdater.newUpdater(ElementProxy.class, "revision");
+
+  /* The bits of an empty Float slot, no int bits could widen to it */
+  private static final long NO_FLOAT = Long.MIN_VALUE;
+  /* The bits of an empty Double slot, a NaN never returned by
+     Double.doubleToLongBits which collapses all NaNs into one */
+  private static final long NO_DOUBLE = 0x7ff0dead0000beefL;
+
   // All the owners that own this Proxy. We keep a reference count, since the
   // same elementProxy may be owned by the same owner more than once. For example
   // the list might contain the same Element twice or the same Element may be
   // referenced in different context within a single Element (For Example
   // Manager and Supervisor  could be the same instance of Employee)
-  private final Map<ElementProxyOwner, Integer> owners = new HashMap<>();
+  //
+  // Most of the proxies have only one or two owners, which are kept inline
+  // with their counts. The owners beyond those go in small arrays, and only
+  // when there are too many of them in a map. All guarded by this proxy.
+  private ElementProxyOwner owner0;
+  private ElementProxyOwner owner1;
+  private int count0;
+  private int count1;
+  private ElementProxyOwner[] moreOwners;
+  private int[] moreCounts;
+  private int moreSize;
+  private Map<ElementProxyOwner, int[]> ownerMap;
+
+  /* The view of the owners returned by getOwners, created on demand */
+  private Set<ElementProxyOwner> ownerSet;
+
+  /* Set by the ProxyCollector on a proxy that is about to be released, no
+     owner can be added while it is set. Changed under the lock of this
+     proxy. */
+  private volatile boolean condemned;
+  /* Set once the proxy has been released, it is no longer updated */
+  private volatile boolean released;
 
   /* The type of the Element */
   private final ElementType type;
   /* The values of the Element as updated in the proxy */
   private final Object[] values;
+  /* The Date fields as epoch millis and the Float and Double fields as their
+     bits, in the slots assigned by the type */
+  private final long[] primitives;
   /* The unique id of the element */
   private final Long id;
+  /* The dense ordinal of this proxy within its type */
+  private final int ordinal;
+
+  /* The element this proxy was last updated from, null on a follower */
+  private volatile State.Element element;
+  /* The version of the element when this proxy was last updated */
+  private long elementVersion = State.Element.NO_VERSION;
+
+  /* The set of States found by syncStates, reused on each thread so that a
+     change doesn't create one every time */
+  private static final ThreadLocal<StateSet> STATE_SETS = ThreadLocal.withInitial(StateSet::new);
+
+  /* Incremented every time the values of this proxy change */
+  private volatile long revision;
+  /* The records encoded for this proxy, one for each encoder in use */
+  private volatile EncodedRecord[] encoded = new EncodedRecord[0];
+
+  /* The computed fields whose cached values are valid, by the bits assigned
+     by the type */
+  private volatile long computedValid;
+  /* Counts the invalidations of the computed fields, so that a value computed
+     from the values that have changed meanwhile is not cached. Guarded by
+     the proxy itself */
+  private long invalidations;
+
+  /* Set while the change event is held back by the Conflator */
+  private boolean conflating;
 
   /**
    * Transient variables used for data updates via update methods. These two
@@ -40,6 +108,12 @@ public class ElementProxy implements ElementProxyOwner {
    */
   private transient int position;
   private transient boolean changed;
+  /* The thread updating the proxy from its element, null otherwise. Only
+     ever compared with the current thread by the others. */
+  private transient Thread updating;
+  /* The thread populating a newly created proxy with the values of its
+     element, null once it is populated */
+  private volatile Thread populating;
 
 
   /**
@@ -51,89 +125,339 @@ public class ElementProxy implements ElementProxyOwner {
    * @param fieldsLength The number fo the fields that this element type holds
    */
   ElementProxy(State.Element element, ElementType type, int fieldsLength) {
-    this.id = element.getId();
+    this(element.getId(), type, fieldsLength);
+    populating = Thread.currentThread();
+  }
+
+  /**
+   * Populate a newly created proxy with the values of its element. The
+   * proxy is already published by then, the other threads finding it wait
+   * with {@link #awaitPopulated()} until it is done.
+   *
+   * @param element The element of the proxy
+   */
+  void populate(State.Element element) {
+    try {
+      updateProxy(element);
+    } finally {
+      synchronized (this) {
+        populating = null;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Wait until the thread that created this proxy has populated it. Returns
+   * right away on the populating thread itself, where a circular reference
+   * leads back to the proxy.
+   */
+  void awaitPopulated() {
+    Thread thread = populating;
+    if (thread == null || thread == Thread.currentThread()) {
+      return;
+    }
+
+    boolean interrupted = false;
+    synchronized (this) {
+      while(populating != null) {
+        try {
+          wait();
+        } catch(InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Create a proxy for the element with the given id, without the element
+   * itself being available. Used when the values are applied directly, as
+   * done by the {@link StateFollower}.
+   *
+   * @param id The id of the element
+   * @param type The type of the element
+   * @param fieldsLength The number fo the fields that this element type holds
+   */
+  ElementProxy(Long id, ElementType type, int fieldsLength) {
+    this.id = id;
     this.type = type;
+    this.ordinal = type.nextOrdinal();
     values = new Object[fieldsLength];
+    primitives = type.newPrimitives();
     position = 0;
   }
 
+  /**
+   * The value of an empty primitive slot for the given kind
+   *
+   * @param kind The kind of the field stored as a primitive
+   * @return The bits representing {@code null}
+   */
+  static long emptyPrimitive(ValueKind kind) {
+    switch(kind) {
+      case FLOAT: return NO_FLOAT;
+      case DOUBLE: return NO_DOUBLE;
+      default: return NO_DATE;
+    }
+  }
+
+  /* Unpack the primitive slot to its boxed value */
+  private static Object unpack(ValueKind kind, long bits) {
+    if (bits == emptyPrimitive(kind)) {
+      return null;
+    }
+
+    switch(kind) {
+      case FLOAT: return Float.intBitsToFloat((int) bits);
+      case DOUBLE: return Double.longBitsToDouble(bits);
+      default: return bits;
+    }
+  }
+
+  /* Pack the boxed value to the bits stored in the primitive slot */
+  private static long pack(ValueKind kind, Object value) {
+    if (value == null) {
+      return emptyPrimitive(kind);
+    }
+
+    switch(kind) {
+      case FLOAT: return Float.floatToIntBits((Float) value);
+      case DOUBLE: return Double.doubleToLongBits((Double) value);
+      default: return (Long) value;
+    }
+  }
+
 
   /**
    * Retrieve the value of the element field as updated on this proxy at the
-   * given index position
+   * given index position. The Date fields are kept as their epoch millis and
+   * returned as a new {@link Date} on every call, use
+   * {@link #getEpochMillis(int)} to read them without creating anything.
+   *
    * @param idx The index position of the field whose value is to be retrieved
    * @return The value
    */
   public Object getValue(int idx) {
+    if (type.getFieldKind(idx) == ValueKind.DATE) {
+      long millis = getEpochMillis(idx);
+      return millis == NO_DATE ? null : new Date(millis);
+    }
+    return getStoredValue(idx);
+  }
+
+  /**
+   * Retrieve the value of the field as it is kept on this proxy, the Date
+   * fields as their epoch millis in a {@link Long}. Used for writing the
+   * values out without going through a Date.
+   *
+   * @param idx The index position of the field
+   * @return The value
+   */
+  Object getStoredValue(int idx) {
+    int slot = type.getPrimitiveSlot(idx);
+    if (slot >= 0) {
+      return unpack(type.getFieldKind(idx), primitives[slot]);
+    }
+
+    long bit = type.getComputedBit(idx);
+    if (bit != 0 && (computedValid & bit) == 0) {
+      return compute(idx, bit);
+    }
     return values[idx];
   }
 
+  // Compute the value of a computed field and cache it
+  private Object compute(int idx, long bit) {
+    long seen;
+    synchronized (this) {
+      seen = invalidations;
+    }
+
+    Object value = type.compute(idx, this);
+    if (value instanceof Date) {
+      value = ((Date) value).getTime();
+    }
+
+    synchronized (this) {
+      if (seen == invalidations) {
+        values[idx] = value;
+        computedValid |= bit;
+      }
+    }
+    return value;
+  }
+
+  // The cached values of the given computed fields are no longer valid
+  private void invalidate(long bits) {
+    synchronized (this) {
+      invalidations += 1;
+      computedValid &= ~bits;
+    }
+  }
+
+  /**
+   * Retrieve the value of a Float or Double field without creating any object
+   *
+   * @param idx The index position of the Float or Double field
+   * @return The value or {@link Double#NaN} if the value is {@code null}
+   */
+  public double getDouble(int idx) {
+    ValueKind kind = type.getFieldKind(idx);
+    assert(kind == ValueKind.FLOAT || kind == ValueKind.DOUBLE):"The field "
+            + type.getValueName(idx) + " of " + type + " is not a Float or Double";
+
+    int slot = type.getPrimitiveSlot(idx);
+    if (slot < 0) {
+      // A computed field
+      Object value = getStoredValue(idx);
+      return value == null ? Double.NaN : ((Number) value).doubleValue();
+    }
+
+    long bits = primitives[slot];
+    if (bits == emptyPrimitive(kind)) {
+      return Double.NaN;
+    }
+    return kind == ValueKind.FLOAT ? Float.intBitsToFloat((int) bits) : Double.longBitsToDouble(bits);
+  }
+
+  /**
+   * Retrieve the value of a Date field without creating any object
+   *
+   * @param idx The index position of the Date field
+   * @return The epoch millis or {@link #NO_DATE} if the value is {@code null}
+   */
+  public long getEpochMillis(int idx) {
+    assert(type.getFieldKind(idx) == ValueKind.DATE):"The field "
+            + type.getValueName(idx) + " of " + type + " is not a Date";
+    int slot = type.getPrimitiveSlot(idx);
+    if (slot < 0) {
+      // A computed field
+      Object value = getStoredValue(idx);
+      return value == null ? NO_DATE : (Long) value;
+    }
+    return primitives[slot];
+  }
+
+  /**
+   * The revision of the values of this proxy. The revision changes every time
+   * any of the value changes.
+   *
+   * @return The revision number
+   */
+  public long getRevision() {
+    return revision;
+  }
+
+  /**
+   * Mark the values of this proxy as changed, which invalidates the encoded
+   * records. The aggregates published by the lists of this proxy may
+   * change it on the threads syncing their elements.
+   */
+  void markChanged() {
+    REVISION.incrementAndGet(this);
+  }
+
   /**
-   * Populate the given container with the Proxy of all the Elements that can
-   * be reached through this element recursively
-   * .
-   * @param container The container which needs is populated without repetition
+   * Retrieve the record encoded with the given encoder. The record is encoded
+   * only once for every revision of this proxy and shared with every caller,
+   * each caller gets its own position and limit over the same bytes, which
+   * must never be changed.
+   *
+   * @param encoder The encoder for the required format
+   * @return A view of the encoded record
    */
-  void getAll(Map<ElementType, Set<ElementProxy>> container) {
-    // Go through all the values searching for reference to another element
-    // or list of elements
+  public ByteBuffer getEncoded(RecordEncoder encoder) {
+    long current = revision;
+    EncodedRecord[] records = encoded;
+    int idx = 0;
+    while(idx < records.length && records[idx].encoder != encoder) {
+      idx += 1;
+    }
+
+    if (idx < records.length && records[idx].revision == current) {
+      return records[idx].buffer.duplicate();
+    }
+
+    // Encode with the revision read before encoding, a change in between
+    // makes the record stale and it gets encoded again on the next call
+    EncodedRecord record = new EncodedRecord(encoder, current, encoder.encode(this));
+    EncodedRecord[] updated = Arrays.copyOf(records, Math.max(records.length, idx + 1));
+    updated[idx] = record;
+    encoded = updated;
+
+    return record.buffer.duplicate();
+  }
+
+  /**
+   * Push the proxies directly referenced by this proxy, through a reference
+   * or a list field, which haven't been visited yet, marking them visited
+   * on the way.
+   *
+   * @param visited The proxies already visited by the traversal
+   * @param stack The work stack of the traversal
+   */
+  void pushReferences(ProxyBitmap visited, Deque<ElementProxy> stack) {
     for(int i=0; i<values.length; ++i) {
-      ValueType type = this.type.getValueType(i);
-      if (type instanceof ElementType) {
-        // If its an element, get its proxy
+      ValueKind kind = type.getFieldKind(i);
+      if (kind == ValueKind.ELEMENT) {
         ElementProxy proxy = (ElementProxy)values[i];
-        // only if the referenced value is not null
-        if (proxy != null) {
-          // get the element set for the type
-          Set<ElementProxy> proxySet = container.get(type);
-          // if this is the first time we are adding an element, we also need
-          // to create the set and populate it in the container
-          if (proxySet == null) {
-            proxySet = new HashSet<>();
-            container.put((ElementType)type, proxySet);
-          }
-
-          // To avoid circular referencing, we check if this has been already
-          // added, and add it again and recurse only if this is new
-          if (!proxySet.contains(proxy)) {
-            proxySet.add(proxy);
-            proxy.getAll(container);
-          }
+        if (proxy != null && visited.add(proxy)) {
+          stack.push(proxy);
         }
-      } else if (type instanceof ElementType.ListType) {
+      } else if (kind == ValueKind.LIST) {
         ElementListProxy list = (ElementListProxy)values[i];
-        // In case of list, we got through the process, only if there are any
-        // elements in the list
-        if (list != null && list.size() > 0) {
-          ElementType listType = list.getType();
-          Set<ElementProxy> proxySet = container.get(listType);
-          // if this is the first time we are adding an element, we also need
-          // to create the set and populate it in the container
-          if (proxySet == null) {
-            proxySet = new HashSet<>();
-            container.put(listType, proxySet);
-          }
-
-          // Go through all elements one by one
-          for(ElementProxy proxy: list.getElements()) {
-            // Only add and recurse if not already in the list, to avoid circular reference
-            if (!proxySet.contains(proxy)) {
-              proxySet.add(proxy);
-              proxy.getAll(container);
-            }
-          }
+        if (list != null) {
+          list.pushElements(visited, stack);
         }
       }
     }
   }
 
+  /**
+   * Let the states know that this element has changed, right away or at the
+   * end of the conflation window of the type
+   */
+  void fireChanged() {
+    if (type.getConflationWindow() > 0) {
+      Conflator.INSTANCE.changed(this);
+    } else {
+      syncStates();
+    }
+  }
+
+  // Guarded by the Conflator
+  boolean isConflating() {
+    return conflating;
+  }
+
+  void setConflating(boolean conflating) {
+    this.conflating = conflating;
+  }
+
   // The method used for letting the states know that this element has changed
   void syncStates() {
-    Set<State> states = new LinkedHashSet<>();
-    this.updateStates(states);
+    StateSet states = STATE_SETS.get();
+    boolean reused = !states.inUse;
+    if (!reused) {
+      // A listener syncing another element while the set of this thread is
+      // still being gone through
+      states = new StateSet();
+    }
 
-    for(State state: states) {
-      state.fireEventListeners(this);
+    states.inUse = true;
+    try {
+      this.updateStates(states);
+
+      for(int i=0; i<states.size(); ++i) {
+        states.get(i).fireEventListeners(this);
+      }
+    } finally {
+      states.clear();
+      states.inUse = false;
     }
   }
 
@@ -150,12 +474,85 @@ public class ElementProxy implements ElementProxyOwner {
    * @param owner The owner who wants to own this element
    */
   void addOwner(ElementProxyOwner owner) {
-    synchronized(owners) {
-      if (owners.containsKey(owner)) {
-        owners.put(owner, owners.get(owner) + 1);
-      } else {
-        owners.put(owner, 1);
+    boolean added = tryAddOwner(owner);
+    assert(added):"Trying to own a proxy that has been condemned by the collector";
+  }
+
+  /**
+   * Adds an owner to a proxy unless the proxy has been condemned by the
+   * {@link ProxyCollector}, in which case a new proxy needs to be created
+   * for the element
+   *
+   * @param owner The owner who wants to own this element
+   * @return {@code false} if the proxy has been condemned
+   */
+  boolean tryAddOwner(ElementProxyOwner owner) {
+    long bytes;
+    synchronized (this) {
+      if (condemned) {
+        return false;
       }
+      bytes = ownerBytes();
+      addOwnerCount(owner);
+      bytes = ownerBytes() - bytes;
+    }
+
+    if (bytes != 0) {
+      type.account(bytes);
+    }
+    return true;
+  }
+
+  // Guarded by this proxy
+  private void addOwnerCount(ElementProxyOwner owner) {
+    if (owner0 == owner) {
+      count0 += 1;
+      return;
+    } else if (owner1 == owner) {
+      count1 += 1;
+      return;
+    } else if (ownerMap != null) {
+      int[] count = ownerMap.get(owner);
+      if (count != null) {
+        count[0] += 1;
+        return;
+      }
+    } else {
+      for(int i=0; i<moreSize; ++i) {
+        if (moreOwners[i] == owner) {
+          moreCounts[i] += 1;
+          return;
+        }
+      }
+    }
+
+    // A new owner, in the first free place
+    if (owner0 == null) {
+      owner0 = owner;
+      count0 = 1;
+    } else if (owner1 == null) {
+      owner1 = owner;
+      count1 = 1;
+    } else if (ownerMap != null) {
+      ownerMap.put(owner, new int[]{1});
+    } else if (moreSize < Footprint.OWNER_ARRAY_LENGTH) {
+      if (moreOwners == null) {
+        moreOwners = new ElementProxyOwner[Footprint.OWNER_ARRAY_LENGTH];
+        moreCounts = new int[Footprint.OWNER_ARRAY_LENGTH];
+      }
+      moreOwners[moreSize] = owner;
+      moreCounts[moreSize] = 1;
+      moreSize += 1;
+    } else {
+      // Too many for a linear search, the owners don't override equals
+      ownerMap = new IdentityHashMap<>();
+      for(int i=0; i<moreSize; ++i) {
+        ownerMap.put(moreOwners[i], new int[]{moreCounts[i]});
+      }
+      ownerMap.put(owner, new int[]{1});
+      moreOwners = null;
+      moreCounts = null;
+      moreSize = 0;
     }
   }
 
@@ -166,18 +563,275 @@ public class ElementProxy implements ElementProxyOwner {
    * @param owner The owner who wants to disown this element
    */
   void removeOwner(ElementProxyOwner owner) {
-    synchronized (owners) {
-      assert(owners.containsKey(owner)): "Invalid State, Trying to remove owner " +
+    long bytes;
+    synchronized (this) {
+      bytes = ownerBytes();
+      boolean removed = removeOwnerCount(owner);
+      assert(removed): "Invalid State, Trying to remove owner " +
               "from a non member element. Reference counting is very sensitive, " +
               "we don't want any unbalanced add/remove";
+      bytes = ownerBytes() - bytes;
+    }
 
-      int count = owners.get(owner) - 1;
-      if (count == 0) {
-        owners.remove(owner);
-      } else {
-        owners.put(owner, count);
+    if (bytes != 0) {
+      type.account(bytes);
+    }
+  }
+
+  // Guarded by this proxy, false if the owner doesn't own this proxy
+  private boolean removeOwnerCount(ElementProxyOwner owner) {
+    if (owner == null) {
+      return false;
+    } else if (owner0 == owner) {
+      if (--count0 == 0) {
+        owner0 = null;
+      }
+      return true;
+    } else if (owner1 == owner) {
+      if (--count1 == 0) {
+        owner1 = null;
+      }
+      return true;
+    } else if (ownerMap != null) {
+      int[] count = ownerMap.get(owner);
+      if (count == null) {
+        return false;
+      }
+      if (--count[0] == 0) {
+        ownerMap.remove(owner);
+      }
+      return true;
+    }
+
+    for(int i=0; i<moreSize; ++i) {
+      if (moreOwners[i] == owner) {
+        if (--moreCounts[i] == 0) {
+          // The last one takes its place, the order doesn't matter
+          moreSize -= 1;
+          moreOwners[i] = moreOwners[moreSize];
+          moreCounts[i] = moreCounts[moreSize];
+          moreOwners[moreSize] = null;
+        }
+        return true;
       }
     }
+    return false;
+  }
+
+  /**
+   * Check if this proxy is held directly by a State, either as one of its
+   * seed elements or by the State itself
+   *
+   * @return {@code true} if a State owns this proxy
+   */
+  boolean isSeed() {
+    return anyOwner(true);
+  }
+
+  /**
+   * Check if any of the owners of this proxy, or the owner of the list
+   * holding it, is a State or a proxy that has not been condemned
+   *
+   * @return {@code true} if the proxy is owned by anything alive
+   */
+  boolean hasLiveOwner() {
+    return anyOwner(false);
+  }
+
+  // Go through the owners in place, the collector checks every candidate.
+  // Only the few proxies with a map of owners create an iterator.
+  private synchronized boolean anyOwner(boolean seed) {
+    if (isOwnedBy(owner0, seed) || isOwnedBy(owner1, seed)) {
+      return true;
+    } else if (ownerMap != null) {
+      for(ElementProxyOwner owner:ownerMap.keySet()) {
+        if (isOwnedBy(owner, seed)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    for(int i=0; i<moreSize; ++i) {
+      if (isOwnedBy(moreOwners[i], seed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Check the owner for a State, directly or through a list, or when not
+  // looking for the seeds, for a proxy that has not been condemned
+  private static boolean isOwnedBy(ElementProxyOwner owner, boolean seed) {
+    if (owner instanceof ElementListProxy) {
+      owner = ((ElementListProxy) owner).getParent();
+    }
+
+    if (owner == null) {
+      return false;
+    } else if (owner.isState() != null) {
+      return true;
+    }
+    return !seed && owner instanceof ElementProxy && !((ElementProxy) owner).condemned;
+  }
+
+  /**
+   * Condemn this proxy to be released, no owner can be added to it from
+   * here on. Used by the {@link ProxyCollector}.
+   */
+  synchronized void condemn() {
+    condemned = true;
+  }
+
+  /**
+   * Take back the condemnation of a proxy found to be owned after all
+   */
+  synchronized void spare() {
+    condemned = false;
+  }
+
+  /**
+   * Check if this proxy has been condemned by the {@link ProxyCollector}
+   *
+   * @return {@code true} if condemned
+   */
+  boolean isCondemned() {
+    return condemned;
+  }
+
+  /**
+   * Let go of everything held by this condemned proxy, the ownership of the
+   * elements it references, its lists and its place in the indexes. The
+   * elements that are condemned as well are left as they are, since they go
+   * away along with this one.
+   */
+  void release() {
+    assert(condemned):"Releasing a proxy that has not been condemned";
+
+    long bytes;
+    synchronized (this) {
+      released = true;
+      bytes = ownerBytes();
+      owner0 = null;
+      owner1 = null;
+      count0 = 0;
+      count1 = 0;
+      moreOwners = null;
+      moreCounts = null;
+      moreSize = 0;
+      ownerMap = null;
+    }
+
+    for(int i=0; i<values.length; ++i) {
+      if (type.isIndexed(i)) {
+        int slot = type.getPrimitiveSlot(i);
+        type.reindex(this, i, slot >= 0 ? unpack(type.getFieldKind(i), primitives[slot]) : values[i], null);
+      }
+
+      ValueKind kind = type.getFieldKind(i);
+      if (kind == ValueKind.ELEMENT && values[i] != null) {
+        ElementProxy proxy = (ElementProxy) values[i];
+        if (!proxy.condemned) {
+          proxy.removeOwner(this);
+        }
+        values[i] = null;
+      } else if (kind == ValueKind.LIST && values[i] != null) {
+        ((ElementListProxy) values[i]).release();
+        values[i] = null;
+      }
+    }
+
+    type.account(-(type.getProxyBytes() + bytes));
+  }
+
+  // The bytes taken by the owners beyond the inline ones, guarded by this proxy
+  private long ownerBytes() {
+    if (ownerMap != null) {
+      return Footprint.OWNER_MAP + ownerMap.size() * Footprint.OWNER_ENTRY;
+    } else if (moreOwners != null) {
+      return Footprint.OWNER_ARRAYS;
+    } else {
+      return 0;
+    }
+  }
+
+  // The owners beyond the inline ones with their counts at this moment, for
+  // going through them outside the lock, copied from the given position.
+  // Guarded by this proxy.
+  private int copyMoreOwners(ElementProxyOwner[] owners, int[] counts, int from) {
+    if (ownerMap == null) {
+      if (moreSize > 0) {
+        System.arraycopy(moreOwners, 0, owners, from, moreSize);
+        if (counts != null) {
+          System.arraycopy(moreCounts, 0, counts, from, moreSize);
+        }
+      }
+      return moreSize;
+    }
+
+    int size = 0;
+    for(Map.Entry<ElementProxyOwner, int[]> entry:ownerMap.entrySet()) {
+      owners[from + size] = entry.getKey();
+      if (counts != null) {
+        counts[from + size] = entry.getValue()[0];
+      }
+      size += 1;
+    }
+    return size;
+  }
+
+  // The number of the owners beyond the inline ones, guarded by this proxy
+  private int moreOwnerCount() {
+    return ownerMap != null ? ownerMap.size() : moreSize;
+  }
+
+  /**
+   * The approximate bytes retained by this proxy and its lists
+   *
+   * @return The bytes
+   */
+  long getFootprint() {
+    long bytes = type.getProxyBytes();
+    synchronized (this) {
+      bytes += ownerBytes();
+    }
+
+    for(int i=0; i<values.length; ++i) {
+      if (type.getFieldKind(i) == ValueKind.LIST && values[i] != null) {
+        bytes += ((ElementListProxy) values[i]).getFootprint();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Retrieve the element that this proxy was last updated from. Used by the
+   * {@link SyncScheduler} to sync the elements reachable from a State.
+   *
+   * @return The element or {@code null} if the proxy is not updated from an
+   *         element in this process
+   */
+  State.Element getElement() {
+    return element;
+  }
+
+  /**
+   * Retrieve the type of the element
+   *
+   * @return {@link ElementType}
+   */
+  public ElementType getType() {
+    return type;
+  }
+
+  /**
+   * The dense ordinal of this proxy among the proxies of its type, assigned
+   * by the {@link ElementType} on creation
+   *
+   * @return The ordinal starting from 0
+   */
+  int getOrdinal() {
+    return ordinal;
   }
 
   /**
@@ -192,14 +846,35 @@ public class ElementProxy implements ElementProxyOwner {
 
 
   boolean updateProxy(State.Element element) {
+    if (released) {
+      // A new proxy is created if the element comes back to a State
+      return false;
+    }
+    this.element = element;
+
+    // Nothing could have changed if the element is still on the same version
+    long version = element.getVersion();
+    if (version != State.Element.NO_VERSION && version == elementVersion) {
+      return false;
+    }
+
     // Reset the dynamic variables
     this.position = 0;
     this.changed = false;
 
     // Each element has its own implementation on how the proxy needs to
     // be updated
-    element.updateProxy(this);
+    updating = Thread.currentThread();
+    try {
+      element.updateProxy(this);
+    } finally {
+      updating = null;
+    }
+    elementVersion = version;
 
+    if (changed) {
+      markChanged();
+    }
     return changed;
   }
 
@@ -211,7 +886,13 @@ public class ElementProxy implements ElementProxyOwner {
    * @param value The long value
    */
   public void update(long value) {
-    updatePrimitive(value);
+    // Compared before boxing, so that an unchanged value creates nothing
+    Object current = values[position];
+    if (current instanceof Long && (Long) current == value) {
+      position += 1;
+    } else {
+      updatePrimitive(value);
+    }
   }
 
   /**
@@ -220,7 +901,12 @@ public class ElementProxy implements ElementProxyOwner {
    * @param value The integer value
    */
   public void update(int value) {
-    updatePrimitive(value);
+    Object current = values[position];
+    if (current instanceof Integer && (Integer) current == value) {
+      position += 1;
+    } else {
+      updatePrimitive(value);
+    }
   }
 
   /**
@@ -229,7 +915,20 @@ public class ElementProxy implements ElementProxyOwner {
    * @param value The string value
    */
   public void update(String value) {
-    updatePrimitive(value);
+    if (value == null || !type.isDeduplicated(position)) {
+      updatePrimitive(value);
+      return;
+    }
+
+    // Only the canonical instances are stored on a deduplicated field, so
+    // the values are same only if they are the same instance
+    String canonical = type.canonical(position, value);
+    if (canonical != values[position]) {
+      setValue(position, canonical);
+      changed = true;
+    }
+
+    position += 1;
   }
 
   /**
@@ -237,7 +936,12 @@ public class ElementProxy implements ElementProxyOwner {
    * @param value The byte value
    */
   public void update(byte value) {
-    updatePrimitive(value);
+    Object current = values[position];
+    if (current instanceof Byte && (Byte) current == value) {
+      position += 1;
+    } else {
+      updatePrimitive(value);
+    }
   }
 
   /**
@@ -246,25 +950,64 @@ public class ElementProxy implements ElementProxyOwner {
    * @param value The short value
    */
   public void update(short value) {
-    updatePrimitive(value);
+    Object current = values[position];
+    if (current instanceof Short && (Short) current == value) {
+      position += 1;
+    } else {
+      updatePrimitive(value);
+    }
   }
 
   /**
-   * Update the field value with a primitive float
+   * Update the field value with a primitive float. A field registered with a
+   * dead-band is changed only when the value moves out of it.
    *
    * @param value The float value
    */
   public void update(float value) {
-    updatePrimitive(value);
+    assert(type.getFieldKind(position) == ValueKind.FLOAT):"The field "
+            + type.getValueName(position) + " of " + type + " is not a Float";
+
+    if (applyReal(position, value, Float.floatToIntBits(value), ValueKind.FLOAT)) {
+      changed = true;
+    }
+    position += 1;
   }
 
   /**
-   * Update the field value with a primitive double
+   * Update the field value with a primitive double. A field registered with
+   * a dead-band is changed only when the value moves out of it.
    *
    * @param value The double value
    */
   public void update(double value) {
-    updatePrimitive(value);
+    assert(type.getFieldKind(position) == ValueKind.DOUBLE):"The field "
+            + type.getValueName(position) + " of " + type + " is not a Double";
+
+    if (applyReal(position, value, Double.doubleToLongBits(value), ValueKind.DOUBLE)) {
+      changed = true;
+    }
+    position += 1;
+  }
+
+  // helper method for the Float and Double changes, compared as primitives
+  private boolean applyReal(int idx, double value, long bits, ValueKind kind) {
+    int slot = type.getPrimitiveSlot(idx);
+    long current = primitives[slot];
+    if (current == bits) {
+      return false;
+    }
+
+    if (current != emptyPrimitive(kind) && type.hasDeadBand(idx)) {
+      double currentValue = kind == ValueKind.FLOAT
+              ? Float.intBitsToFloat((int) current) : Double.longBitsToDouble(current);
+      if (type.isWithinDeadBand(idx, currentValue, value)) {
+        return false;
+      }
+    }
+
+    setPrimitive(idx, slot, bits);
+    return true;
   }
 
   /**
@@ -276,11 +1019,31 @@ public class ElementProxy implements ElementProxyOwner {
   }
 
   /**
-   * Update the field value with a primitive date
-   * @param value The data value
+   * Update the field value with a date. Only the epoch millis of the date is
+   * kept, so the given instance can be reused or changed by the caller.
+   *
+   * @param value The date value
    */
   public void update(Date value) {
-    updatePrimitive(value);
+    updateDate(value == null ? NO_DATE : value.getTime());
+  }
+
+  /**
+   * Update the field value of a Date field with its epoch millis
+   *
+   * @param epochMillis The epoch millis or {@link #NO_DATE} for {@code null}
+   */
+  public void updateDate(long epochMillis) {
+    assert(type.getFieldKind(position) == ValueKind.DATE):"The field "
+            + type.getValueName(position) + " of " + type + " is not a Date";
+
+    int slot = type.getPrimitiveSlot(position);
+    if (primitives[slot] != epochMillis) {
+      setPrimitive(position, slot, epochMillis);
+      changed = true;
+    }
+
+    position += 1;
   }
 
   // helper method used by all the primitive updates
@@ -289,7 +1052,7 @@ public class ElementProxy implements ElementProxyOwner {
     if (value == null) {
       if (values[position] != null) {
         // The existing value was not null, set that to null
-        values[position] = null;
+        setValue(position, null);
         changed = true;
       }
     } else {
@@ -301,7 +1064,7 @@ public class ElementProxy implements ElementProxyOwner {
 
       // only update the proxy if the value has actually changed
       if (!value.equals(values[position])) {
-        values[position] = value;
+        setValue(position, value);
         changed = true;
       }
     }
@@ -310,6 +1073,150 @@ public class ElementProxy implements ElementProxyOwner {
     position += 1;
   }
 
+  // Set the value of the field at the given index, keeping its index and
+  // the aggregates in line
+  private void setValue(int idx, Object value) {
+    if (type.isIndexed(idx)) {
+      type.reindex(this, idx, values[idx], value);
+    }
+
+    boolean aggregated = type.isAggregated(idx);
+    double previous = aggregated ? getNumber(idx) : Double.NaN;
+    values[idx] = value;
+    if (aggregated) {
+      notifyAggregates(idx, previous, getNumber(idx));
+    }
+
+    long dependents = type.getDependents(idx);
+    if (dependents != 0) {
+      invalidate(dependents);
+    }
+  }
+
+  // Set the primitive slot of the field at the given index, keeping its
+  // index and the aggregates in line
+  private void setPrimitive(int idx, int slot, long bits) {
+    if (type.isIndexed(idx)) {
+      ValueKind kind = type.getFieldKind(idx);
+      type.reindex(this, idx, unpack(kind, primitives[slot]), unpack(kind, bits));
+    }
+
+    boolean aggregated = type.isAggregated(idx);
+    double previous = aggregated ? getNumber(idx) : Double.NaN;
+    primitives[slot] = bits;
+    if (aggregated) {
+      notifyAggregates(idx, previous, getNumber(idx));
+    }
+
+    long dependents = type.getDependents(idx);
+    if (dependents != 0) {
+      invalidate(dependents);
+    }
+  }
+
+  /**
+   * The value of a numeric field as a double, for the aggregates
+   *
+   * @param idx The index position of the numeric field
+   * @return The value or {@link Double#NaN} if the value is {@code null}
+   */
+  double getNumber(int idx) {
+    if (type.getPrimitiveSlot(idx) >= 0) {
+      return getDouble(idx);
+    }
+
+    Object value = values[idx];
+    return value == null ? Double.NaN : ((Number) value).doubleValue();
+  }
+
+  // Let the lists holding this proxy update their aggregates over the field.
+  // The inline owners are read into locals, only the rare proxy with more
+  // owners pays for copying them.
+  private void notifyAggregates(int idx, double previous, double value) {
+    ElementProxyOwner first;
+    ElementProxyOwner second;
+    int firstCount;
+    int secondCount;
+    ElementProxyOwner[] owners = null;
+    int[] occurrences = null;
+    int size = 0;
+    synchronized (this) {
+      first = owner0;
+      firstCount = count0;
+      second = owner1;
+      secondCount = count1;
+      if (moreOwnerCount() > 0) {
+        size = moreOwnerCount();
+        owners = new ElementProxyOwner[size];
+        occurrences = new int[size];
+        copyMoreOwners(owners, occurrences, 0);
+      }
+    }
+
+    // The lists are informed outside the lock, they may go on to publish
+    // the aggregates on their own owners
+    notifyAggregate(first, idx, previous, value, firstCount);
+    notifyAggregate(second, idx, previous, value, secondCount);
+    for(int i=0; i<size; ++i) {
+      notifyAggregate(owners[i], idx, previous, value, occurrences[i]);
+    }
+  }
+
+  private static void notifyAggregate(ElementProxyOwner owner, int idx,
+                                      double previous, double value, int occurrences) {
+    if (owner instanceof ElementListProxy) {
+      ((ElementListProxy) owner).valueChanged(idx, previous, value, occurrences);
+    }
+  }
+
+  /**
+   * Publish the value of an aggregate maintained by one of the lists of this
+   * proxy on its field. The States are informed right away, unless the
+   * proxy is being updated on this thread in which case it is a part of that
+   * update.
+   *
+   * <p>
+   *   The lists publish from the threads syncing their elements, which under
+   *   {@link ShardedSync} are not the thread updating this proxy. The
+   *   aggregate slots are never written by the update itself, so the value is
+   *   set under the lock of this proxy and the change is announced on its own
+   *   instead of being folded into the update of another thread.
+   * </p>
+   *
+   * @param idx The index position of the aggregate field
+   * @param value The value of the aggregate, {@link Double#NaN} for none
+   */
+  void setAggregate(int idx, double value) {
+    int slot = type.getPrimitiveSlot(idx);
+    long bits = Double.isNaN(value) ? NO_DOUBLE : Double.doubleToLongBits(value);
+    synchronized (this) {
+      if (primitives[slot] == bits) {
+        return;
+      }
+      setPrimitive(idx, slot, bits);
+    }
+
+    if (updating == Thread.currentThread()) {
+      changed = true;
+    } else {
+      markChanged();
+      fireChanged();
+    }
+  }
+
+  // Create the proxy for the list field at the given index
+  private ElementListProxy newListProxy(int idx) {
+    ElementType.ListType listType = (ElementType.ListType) type.getValueType(idx);
+    ElementListProxy listProxy = new ElementListProxy(this, listType.getElementType());
+    Aggregate[] aggregates = type.getListAggregates(idx);
+    if (aggregates != null) {
+      for(Aggregate aggregate:aggregates) {
+        listProxy.addAggregate(new Aggregate(aggregate));
+      }
+    }
+    return listProxy;
+  }
+
   /**
    * Update the field value with an Element list. The proxy doesn't make any
    * change in the given list and uses a List Proxy to store the list values
@@ -327,8 +1234,7 @@ public class ElementProxy implements ElementProxyOwner {
       }
     } else {
       if (values[position] == null) {
-        ElementType.ListType type = (ElementType.ListType) this.type.getValueType(position);
-        ElementListProxy listProxy = new ElementListProxy(this, type.getElementType());
+        ElementListProxy listProxy = newListProxy(position);
         values[position] = listProxy;
         if (listProxy.update(list)) {
           changed = true;
@@ -359,10 +1265,8 @@ public class ElementProxy implements ElementProxyOwner {
 
     // This may be the first update
     if (values[position] == null) {
-      Object valueType = type.getValueType(position);
-      assert(valueType == type.getListType());
-      ElementListProxy listProxy = new ElementListProxy(this,
-              ((ElementType.ListType)valueType).getElementType());
+      assert(type.getFieldKind(position) == ValueKind.LIST);
+      ElementListProxy listProxy = newListProxy(position);
       list.linkProxy(listProxy);
       values[position] = listProxy;
       changed = true;
@@ -399,16 +1303,398 @@ public class ElementProxy implements ElementProxyOwner {
           // values changed
           proxy.removeOwner(this);
           ElementType type = (ElementType)this.type.getValueType(position);
-          proxy = type.createProxy(this, element);
+          values[position] = type.createProxy(this, element);
           changed = true;
         }
       }
     }
+
+    position += 1;
+  }
+
+  // The apply methods used for setting values received from another process
+
+  /**
+   * Apply a generic value directly on the field at the given index. The
+   * Date fields take their epoch millis as a {@link Long}.
+   *
+   * @param idx The index position of the field
+   * @param value The new value
+   * @return {@code true} if the value was changed
+   */
+  boolean apply(int idx, Object value) {
+    int slot = type.getPrimitiveSlot(idx);
+    if (slot >= 0) {
+      long bits = pack(type.getFieldKind(idx), value);
+      if (primitives[slot] == bits) {
+        return false;
+      }
+      setPrimitive(idx, slot, bits);
+      return true;
+    }
+
+    if (value instanceof String) {
+      value = type.canonical(idx, (String) value);
+    }
+
+    if (value == null ? values[idx] == null : value.equals(values[idx])) {
+      return false;
+    }
+
+    setValue(idx, value);
+    return true;
   }
 
+  /**
+   * Apply a Float or a Double value on the field at the given index, the
+   * dead-band of the field is honoured the same way as by the updates
+   *
+   * @param idx The index position of the Float or Double field
+   * @param value The new value
+   * @return {@code true} if the value was changed
+   */
+  boolean apply(int idx, double value) {
+    ValueKind kind = type.getFieldKind(idx);
+    if (kind == ValueKind.FLOAT) {
+      return applyReal(idx, value, Float.floatToIntBits((float) value), kind);
+    }
+
+    assert(kind == ValueKind.DOUBLE):"The field " + type.getValueName(idx)
+            + " of " + type + " is not a Float or Double";
+    return applyReal(idx, value, Double.doubleToLongBits(value), kind);
+  }
+
+  /**
+   * Apply an integral value on the field at the given index, without boxing
+   * when the value hasn't changed. A Date field takes the epoch millis.
+   *
+   * @param idx The index position of the field
+   * @param value The new value
+   * @return {@code true} if the value was changed
+   */
+  boolean apply(int idx, long value) {
+    int slot = type.getPrimitiveSlot(idx);
+    if (slot >= 0) {
+      assert(type.getFieldKind(idx) == ValueKind.DATE):"The field "
+              + type.getValueName(idx) + " of " + type + " is not integral";
+      if (primitives[slot] == value) {
+        return false;
+      }
+      setPrimitive(idx, slot, value);
+      return true;
+    }
+
+    Object current = values[idx];
+    switch(type.getFieldKind(idx)) {
+      case INTEGER:
+        if (current instanceof Integer && (Integer) current == value) {
+          return false;
+        }
+        setValue(idx, (int) value);
+        return true;
+      case SHORT:
+        if (current instanceof Short && (Short) current == value) {
+          return false;
+        }
+        setValue(idx, (short) value);
+        return true;
+      case BYTE:
+        if (current instanceof Byte && (Byte) current == value) {
+          return false;
+        }
+        setValue(idx, (byte) value);
+        return true;
+      default:
+        assert(type.getFieldKind(idx) == ValueKind.LONG):"The field "
+                + type.getValueName(idx) + " of " + type + " is not integral";
+        if (current instanceof Long && (Long) current == value) {
+          return false;
+        }
+        setValue(idx, value);
+        return true;
+    }
+  }
+
+  /**
+   * Apply a reference to another element, identified by its id, on the field
+   * at the given index. The ownership is maintained in the same way as
+   * {@link #update(State.Element)}.
+   *
+   * @param idx The index position of the field
+   * @param refId The id of the referenced element or {@code null}
+   * @return {@code true} if the reference was changed
+   */
+  boolean applyReference(int idx, Long refId) {
+    ElementProxy current = (ElementProxy) values[idx];
+    if (refId == null) {
+      if (current == null) {
+        return false;
+      }
+      current.removeOwner(this);
+      values[idx] = null;
+      return true;
+    }
+
+    if (current != null) {
+      if (current.getId().equals(refId)) {
+        return false;
+      }
+      current.removeOwner(this);
+    }
+
+    values[idx] = ((ElementType)type.getValueType(idx)).createProxy(this, refId);
+    return true;
+  }
+
+  /**
+   * Apply a list of elements, identified by their ids, on the field at the
+   * given index.
+   *
+   * @param idx The index position of the field
+   * @param ids The ids of the elements in the list
+   * @return {@code true} if the list was changed
+   */
+  boolean applyList(int idx, long[] ids) {
+    ElementListProxy list = (ElementListProxy) values[idx];
+    if (list == null) {
+      if (ids.length == 0) {
+        return false;
+      }
+
+      list = newListProxy(idx);
+      values[idx] = list;
+    }
+
+    return list.apply(ids);
+  }
+
+  /**
+   * A live view of the owners of this proxy, the same instance is returned
+   * every time. Its iterator works on a copy of the owners.
+   *
+   * @return The owners
+   */
   @Override
   public Set<ElementProxyOwner> getOwners() {
-    return owners.keySet();
+    Set<ElementProxyOwner> set = ownerSet;
+    if (set == null) {
+      // A race only creates an extra view
+      set = new OwnerSet();
+      ownerSet = set;
+    }
+    return set;
+  }
+
+  // Goes through the inline owners without creating anything, which covers
+  // almost all the proxies
+  @Override
+  public void updateStates(Set<State> container) {
+    ElementProxyOwner first;
+    ElementProxyOwner second;
+    ElementProxyOwner[] rest = null;
+    int size = 0;
+    synchronized (this) {
+      first = owner0;
+      second = owner1;
+      if (moreOwnerCount() > 0) {
+        rest = new ElementProxyOwner[moreOwnerCount()];
+        size = copyMoreOwners(rest, null, 0);
+      }
+    }
+
+    updateStates(first, container);
+    updateStates(second, container);
+    for(int i=0; i<size; ++i) {
+      updateStates(rest[i], container);
+    }
+  }
+
+  private static void updateStates(ElementProxyOwner owner, Set<State> container) {
+    if (owner == null) {
+      return;
+    }
+
+    State state = owner.isState();
+    if (state != null) {
+      container.add(state);
+    } else {
+      owner.updateStates(container);
+    }
+  }
+
+  /**
+   * The set of owners over the inline slots, the arrays and the map
+   */
+  private class OwnerSet extends AbstractSet<ElementProxyOwner> {
+
+    @Override
+    public boolean contains(Object o) {
+      synchronized (ElementProxy.this) {
+        if (o == null) {
+          return false;
+        } else if (o == owner0 || o == owner1) {
+          return true;
+        } else if (ownerMap != null) {
+          return ownerMap.containsKey(o);
+        }
+
+        for(int i=0; i<moreSize; ++i) {
+          if (moreOwners[i] == o) {
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+
+    @Override
+    public int size() {
+      synchronized (ElementProxy.this) {
+        return (owner0 == null ? 0 : 1) + (owner1 == null ? 0 : 1) + moreOwnerCount();
+      }
+    }
+
+    @SuppressWarnings("NullableProblems")
+    @Override
+    public Iterator<ElementProxyOwner> iterator() {
+      return new OwnerIterator();
+    }
+  }
+
+  /**
+   * Goes through the inline owners and then the array of the owners by
+   * position, each step under the proxy, without copying them. An owner
+   * added or removed meanwhile may or may not be seen. The owners of the few
+   * proxies having a map of them are copied when the map is reached.
+   */
+  private class OwnerIterator implements Iterator<ElementProxyOwner> {
+    /* The position of the next owner to look at, 0 and 1 for the inline
+       ones and the position in the array after them */
+    private int position;
+    private ElementProxyOwner next;
+    /* The copy of the owners in the map */
+    private Iterator<ElementProxyOwner> mapped;
+
+    OwnerIterator() {
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public ElementProxyOwner next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+
+      ElementProxyOwner owner = next;
+      advance();
+      return owner;
+    }
+
+    // Find the next owner, null at the end
+    private void advance() {
+      next = null;
+      if (mapped == null) {
+        synchronized (ElementProxy.this) {
+          while(next == null && position < 2) {
+            next = position == 0 ? owner0 : owner1;
+            position += 1;
+          }
+          if (next != null) {
+            return;
+          }
+
+          if (ownerMap != null) {
+            mapped = new ArrayList<>(ownerMap.keySet()).iterator();
+          } else {
+            if (position - 2 < moreSize) {
+              next = moreOwners[position - 2];
+              position += 1;
+            }
+            return;
+          }
+        }
+      }
+
+      if (mapped.hasNext()) {
+        next = mapped.next();
+      }
+    }
+  }
+
+  /**
+   * A small set of States in the order they were added, which can be gone
+   * through by position and cleared without creating anything. There are
+   * only ever a few States, so a linear search is all that is needed.
+   */
+  private static final class StateSet extends AbstractSet<State> {
+    private State[] states = new State[4];
+    private int size;
+    /* Set while syncStates is going through the set */
+    private boolean inUse;
+
+    @Override
+    public boolean add(State state) {
+      if (contains(state)) {
+        return false;
+      }
+
+      if (size == states.length) {
+        states = Arrays.copyOf(states, size * 2);
+      }
+      states[size++] = state;
+      return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      for(int i=0; i<size; ++i) {
+        if (states[i] == o) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    State get(int index) {
+      return states[index];
+    }
+
+    @Override
+    public void clear() {
+      Arrays.fill(states, 0, size, null);
+      size = 0;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @SuppressWarnings("NullableProblems")
+    @Override
+    public Iterator<State> iterator() {
+      return Arrays.asList(states).subList(0, size).iterator();
+    }
+  }
+
+  /**
+   * A record encoded for a specific revision of the proxy
+   */
+  private static class EncodedRecord {
+    private final RecordEncoder encoder;
+    private final long revision;
+    private final ByteBuffer buffer;
+
+    EncodedRecord(RecordEncoder encoder, long revision, ByteBuffer buffer) {
+      this.encoder = encoder;
+      this.revision = revision;
+      this.buffer = buffer;
+    }
   }
 
 }
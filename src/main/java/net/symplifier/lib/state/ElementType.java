@@ -4,6 +4,14 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * The ElementType stores the structural layout of the
@@ -14,6 +22,18 @@ import java.util.*;
  */
 public class ElementType implements ValueType {
 
+  /**
+   * The priority of the Elements of a type over the others, when their
+   * changes are waiting to be dispatched and in the snapshots
+   */
+  public enum Priority {
+    /* Alarms and the critical status, dispatched ahead of everything else */
+    HIGH,
+    NORMAL,
+    /* Trends and the like, which can wait */
+    LOW
+  }
+
   /**
    * The ListType provides a place holder for recognizing list type from other
    * type of values
@@ -46,9 +66,30 @@ public class ElementType implements ValueType {
     }
   }
 
-  /* All the proxies that have been created and active on the system */
+  /* All the proxies that have been created and active on the system. The
+     proxies could be looked up and created from different shard threads
+     (see ShardedSync) */
   // TODO It might be needed to use a WeakReferenced collection
-  private final Map<Long, ElementProxy> ALL_PROXIES = new HashMap<>();
+  private final ConcurrentMap<Long, ElementProxy> ALL_PROXIES = new ConcurrentHashMap<>();
+
+  /* The source of the type indexes, one for each ElementType in the system */
+  private static final AtomicInteger TYPE_INDEXES = new AtomicInteger();
+  /* The dense index of this type, used by the traversals to keep the visited
+     proxies of each type apart */
+  private final int index = TYPE_INDEXES.getAndIncrement();
+  /* The dense ordinals of the proxies of this type, guarded by the
+     ordinals. The ordinals of the released proxies are reused once no
+     traversal is under way, so that they stay dense. */
+  private final Ordinals ordinals = new Ordinals();
+  /* The number of traversals under way marking the proxies by their
+     ordinals, in any State */
+  private static final AtomicInteger TRAVERSALS = new AtomicInteger();
+
+  /* The approximate bytes retained by the proxies of this type and by the
+     lists of them (see Footprint) */
+  private final AtomicLong retainedBytes = new AtomicLong();
+  /* The bytes of a proxy of this type without any owner */
+  private final long proxyBytes;
 
   /**
    * The name for this ElementType, by default it is same as the name of Class
@@ -59,10 +100,70 @@ public class ElementType implements ValueType {
   private final Class<? extends State.Element> elementClass;
   /* The underlying structure of the element in pairs, order is maintained */
   private final Map<String, ValueType> types = new LinkedHashMap<>();
+  /* The structure as a JSON array of name and type name pairs, encoded once */
+  private final String structureJson;
   /* For efficient extraction of names and types from the structure the generic
      arrays are used*/
   private final String[] fieldNames;
   private final ValueType[] fieldTypes;
+  /* The kind of each field, for the serializers to dispatch on */
+  private final ValueKind[] fieldKinds;
+
+  /* The slot in the primitive storage of the proxy for each Date, Float and
+     Double field, -1 for all the other fields */
+  private final int[] primitiveSlots;
+  /* The primitive storage of a proxy with all the values empty */
+  private final long[] emptyPrimitives;
+
+  /* The dead-bands of the Float and Double fields by name as registered */
+  private final Map<String, double[]> deadBands = new HashMap<>();
+  /* The absolute and relative tolerance of each field, 0 for none */
+  private final double[] absoluteBands;
+  private final double[] relativeBands;
+
+  /* The window in nanoseconds within which the changes to a proxy are
+     merged into a single event, 0 for no conflation */
+  private long conflationWindow;
+
+  private Priority priority = Priority.NORMAL;
+  /* Set once the registration is over, after which the priority is fixed */
+  private boolean registered;
+
+  /* The String fields registered with deduplication */
+  private final Set<String> dedupeFields = new HashSet<>();
+  /* The dictionary of canonical values for each deduplicated String field,
+     null for all the other fields */
+  private final List<ConcurrentMap<String, String>> dictionaries;
+
+  /* The fields registered with an index by name, true for a sorted index */
+  private final Map<String, Boolean> indexedFields = new HashMap<>();
+  /* The index of each indexed field from the value to the proxies having
+     that value, a ConcurrentSkipListMap for a sorted index, null for all
+     the other fields. The index of a field is changed only while holding
+     its lock. */
+  private final List<ConcurrentMap<Object, Set<ElementProxy>>> indexes;
+
+  /* The aggregates as registered, resolved once all the fields are known */
+  private final List<AggregateSpec> aggregateSpecs = new ArrayList<>();
+  /* The aggregates to be maintained by the proxies of each list field, null
+     for the fields without any aggregate */
+  private final Aggregate[][] listAggregates;
+  /* The fields aggregated by some list, on this type or on another. The
+     flags may be set on the fly by State#createAggregate, they are copied
+     and published as a whole under the aggregateSpecs, the proxies read
+     them without any lock. */
+  private volatile boolean[] aggregated;
+
+  /* The computed fields as registered by name, resolved once all the fields
+     are known */
+  private final Map<String, ComputedSpec> computedSpecs = new LinkedHashMap<>();
+  /* The function of each computed field, null for the other fields */
+  private final List<Function<ElementProxy, ?>> computations;
+  /* The bit of each computed field in the valid mask of the proxies, 0 for
+     the other fields */
+  private final long[] computedBits;
+  /* The bits of the computed fields that depend on each field */
+  private final long[] dependents;
 
   // A marker type for list representation
   private final ListType listType = new ListType();
@@ -85,26 +186,174 @@ public class ElementType implements ValueType {
    * @param elementClass The Java Class of the Element
    */
   ElementType(Class<? extends State.Element> elementClass) {
-    this.elementClass = elementClass;
-
     // there must be a static method on the Element implementation that should register
     // the element, uses Reflection to search for the method and do the registration
-    doRegister(elementClass);
+    this(elementClass, elementClass.getSimpleName(), type -> type.doRegister(elementClass));
+  }
+
+  /**
+   * Create an ElementType defined at runtime, without any Element class. The
+   * fields are registered by the given registration in the same way as done
+   * by the register method of an Element class. See
+   * {@link State#defineElementType(String, Consumer)}.
+   *
+   * @param name The name of the type
+   * @param registration Registers the fields on the type
+   */
+  ElementType(String name, Consumer<ElementType> registration) {
+    this(null, name, registration);
+  }
+
+  private ElementType(Class<? extends State.Element> elementClass, String defaultName,
+                      Consumer<ElementType> registration) {
+    this.elementClass = elementClass;
+
+    registration.accept(this);
     if (name == null) {
-      name = elementClass.getSimpleName();
+      name = defaultName;
+    }
+
+    // The aggregates are published as fields of their own after all the
+    // registered fields, so that they are not in the way of the updates
+    for(AggregateSpec spec:aggregateSpecs) {
+      register(spec.name, ValueType.DOUBLE);
+    }
+    for(ComputedSpec spec:computedSpecs.values()) {
+      register(spec.name, spec.type);
     }
 
     // Update the more efficient arrays for faster access.
     fieldNames = new String[types.size()];
     fieldTypes = new ValueType[types.size()];
+    fieldKinds = new ValueKind[types.size()];
+    dictionaries = new ArrayList<>(types.size());
+    indexes = new ArrayList<>(types.size());
+    primitiveSlots = new int[types.size()];
+    absoluteBands = new double[types.size()];
+    relativeBands = new double[types.size()];
+    listAggregates = new Aggregate[types.size()][];
+    aggregated = new boolean[types.size()];
+    computations = new ArrayList<>(Collections.nCopies(types.size(), (Function<ElementProxy, ?>) null));
+    computedBits = new long[types.size()];
+    dependents = new long[types.size()];
+    List<Long> empty = new ArrayList<>();
 
     int i=0;
     for(Map.Entry<String, ValueType> entry:types.entrySet()) {
       fieldNames[i] = entry.getKey();
       fieldTypes[i] = entry.getValue();
+      fieldKinds[i] = ValueKind.of(entry.getValue());
+      dictionaries.add(dedupeFields.contains(entry.getKey()) ? new ConcurrentHashMap<>() : null);
+      Boolean sorted = indexedFields.get(entry.getKey());
+      if (sorted != null) {
+        assert(!fieldKinds[i].isReference()):"The field " + entry.getKey()
+                + " of " + name + " refers to other Elements and cannot be indexed";
+        indexes.add(sorted ? new ConcurrentSkipListMap<>() : new ConcurrentHashMap<>());
+      } else {
+        indexes.add(null);
+      }
+      primitiveSlots[i] = -1;
+      // The computed values are cached as they are computed
+      if (!computedSpecs.containsKey(entry.getKey()) && (fieldKinds[i] == ValueKind.DATE
+              || fieldKinds[i] == ValueKind.FLOAT || fieldKinds[i] == ValueKind.DOUBLE)) {
+        primitiveSlots[i] = empty.size();
+        empty.add(ElementProxy.emptyPrimitive(fieldKinds[i]));
+      }
+
+      double[] band = deadBands.get(entry.getKey());
+      if (band != null) {
+        absoluteBands[i] = band[0];
+        relativeBands[i] = band[1];
+      }
 
       i += 1;
     }
+
+    emptyPrimitives = new long[empty.size()];
+    for(int slot=0; slot<emptyPrimitives.length; ++slot) {
+      emptyPrimitives[slot] = empty.get(slot);
+    }
+    proxyBytes = Footprint.proxy(types.size(), emptyPrimitives.length);
+
+    for(AggregateSpec spec:aggregateSpecs) {
+      int list = getFieldIndex(spec.list);
+      assert(fieldKinds[list] == ValueKind.LIST):"The aggregate " + spec.name
+              + " of " + name + " must be over a list field";
+
+      ElementType elementType = ((ListType) fieldTypes[list]).getElementType();
+      int field = elementType.getFieldIndex(spec.field);
+      elementType.markAggregated(field);
+
+      Aggregate aggregate = new Aggregate(spec.name, spec.function, field, getFieldIndex(spec.name));
+      Aggregate[] existing = listAggregates[list];
+      if (existing == null) {
+        listAggregates[list] = new Aggregate[] {aggregate};
+      } else {
+        listAggregates[list] = Arrays.copyOf(existing, existing.length + 1);
+        listAggregates[list][existing.length] = aggregate;
+      }
+    }
+
+    assert(computedSpecs.size() <= 64):"Only 64 computed fields are supported on " + name;
+    int bit = 0;
+    for(ComputedSpec spec:computedSpecs.values()) {
+      int field = getFieldIndex(spec.name);
+      assert(!fieldKinds[field].isReference()):"The computed field " + spec.name
+              + " of " + name + " cannot refer to other Elements";
+
+      computations.set(field, spec.function);
+      computedBits[field] = 1L << bit;
+      for(String dependency:spec.dependencies) {
+        int idx = getFieldIndex(dependency);
+        assert(!fieldKinds[idx].isReference() && computedBits[idx] == 0):"The computed field "
+                + spec.name + " of " + name + " can only depend on the value fields";
+        dependents[idx] |= computedBits[field];
+      }
+      bit += 1;
+    }
+
+    StringBuilder structure = new StringBuilder("[");
+    for(int field=0; field<fieldNames.length; ++field) {
+      if (field > 0) {
+        structure.append(',');
+      }
+      structure.append('{');
+      quote(structure, fieldNames[field]);
+      structure.append(':');
+      quote(structure, fieldTypes[field].getName());
+      structure.append('}');
+    }
+    structureJson = structure.append(']').toString();
+
+    registered = true;
+  }
+
+  // Append the text as a JSON string
+  private static void quote(StringBuilder res, String text) {
+    res.append('"');
+    for(int i=0; i<text.length(); ++i) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        res.append('\\').append(c);
+      } else if (c < 0x20) {
+        res.append(String.format("\\u%04x", (int) c));
+      } else {
+        res.append(c);
+      }
+    }
+    res.append('"');
+  }
+
+  /**
+   * The structure of the Element as a JSON array of single field objects
+   * mapping the name of each field to the name of its type, in the order of
+   * the fields. Encoded once when the type is created and shared by all the
+   * outputs.
+   *
+   * @return The JSON text
+   */
+  public String getStructureJson() {
+    return structureJson;
   }
 
   @Override
@@ -133,6 +382,56 @@ public class ElementType implements ValueType {
     this.name = name;
   }
 
+  /**
+   * Set the conflation window for the Elements of this type. All the changes
+   * made to an Element within the window are informed to the States as a
+   * single change event at the end of the window, carrying the latest
+   * values. Use it for the Elements changing much faster than the clients
+   * need to know. Should be set during the registration.
+   *
+   * @param window The length of the window, 0 to inform every change
+   * @param unit The unit of the window
+   */
+  public void setConflationWindow(long window, TimeUnit unit) {
+    this.conflationWindow = unit.toNanos(window);
+  }
+
+  /**
+   * The conflation window of this type
+   *
+   * @return The window in nanoseconds, 0 if the changes are not conflated
+   */
+  public long getConflationWindow() {
+    return conflationWindow;
+  }
+
+  /**
+   * Set the priority of the Elements of this type. The changes of the higher
+   * priority types are dispatched first by the {@link ShardedSync} and the
+   * {@link ChangePublisher}, and they come first in {@link State#getAll()}
+   * and {@link State#getLists()}. Can only be set during the registration,
+   * the {@link ShardedSync} relies on the priority of a type never changing
+   * to keep the syncs of an Element in order.
+   *
+   * @param priority The priority, {@link Priority#NORMAL} by default
+   * @throws IllegalStateException if the type has already been registered
+   */
+  public void setPriority(Priority priority) {
+    if (registered) {
+      throw new IllegalStateException("The priority of " + name + " can only be set during the registration");
+    }
+    this.priority = priority;
+  }
+
+  /**
+   * The priority of the Elements of this type
+   *
+   * @return {@link Priority}
+   */
+  public Priority getPriority() {
+    return priority;
+  }
+
   /**
    * The registration worker method, which uses reflection to search for
    * the register static method within the Element implementation and
@@ -186,6 +485,28 @@ public class ElementType implements ValueType {
     return fieldNames[index];
   }
 
+  /**
+   * Retrieve the name of the field at the given index, same as the keys of
+   * {@link #getStructure()} in order
+   *
+   * @param index The ordered position of the field
+   * @return String name of the field
+   */
+  public String getFieldName(int index) {
+    return fieldNames[index];
+  }
+
+  /**
+   * Retrieve the kind of the field at the given index, resolved once during
+   * the registration
+   *
+   * @param index The ordered position of the field
+   * @return {@link ValueKind} of the field
+   */
+  public ValueKind getFieldKind(int index) {
+    return fieldKinds[index];
+  }
+
   /**
    * Helper method for retrieving the type of the field at the given index.
    * Called from {@link ElementProxy}. Used for validation and data transfer.
@@ -193,13 +514,344 @@ public class ElementType implements ValueType {
    * @param index The ordered position of the field
    * @return {@link ValueType} of the field
    */
-  ValueType getValueType(int index) {
+  public ValueType getValueType(int index) {
     return fieldTypes[index];
   }
 
+  /**
+   * The slot of the field at the given index in the primitive storage of the
+   * proxy. The Date fields are kept as epoch millis and the Float and Double
+   * fields as their bits in a {@code long[]} instead of the value array.
+   *
+   * @param index The ordered position of the field
+   * @return The slot or -1 if the field is not stored as a primitive
+   */
+  int getPrimitiveSlot(int index) {
+    return primitiveSlots[index];
+  }
+
+  /**
+   * Create the primitive storage for a new proxy, with all values empty
+   *
+   * @return The primitive storage
+   */
+  long[] newPrimitives() {
+    return emptyPrimitives.length == 0 ? emptyPrimitives : emptyPrimitives.clone();
+  }
+
+  /**
+   * Check if the new value of the Float or Double field at the given index
+   * is within the dead-band around the current value, in which case the
+   * value is not considered to be changed
+   *
+   * @param index The ordered position of the field
+   * @param current The current value
+   * @param value The new value
+   * @return {@code true} if the new value is within the dead-band
+   */
+  boolean isWithinDeadBand(int index, double current, double value) {
+    double diff = Math.abs(value - current);
+    return diff <= absoluteBands[index] || diff <= relativeBands[index] * Math.abs(current);
+  }
+
+  /**
+   * Check if the field at the given index has a dead-band
+   *
+   * @param index The ordered position of the field
+   * @return {@code true} if a tolerance was given during registration
+   */
+  boolean hasDeadBand(int index) {
+    return absoluteBands[index] > 0 || relativeBands[index] > 0;
+  }
+
+  /**
+   * Find out the canonical instance of the given String value for the field
+   * at the given index. Equal values of a field registered with
+   * {@link #registerString(String, boolean)} deduplication share the same
+   * instance, the value itself is returned for any other field.
+   *
+   * @param index The ordered position of the field
+   * @param value The String value, not {@code null}
+   * @return The canonical instance equal to the value
+   */
+  String canonical(int index, String value) {
+    ConcurrentMap<String, String> dictionary = dictionaries.get(index);
+    if (dictionary == null) {
+      return value;
+    }
+
+    String existing = dictionary.get(value);
+    if (existing == null) {
+      existing = dictionary.putIfAbsent(value, value);
+      if (existing == null) {
+        existing = value;
+      }
+    }
+    return existing;
+  }
+
+  /**
+   * Check if the field at the given index deduplicates its String values
+   *
+   * @param index The ordered position of the field
+   * @return {@code true} if the values of the field are deduplicated
+   */
+  boolean isDeduplicated(int index) {
+    return dictionaries.get(index) != null;
+  }
+
+  /**
+   * The bit of the computed field at the given index in the valid mask kept
+   * by the proxies
+   *
+   * @param index The ordered position of the field
+   * @return The bit or 0 if the field is not computed
+   */
+  long getComputedBit(int index) {
+    return computedBits[index];
+  }
+
+  /**
+   * The bits of the computed fields that need to be computed again when the
+   * field at the given index changes
+   *
+   * @param index The ordered position of the field
+   * @return The bits of the dependent computed fields, 0 for none
+   */
+  long getDependents(int index) {
+    return dependents[index];
+  }
+
+  /**
+   * Compute the value of the computed field at the given index
+   *
+   * @param index The ordered position of the computed field
+   * @param proxy The proxy to compute the value for
+   * @return The computed value
+   */
+  Object compute(int index, ElementProxy proxy) {
+    return computations.get(index).apply(proxy);
+  }
+
+  /**
+   * Check if the field at the given index is indexed
+   *
+   * @param index The ordered position of the field
+   * @return {@code true} if the field was registered with an index
+   */
+  boolean isIndexed(int index) {
+    return indexes.get(index) != null;
+  }
+
+  /**
+   * Move the given proxy within the index of the field at the given index
+   * from its old value to its new value. Called by the proxy whenever the
+   * value of an indexed field changes.
+   *
+   * @param proxy The proxy whose value has changed
+   * @param index The ordered position of the field
+   * @param oldValue The previous value, {@code null} if it was not indexed
+   * @param newValue The new value, {@code null} to not index the proxy
+   */
+  void reindex(ElementProxy proxy, int index, Object oldValue, Object newValue) {
+    ConcurrentMap<Object, Set<ElementProxy>> fieldIndex = indexes.get(index);
+    synchronized (fieldIndex) {
+      if (oldValue != null) {
+        Set<ElementProxy> proxies = fieldIndex.get(oldValue);
+        if (proxies != null) {
+          proxies.remove(proxy);
+          if (proxies.isEmpty()) {
+            fieldIndex.remove(oldValue);
+          }
+        }
+      }
+
+      if (newValue != null) {
+        Set<ElementProxy> proxies = fieldIndex.get(newValue);
+        if (proxies == null) {
+          proxies = ConcurrentHashMap.newKeySet();
+          fieldIndex.put(newValue, proxies);
+        }
+        proxies.add(proxy);
+      }
+    }
+  }
+
+  /**
+   * Find all the proxies of this type whose given field has the given value,
+   * without going through all the proxies. The field must have been
+   * registered with {@link #addIndex(String)} or
+   * {@link #addSortedIndex(String)}. The numbers are looked up as the type
+   * of the field, an Integer finds a Long field, and the Date values by
+   * their epoch millis, a {@link Date} is converted.
+   *
+   * @param field The name of the field
+   * @param value The value to look for, not {@code null}
+   * @return A copy of the proxies with the value as they were found, the
+   *         later changes are not reflected
+   */
+  public Set<ElementProxy> findByValue(String field, Object value) {
+    int idx = getIndexedField(field);
+    Set<ElementProxy> proxies = indexes.get(idx).get(indexKey(fieldKinds[idx], value));
+    if (proxies == null) {
+      return Collections.emptySet();
+    }
+    // The set goes away from the index once it is empty, it can't be
+    // handed out as a view
+    return Collections.unmodifiableSet(new HashSet<>(proxies));
+  }
+
+  /**
+   * Find all the proxies of this type whose given field is within the given
+   * range, in the order of the values. The field must have been registered
+   * with {@link #addSortedIndex(String)}.
+   *
+   * @param field The name of the field
+   * @param from The lowest value, inclusive, {@code null} for no lower bound
+   * @param to The highest value, exclusive, {@code null} for no upper bound
+   * @return The proxies within the range
+   */
+  @SuppressWarnings("unchecked")
+  public List<ElementProxy> findInRange(String field, Object from, Object to) {
+    int idx = getIndexedField(field);
+    ConcurrentMap<Object, Set<ElementProxy>> fieldIndex = indexes.get(idx);
+    assert(fieldIndex instanceof NavigableMap):"The field " + field + " of "
+            + name + " doesn't have a sorted index";
+
+    // The bounds are compared with the keys, they must be of the same type
+    ValueKind kind = fieldKinds[idx];
+    NavigableMap<Object, Set<ElementProxy>> range = (NavigableMap<Object, Set<ElementProxy>>) fieldIndex;
+    if (from != null && to != null) {
+      range = range.subMap(indexKey(kind, from), true, indexKey(kind, to), false);
+    } else if (from != null) {
+      range = range.tailMap(indexKey(kind, from), true);
+    } else if (to != null) {
+      range = range.headMap(indexKey(kind, to), false);
+    }
+
+    List<ElementProxy> res = new ArrayList<>();
+    for(Set<ElementProxy> proxies:range.values()) {
+      res.addAll(proxies);
+    }
+    return res;
+  }
+
+  // The position of the indexed field with the given name
+  private int getIndexedField(String field) {
+    int idx = getFieldIndex(field);
+    assert(indexes.get(idx) != null):"The field " + field + " of " + name + " is not indexed";
+    return idx;
+  }
+
+  /**
+   * Find the ordered position of the field with the given name, as used by
+   * a {@link DynamicFeed}
+   *
+   * @param field The name of the field
+   * @return The index of the field
+   * @throws IllegalArgumentException if there is no such field
+   */
+  public int getFieldIndex(String field) {
+    for(int i=0; i<fieldNames.length; ++i) {
+      if (fieldNames[i].equals(field)) {
+        return i;
+      }
+    }
+
+    throw new IllegalArgumentException("No field " + field + " on " + name);
+  }
+
+  /**
+   * Mark the numeric field at the given index as aggregated by a list, so
+   * that the proxies inform their lists when its value changes
+   *
+   * @param index The ordered position of the field
+   */
+  void markAggregated(int index) {
+    ValueKind kind = fieldKinds[index];
+    assert(kind == ValueKind.BYTE || kind == ValueKind.SHORT || kind == ValueKind.INTEGER
+            || kind == ValueKind.LONG || kind == ValueKind.FLOAT || kind == ValueKind.DOUBLE)
+            :"The field " + fieldNames[index] + " of " + name + " is not numeric";
+    assert(computedBits[index] == 0):"The computed field " + fieldNames[index]
+            + " of " + name + " cannot be aggregated";
+    synchronized (aggregateSpecs) {
+      if (!aggregated[index]) {
+        boolean[] updated = Arrays.copyOf(aggregated, aggregated.length);
+        updated[index] = true;
+        aggregated = updated;
+      }
+    }
+  }
+
+  /**
+   * Check if the field at the given index is aggregated by any list
+   *
+   * @param index The ordered position of the field
+   * @return {@code true} if the field is aggregated
+   */
+  boolean isAggregated(int index) {
+    return aggregated[index];
+  }
+
+  /**
+   * The aggregates to be maintained over the list field at the given index
+   *
+   * @param index The ordered position of the list field
+   * @return The aggregates as registered or {@code null} if there are none
+   */
+  Aggregate[] getListAggregates(int index) {
+    return listAggregates[index];
+  }
+
+  // The value as it is kept on the proxies of a field of the given kind,
+  // the Dates as epoch millis and the numbers boxed as the field is
+  private static Object indexKey(ValueKind kind, Object value) {
+    if (value instanceof Date) {
+      return ((Date) value).getTime();
+    } else if (!(value instanceof Number)) {
+      return value;
+    }
+
+    Number number = (Number) value;
+    switch(kind) {
+      case BYTE: return number.byteValue();
+      case SHORT: return number.shortValue();
+      case INTEGER: return number.intValue();
+      case LONG:
+      case DATE: return number.longValue();
+      case FLOAT: return number.floatValue();
+      case DOUBLE: return number.doubleValue();
+      default: return value;
+    }
+  }
+
+  /**
+   * The name this type is registered by, unique among all the types. The
+   * fully qualified name of the Element class, or the name of a type defined
+   * at runtime. Used by the {@link StateReplicator} and the
+   * {@link StateFollower} to match the types.
+   *
+   * @return The registered name
+   */
+  String getRegisteredName() {
+    return elementClass == null ? name : elementClass.getName();
+  }
+
+  /**
+   * The type of the Elements referred to by the reference or the list field
+   * at the given index
+   *
+   * @param index The ordered position of the field
+   * @return The referred type
+   */
+  ElementType getReferredType(int index) {
+    ValueType valueType = fieldTypes[index];
+    return valueType instanceof ListType ? ((ListType) valueType).getElementType() : (ElementType) valueType;
+  }
+
   /**
    * Get the Element java class for this type
-   * @return Java Class for this type
+   * @return Java Class for this type, {@code null} for a type defined at runtime
    */
   Class<? extends State.Element> getElementClass() {
     return elementClass;
@@ -214,7 +866,31 @@ public class ElementType implements ValueType {
    * @return The {@link ElementProxy} of the element or {@code null} if not found
    */
   ElementProxy findProxy(State.Element element) {
-    return ALL_PROXIES.get(element.getId());
+    ElementProxy proxy = ALL_PROXIES.get(element.getId());
+    if (proxy != null) {
+      proxy.awaitPopulated();
+    }
+    return proxy;
+  }
+
+  /**
+   * Find the stored proxy with the given id
+   *
+   * @param id The id of the element
+   * @return The {@link ElementProxy} or {@code null} if not found
+   */
+  ElementProxy findProxy(Long id) {
+    return ALL_PROXIES.get(id);
+  }
+
+  /**
+   * Check if this type was defined at runtime without an Element class
+   *
+   * @return {@code true} for a type defined with
+   *         {@link State#defineElementType(String, Consumer)}
+   */
+  public boolean isDynamic() {
+    return elementClass == null;
   }
 
   /**
@@ -230,19 +906,231 @@ public class ElementType implements ValueType {
   ElementProxy createProxy(ElementProxyOwner owner, State.Element element) {
     assert(element.getClass() == elementClass);
 
-    ElementProxy proxy = ALL_PROXIES.get(element.getId());
-    if (proxy == null) {
-      proxy = new ElementProxy(element, this, fieldNames.length);
-      // When the proxy is created for the first time, update it
-      element.updateProxy(proxy);
-      ALL_PROXIES.put(element.getId(), proxy);
+    while(true) {
+      ElementProxy proxy = ALL_PROXIES.get(element.getId());
+      if (proxy == null) {
+        // The proxy is made available before it is updated, so that a circular
+        // reference back to this element finds it instead of creating another,
+        // and only the thread that wins the race updates it
+        ElementProxy created = new ElementProxy(element, this, fieldNames.length);
+        proxy = ALL_PROXIES.putIfAbsent(element.getId(), created);
+        if (proxy == null) {
+          proxy = created;
+          account(proxyBytes);
+          // When the proxy is created for the first time, update it
+          proxy.populate(element);
+        }
+      }
+
+      // The threads losing the race only get hold of the proxy once the
+      // winner has populated it
+      proxy.awaitPopulated();
+
+      if (proxy.tryAddOwner(owner)) {
+        return proxy;
+      }
+
+      // Condemned by the collector, make way for a new proxy
+      ALL_PROXIES.remove(element.getId(), proxy);
     }
+  }
+
+  /**
+   * Creates a Proxy for the element with the given id, when the element itself
+   * is not available. If a proxy already exists the existing proxy is
+   * returned. The ownership is added each time this method is called.
+   *
+   * @param owner The owner which is trying to own this element
+   * @param id The id of the element
+   * @return {@link ElementProxy} of the element
+   */
+  ElementProxy createProxy(ElementProxyOwner owner, Long id) {
+    while(true) {
+      ElementProxy proxy = findOrCreateProxy(id);
+      if (proxy.tryAddOwner(owner)) {
+        return proxy;
+      }
+
+      ALL_PROXIES.remove(id, proxy);
+    }
+  }
+
+  /**
+   * Find the proxy with the given id, creating an empty one (without any
+   * owner) if its not available yet. Used by {@link StateFollower} where
+   * the values of a proxy may arrive before it is owned by anyone.
+   *
+   * @param id The id of the element
+   * @return {@link ElementProxy} of the element
+   */
+  ElementProxy findOrCreateProxy(Long id) {
+    ElementProxy proxy = ALL_PROXIES.get(id);
+    while(proxy == null || proxy.isCondemned()) {
+      if (proxy != null) {
+        ALL_PROXIES.remove(id, proxy);
+      }
 
-    proxy.addOwner(owner);
+      ElementProxy created = new ElementProxy(id, this, fieldNames.length);
+      proxy = ALL_PROXIES.putIfAbsent(id, created);
+      if (proxy == null) {
+        proxy = created;
+        account(proxyBytes);
+      }
+    }
 
     return proxy;
   }
 
+  /**
+   * All the proxies of this type currently available, for the
+   * {@link ProxyCollector} to go through
+   *
+   * @return A weakly consistent view of the proxies
+   */
+  Collection<ElementProxy> getProxies() {
+    return ALL_PROXIES.values();
+  }
+
+  /**
+   * Release a condemned proxy, so that it is no longer found by its id. A
+   * later sync of its element creates a new proxy.
+   *
+   * @param proxy The proxy condemned by the {@link ProxyCollector}
+   */
+  void release(ElementProxy proxy) {
+    ALL_PROXIES.remove(proxy.getId(), proxy);
+    proxy.release();
+
+    synchronized (ordinals) {
+      if (ordinals.releasingCount == ordinals.releasing.length) {
+        ordinals.releasing = Arrays.copyOf(ordinals.releasing, Math.max(8, ordinals.releasingCount * 2));
+      }
+      ordinals.releasing[ordinals.releasingCount++] = proxy.getOrdinal();
+    }
+  }
+
+  /**
+   * The approximate number of bytes retained by all the proxies of this type
+   * and the lists holding them. Only the structures of the library are
+   * accounted, not the values held by the fields.
+   *
+   * @return The bytes
+   */
+  public long getRetainedBytes() {
+    return retainedBytes.get();
+  }
+
+  /**
+   * Account the given bytes to this type
+   *
+   * @param bytes The bytes allocated, negative for the bytes released
+   */
+  void account(long bytes) {
+    retainedBytes.addAndGet(bytes);
+    Footprint.add(bytes);
+  }
+
+  /**
+   * The bytes of a proxy of this type without any owner
+   *
+   * @return The bytes
+   */
+  long getProxyBytes() {
+    return proxyBytes;
+  }
+
+  /**
+   * The dense index of this type among all the ElementTypes
+   *
+   * @return The index starting from 0
+   */
+  int getIndex() {
+    return index;
+  }
+
+  /**
+   * Assign the next ordinal to a newly created proxy of this type. The
+   * ordinals are dense, so that the visited proxies can be kept in a bitmap
+   * during the traversals. An ordinal given up by a released proxy is
+   * reused once it has been recycled.
+   *
+   * @return The ordinal for the proxy
+   */
+  int nextOrdinal() {
+    synchronized (ordinals) {
+      if (ordinals.freeCount > 0) {
+        return ordinals.free[--ordinals.freeCount];
+      }
+      return ordinals.next++;
+    }
+  }
+
+  /**
+   * The number of distinct ordinals assigned so far, every proxy of this
+   * type has an ordinal below it. Stays close to the largest number of
+   * proxies alive at the same time, as the ordinals are reused. Mainly for
+   * monitoring.
+   *
+   * @return The upper bound of the ordinals, exclusive
+   */
+  public int getOrdinalBound() {
+    synchronized (ordinals) {
+      return ordinals.next;
+    }
+  }
+
+  /**
+   * Make the ordinals of the released proxies available for the new proxies.
+   * Called by the {@link ProxyCollector} at the end of every cycle. Nothing
+   * is recycled while any traversal marking the proxies by their ordinals is
+   * under way, as it may have marked a released proxy. A traversal starting
+   * later can't reach a released proxy any more.
+   */
+  void recycleOrdinals() {
+    synchronized (ordinals) {
+      if (TRAVERSALS.get() > 0) {
+        return;
+      }
+
+      ordinals.free = append(ordinals.free, ordinals.freeCount, ordinals.releasing, ordinals.releasingCount);
+      ordinals.freeCount += ordinals.releasingCount;
+      ordinals.releasingCount = 0;
+    }
+  }
+
+  /**
+   * Let the types know that a traversal marking the proxies by their
+   * ordinals is starting, it must be followed by {@link #endTraversal()}
+   */
+  static void beginTraversal() {
+    TRAVERSALS.incrementAndGet();
+  }
+
+  /**
+   * Let the types know that a traversal started with
+   * {@link #beginTraversal()} is over
+   */
+  static void endTraversal() {
+    TRAVERSALS.decrementAndGet();
+  }
+
+  private static int[] append(int[] target, int count, int[] source, int sourceCount) {
+    if (count + sourceCount > target.length) {
+      target = Arrays.copyOf(target, Math.max(count + sourceCount, target.length * 2));
+    }
+    System.arraycopy(source, 0, target, count, sourceCount);
+    return target;
+  }
+
+  /**
+   * The number of fields registered for this type
+   *
+   * @return The field count
+   */
+  public int getFieldCount() {
+    return fieldTypes.length;
+  }
+
   // Registration methods for defining the structure of the Element
 
   /**
@@ -289,6 +1177,90 @@ public class ElementType implements ValueType {
     register(name, ValueType.STRING);
   }
 
+  /**
+   * Register a field of type {@link String}, optionally deduplicating its
+   * values. Use deduplication for fields with only a few distinct values,
+   * like units or status, all the equal values of the field across all
+   * the proxies then share a single instance. Every distinct value is
+   * kept for as long as the ElementType lives.
+   *
+   * @param name The name of the field
+   * @param dedupe {@code true} to deduplicate the values
+   */
+  public void registerString(String name, boolean dedupe) {
+    register(name, ValueType.STRING);
+    if (dedupe) {
+      dedupeFields.add(name);
+    }
+  }
+
+  /**
+   * Index the already registered field with the given name, so that the
+   * proxies can be looked up by its value with
+   * {@link #findByValue(String, Object)}. The {@code null} values are not
+   * indexed. Only the fields holding values can be indexed, not the
+   * references or the lists.
+   *
+   * @param name The name of the field
+   */
+  public void addIndex(String name) {
+    assert(types.containsKey(name)):"The field " + name + " must be registered before indexing";
+    assert(!computedSpecs.containsKey(name)):"The computed field " + name + " cannot be indexed";
+    indexedFields.put(name, false);
+  }
+
+  /**
+   * Index the already registered field with the given name in the order of
+   * its values, so that the proxies can also be looked up by a range with
+   * {@link #findInRange(String, Object, Object)}. The values of the field
+   * must be {@link Comparable} among themselves.
+   *
+   * @param name The name of the field
+   */
+  public void addSortedIndex(String name) {
+    assert(types.containsKey(name)):"The field " + name + " must be registered before indexing";
+    assert(!computedSpecs.containsKey(name)):"The computed field " + name + " cannot be indexed";
+    indexedFields.put(name, true);
+  }
+
+  /**
+   * Register an aggregate over a numeric field of the Elements in a list
+   * field of this Element. The aggregate is maintained incrementally and
+   * published as a {@link Double} field with the given name, which comes
+   * after all the other fields and is not updated by the Element.
+   *
+   * @param name The name of the aggregate field
+   * @param list The name of the list field
+   * @param field The name of the numeric field on the Elements of the list
+   * @param function The aggregate function
+   */
+  public void registerAggregate(String name, String list, String field, Aggregate.Function function) {
+    aggregateSpecs.add(new AggregateSpec(name, list, field, function));
+  }
+
+  /**
+   * Register a field whose value is computed from the other fields of the
+   * Element, like a label or a status derived from thresholds. The value is
+   * computed only when it is read (or serialized), and then cached on the
+   * proxy until one of the given dependencies changes. The field comes after
+   * all the other fields and is not updated by the Element.
+   *
+   * <p>
+   *   The function must only use the values of the proxy given to it, the
+   *   Dates are cached as their epoch millis.
+   * </p>
+   *
+   * @param name The name of the field
+   * @param type The type of the computed value, one of the generic types in
+   *             {@link ValueType}
+   * @param function The function computing the value from the proxy
+   * @param dependencies The names of the fields the value is computed from
+   */
+  public void registerComputed(String name, ValueType type, Function<ElementProxy, ?> function,
+                               String... dependencies) {
+    computedSpecs.put(name, new ComputedSpec(name, type, function, dependencies));
+  }
+
   /**
    * Register a field of type {@link Boolean}
    * @param name The name of the field
@@ -314,7 +1286,37 @@ public class ElementType implements ValueType {
   }
 
   /**
-   * Register a field of type {@link Date}
+   * Register a field of type {@link Float} with a dead-band. A new value is
+   * considered to be a change only when it moves away from the current
+   * value by more than the absolute tolerance and by more than the relative
+   * tolerance (as a fraction of the current value). Use 0 for a tolerance
+   * that is not needed.
+   *
+   * @param name The name of the field
+   * @param absolute The absolute tolerance
+   * @param relative The relative tolerance, e.g. 0.01 for 1%
+   */
+  public void registerFloat(String name, double absolute, double relative) {
+    register(name, ValueType.FLOAT);
+    deadBands.put(name, new double[] {absolute, relative});
+  }
+
+  /**
+   * Register a field of type {@link Double} with a dead-band. See
+   * {@link #registerFloat(String, double, double)} for the tolerances.
+   *
+   * @param name The name of the field
+   * @param absolute The absolute tolerance
+   * @param relative The relative tolerance, e.g. 0.01 for 1%
+   */
+  public void registerDouble(String name, double absolute, double relative) {
+    register(name, ValueType.DOUBLE);
+    deadBands.put(name, new double[] {absolute, relative});
+  }
+
+  /**
+   * Register a field of type {@link Date}. The value is kept on the proxy as
+   * its epoch millis and serialized as a number.
    * @param name The name of the field
    */
   public void registerDate(String name) {
@@ -343,10 +1345,79 @@ public class ElementType implements ValueType {
     register(name, type.getListType());
   }
 
+  /**
+   * Register a reference to another {@link State.Element} of the given type,
+   * mainly for referring to the types defined at runtime
+   *
+   * @param name The name of the field
+   * @param elementType The type of the referenced Element
+   */
+  public void registerReference(String name, ElementType elementType) {
+    register(name, elementType);
+  }
+
+  /**
+   * Register a field of type list of {@link State.Element}s of the given
+   * type, mainly for the lists of the types defined at runtime
+   *
+   * @param name The name of the field
+   * @param elementType The type of the Elements that the list is made up of
+   */
+  public void registerList(String name, ElementType elementType) {
+    register(name, elementType.getListType());
+  }
+
   /* The actual registration type */
   private void register(String name, ValueType type) {
     //TODO Make sure the type is not registered more than once
     types.put(name, type);
   }
 
+  /**
+   * An aggregate as registered, by the names of the fields
+   */
+  private static class AggregateSpec {
+    private final String name;
+    private final String list;
+    private final String field;
+    private final Aggregate.Function function;
+
+    AggregateSpec(String name, String list, String field, Aggregate.Function function) {
+      this.name = name;
+      this.list = list;
+      this.field = field;
+      this.function = function;
+    }
+  }
+
+  /**
+   * A computed field as registered
+   */
+  /**
+   * The ordinals of the proxies of a type
+   */
+  private static class Ordinals {
+    /* The next ordinal never assigned so far */
+    private int next;
+    /* Ready to be reused */
+    private int[] free = new int[0];
+    private int freeCount;
+    /* Released since they were last recycled */
+    private int[] releasing = new int[0];
+    private int releasingCount;
+  }
+
+  private static class ComputedSpec {
+    private final String name;
+    private final ValueType type;
+    private final Function<ElementProxy, ?> function;
+    private final String[] dependencies;
+
+    ComputedSpec(String name, ValueType type, Function<ElementProxy, ?> function, String[] dependencies) {
+      this.name = name;
+      this.type = type;
+      this.function = function;
+      this.dependencies = dependencies;
+    }
+  }
 }
@@ -0,0 +1,68 @@
+package net.symplifier.lib.state;
+
+/**
+ * The approximate sizes of the structures kept by the library, assuming a
+ * 64 bit JVM with compressed references. The values held by the fields are
+ * not included, only the slots for them.
+ *
+ * <p>
+ *   The bytes of all the ElementTypes are also added up here for each
+ *   thread. A {@link State} finds out how much a seed entry has pulled in
+ *   from the bytes accounted on its own thread while the entry was created,
+ *   which the other threads creating proxies at the same time don't get
+ *   into.
+ * </p>
+ */
+final class Footprint {
+
+  /* An ElementProxy with its boxed id and its two inline owners */
+  static final int PROXY = 128;
+  /* The number of owners kept in arrays before moving to a map */
+  static final int OWNER_ARRAY_LENGTH = 8;
+  /* The owner and the count arrays of a proxy */
+  static final int OWNER_ARRAYS = 96;
+  /* The identity map of owners of a proxy, with its initial table */
+  static final int OWNER_MAP = 320;
+  /* An entry in the owner map with its count */
+  static final int OWNER_ENTRY = 24;
+  /* An ElementListProxy with its PositionTree */
+  static final int LIST = 96;
+  /* A node of the PositionTree */
+  static final int LIST_NODE = 32;
+
+  /* The bytes accounted by all the ElementTypes on each thread */
+  private static final ThreadLocal<long[]> ACCOUNTED = ThreadLocal.withInitial(() -> new long[1]);
+
+  private Footprint() {
+  }
+
+  /**
+   * The size of a proxy of the given shape without any owner
+   *
+   * @param fields The number of value slots
+   * @param primitives The number of primitive slots
+   * @return The bytes
+   */
+  static long proxy(int fields, int primitives) {
+    return PROXY + array(fields, 4) + array(primitives, 8);
+  }
+
+  private static long array(int length, int slot) {
+    // The header and the padding to 8 bytes
+    return (16 + (long) length * slot + 7) & ~7L;
+  }
+
+  static void add(long bytes) {
+    ACCOUNTED.get()[0] += bytes;
+  }
+
+  /**
+   * The bytes accounted on the current thread so far, the difference between
+   * two readings is what the thread has accounted in between
+   *
+   * @return The running total of the thread
+   */
+  static long accounted() {
+    return ACCOUNTED.get()[0];
+  }
+}
@@ -0,0 +1,170 @@
+package net.symplifier.lib.state;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A window over a range of positions of a list, for a client that only shows
+ * a page of a very long list. The client receives only the proxies within
+ * its window, and the shifts of the positions when the elements are
+ * inserted or removed before or within the window.
+ *
+ * <p>
+ *   Open a window with {@link ElementList#openWindow(int, int, Listener)},
+ *   the current content is delivered right away through
+ *   {@link Listener#onReset(List)}. The listener is invoked on the thread
+ *   changing the list.
+ * </p>
+ */
+public class ListWindow {
+
+  /**
+   * Receives the changes within the window. The positions are relative to
+   * the start of the window.
+   */
+  public interface Listener {
+
+    /**
+     * The whole content of the window, when it is opened, moved or the list
+     * is cleared
+     *
+     * @param proxies The proxies within the window in order
+     */
+    void onReset(List<ElementProxy> proxies);
+
+    /**
+     * The elements from the given position to the end of the window have
+     * moved by the given delta. With +1 the last element leaves the window,
+     * with -1 the element at the position leaves the window. The element
+     * arriving at the vacated position, if any, follows with
+     * {@link #onEntered(int, ElementProxy)}.
+     *
+     * @param position The first position that moved
+     * @param delta +1 or -1
+     */
+    void onShifted(int position, int delta);
+
+    /**
+     * An element has arrived at, or replaced the element at, the given
+     * position
+     *
+     * @param position The position within the window
+     * @param proxy The proxy of the element
+     */
+    void onEntered(int position, ElementProxy proxy);
+  }
+
+  private final ElementListProxy list;
+  private final Listener listener;
+  private final int limit;
+  private int offset;
+
+  ListWindow(ElementListProxy list, int offset, int limit, Listener listener) {
+    assert(offset >= 0 && limit > 0):"Invalid window";
+    this.list = list;
+    this.offset = offset;
+    this.limit = limit;
+    this.listener = listener;
+  }
+
+  /**
+   * The position of the first element of the window within the list
+   *
+   * @return The offset
+   */
+  public synchronized int getOffset() {
+    return offset;
+  }
+
+  /**
+   * The size of the window
+   *
+   * @return The maximum number of elements in the window
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Retrieve the proxies currently within the window
+   *
+   * @return The proxies in order
+   */
+  public synchronized List<ElementProxy> getProxies() {
+    return list.getRange(offset, limit);
+  }
+
+  /**
+   * Move the window to start at the given position, the new content is
+   * delivered through {@link Listener#onReset(List)}
+   *
+   * @param offset The position of the first element of the window
+   */
+  public synchronized void moveTo(int offset) {
+    assert(offset >= 0):"Invalid offset";
+    this.offset = offset;
+    listener.onReset(getProxies());
+  }
+
+  /**
+   * Stop receiving the changes
+   */
+  public void close() {
+    list.closeWindow(this);
+  }
+
+  // An element has been inserted in the list at the given index
+  synchronized void inserted(int index) {
+    if (index >= offset + limit || offset >= list.size()) {
+      // Beyond the window, or the window is still empty
+      return;
+    }
+
+    // An insertion before the window brings in the element before it
+    int position = Math.max(0, index - offset);
+    listener.onShifted(position, 1);
+    listener.onEntered(position, list.get(offset + position));
+  }
+
+  // An element has been removed from the list at the given index
+  synchronized void removed(int index) {
+    if (index >= offset + limit || offset > list.size()) {
+      // Beyond the window, or the window was empty
+      return;
+    }
+
+    listener.onShifted(Math.max(0, index - offset), -1);
+    int last = offset + limit - 1;
+    if (last < list.size()) {
+      listener.onEntered(limit - 1, list.get(last));
+    }
+  }
+
+  // The element at the given index has been replaced
+  synchronized void replaced(int index) {
+    if (index >= offset && index < offset + limit) {
+      listener.onEntered(index - offset, list.get(index));
+    }
+  }
+
+  // The list has changed all together
+  synchronized void reset() {
+    listener.onReset(getProxies());
+  }
+
+  /**
+   * The proxies within the given range of the list
+   *
+   * @param proxies The iterator positioned at the start of the range
+   * @param limit The maximum number of proxies
+   * @return The proxies
+   */
+  static List<ElementProxy> collect(Iterator<ElementProxy> proxies, int limit) {
+    List<ElementProxy> res = new ArrayList<>(limit);
+    while(res.size() < limit && proxies.hasNext()) {
+      res.add(proxies.next());
+    }
+    return res;
+  }
+}
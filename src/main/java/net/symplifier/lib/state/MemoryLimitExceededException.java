@@ -0,0 +1,27 @@
+package net.symplifier.lib.state;
+
+/**
+ * Thrown when an Element added to a seed list would take the {@link State}
+ * beyond its hard memory limit (see {@link State#setMemoryLimits(long, long)}).
+ * The Element is not added.
+ */
+public class MemoryLimitExceededException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long retainedBytes;
+
+  public MemoryLimitExceededException(String message, long retainedBytes) {
+    super(message);
+    this.retainedBytes = retainedBytes;
+  }
+
+  /**
+   * The bytes that the State would have retained with the Element
+   *
+   * @return The bytes
+   */
+  public long getRetainedBytes() {
+    return retainedBytes;
+  }
+}
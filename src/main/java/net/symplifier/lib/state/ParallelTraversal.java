@@ -0,0 +1,126 @@
+package net.symplifier.lib.state;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The task behind {@link State#getAll(java.util.concurrent.ForkJoinPool)}.
+ * Each task walks the graph from its share of the proxies with its own
+ * stack and collects what it finds in its own buckets. The proxies are
+ * claimed through a concurrent visited set, so every proxy ends up in
+ * exactly one bucket. The long lists found on the way are split off as new
+ * tasks, and the buckets are merged when the tasks are joined.
+ */
+class ParallelTraversal extends RecursiveTask<Map<ElementType, List<ElementProxy>>> {
+
+  private static final long serialVersionUID = 1L;
+
+  /* The number of proxies a task starts with before it is split further */
+  static final int THRESHOLD = 512;
+
+  private final ElementProxy[] proxies;
+  private final int from;
+  private final int to;
+  private final Set<ElementProxy> visited;
+
+  /**
+   * Create a task for the given range of proxies, all of which must already
+   * be claimed on the visited set
+   *
+   * @param proxies The proxies to start with
+   * @param from The start index, inclusive
+   * @param to The end index, exclusive
+   * @param visited The visited set shared by all the tasks
+   */
+  ParallelTraversal(ElementProxy[] proxies, int from, int to, Set<ElementProxy> visited) {
+    this.proxies = proxies;
+    this.from = from;
+    this.to = to;
+    this.visited = visited;
+  }
+
+  /**
+   * Create a visited set to be shared by the tasks of one traversal
+   *
+   * @return A concurrent set
+   */
+  static Set<ElementProxy> createVisitedSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<>());
+  }
+
+  @Override
+  protected Map<ElementType, List<ElementProxy>> compute() {
+    if (to - from > THRESHOLD) {
+      int mid = (from + to) >>> 1;
+      ParallelTraversal left = new ParallelTraversal(proxies, from, mid, visited);
+      left.fork();
+      Map<ElementType, List<ElementProxy>> res = new ParallelTraversal(proxies, mid, to, visited).compute();
+      merge(res, left.join());
+      return res;
+    }
+
+    Map<ElementType, List<ElementProxy>> buckets = new HashMap<>();
+    List<ParallelTraversal> forked = new ArrayList<>();
+    ArrayDeque<ElementProxy> stack = new ArrayDeque<>();
+    for(int i=from; i<to; ++i) {
+      stack.push(proxies[i]);
+    }
+
+    while(!stack.isEmpty()) {
+      ElementProxy proxy = stack.pop();
+      bucket(buckets, proxy.getType()).add(proxy);
+
+      ElementType type = proxy.getType();
+      for(int i=0; i<type.getFieldCount(); ++i) {
+        ValueKind kind = type.getFieldKind(i);
+        if (kind == ValueKind.ELEMENT) {
+          ElementProxy child = (ElementProxy) proxy.getValue(i);
+          if (child != null && visited.add(child)) {
+            stack.push(child);
+          }
+        } else if (kind == ValueKind.LIST) {
+          ElementListProxy list = (ElementListProxy) proxy.getValue(i);
+          if (list == null || list.size() == 0) {
+            continue;
+          }
+
+          List<ElementProxy> claimed = new ArrayList<>();
+          list.claimElements(visited, claimed);
+
+          if (claimed.size() > THRESHOLD) {
+            // Let some other worker take care of the long list
+            ParallelTraversal task = new ParallelTraversal(
+                    claimed.toArray(new ElementProxy[claimed.size()]), 0, claimed.size(), visited);
+            task.fork();
+            forked.add(task);
+          } else {
+            for(ElementProxy child:claimed) {
+              stack.push(child);
+            }
+          }
+        }
+      }
+    }
+
+    for(ParallelTraversal task:forked) {
+      merge(buckets, task.join());
+    }
+    return buckets;
+  }
+
+  private static List<ElementProxy> bucket(Map<ElementType, List<ElementProxy>> buckets, ElementType type) {
+    List<ElementProxy> bucket = buckets.get(type);
+    if (bucket == null) {
+      bucket = new ArrayList<>();
+      buckets.put(type, bucket);
+    }
+    return bucket;
+  }
+
+  private static void merge(Map<ElementType, List<ElementProxy>> target, Map<ElementType, List<ElementProxy>> source) {
+    for(Map.Entry<ElementType, List<ElementProxy>> entry:source.entrySet()) {
+      bucket(target, entry.getKey()).addAll(entry.getValue());
+    }
+  }
+}
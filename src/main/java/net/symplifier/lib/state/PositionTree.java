@@ -0,0 +1,301 @@
+package net.symplifier.lib.state;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The list of the proxies of an {@link ElementListProxy}, kept as an order
+ * statistic tree (a treap ordered by position, with the size of each
+ * subtree on its node). Looking up, inserting and removing at any position
+ * are all O(log n), so a {@link ListWindow} deep into a very long list is
+ * as cheap to maintain as one at the end.
+ *
+ * <p>
+ *   The iteration is in order with a stack of nodes, O(1) per element, and
+ *   the removal through the iterator is O(log n).
+ * </p>
+ */
+final class PositionTree extends AbstractList<ElementProxy> {
+
+  private static final class Node {
+    private ElementProxy value;
+    private final int priority;
+    private int size = 1;
+    private Node left;
+    private Node right;
+
+    Node(ElementProxy value, int priority) {
+      this.value = value;
+      this.priority = priority;
+    }
+  }
+
+  private Node root;
+  /* The state of the xorshift generator for the priorities */
+  private int seed = 0x2545f491;
+
+  /* The two halves of the last split, to avoid allocating a pair */
+  private Node splitLeft;
+  private Node splitRight;
+
+  @Override
+  public int size() {
+    return size(root);
+  }
+
+  @Override
+  public ElementProxy get(int index) {
+    return find(index).value;
+  }
+
+  @Override
+  public ElementProxy set(int index, ElementProxy proxy) {
+    Node node = find(index);
+    ElementProxy previous = node.value;
+    node.value = proxy;
+    return previous;
+  }
+
+  @Override
+  public void add(int index, ElementProxy proxy) {
+    if (index < 0 || index > size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+
+    split(root, index);
+    Node right = splitRight;
+    root = merge(merge(splitLeft, new Node(proxy, nextPriority())), right);
+    modCount += 1;
+  }
+
+  @Override
+  public ElementProxy remove(int index) {
+    checkIndex(index);
+
+    split(root, index);
+    Node left = splitLeft;
+    split(splitRight, 1);
+    Node removed = splitLeft;
+    root = merge(left, splitRight);
+    modCount += 1;
+    return removed.value;
+  }
+
+  @Override
+  public void clear() {
+    root = null;
+    modCount += 1;
+  }
+
+  @Override
+  public int indexOf(Object o) {
+    int index = 0;
+    for(ElementProxy proxy:this) {
+      if (proxy == o) {
+        return index;
+      }
+      index += 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Check if the proxies are of the given elements in the same order, going
+   * through the tree without creating anything
+   *
+   * @param elements The elements, a list with a fast random access
+   * @return {@code true} if the ids match one to one
+   */
+  boolean matches(List<? extends State.Element> elements) {
+    return elements.size() == size() && matches(root, elements, 0);
+  }
+
+  private static boolean matches(Node node, List<? extends State.Element> elements, int offset) {
+    if (node == null) {
+      return true;
+    }
+
+    int leftSize = size(node.left);
+    return matches(node.left, elements, offset)
+            && node.value.getId().equals(elements.get(offset + leftSize).getId())
+            && matches(node.right, elements, offset + leftSize + 1);
+  }
+
+  @Override
+  public Iterator<ElementProxy> iterator() {
+    return iterator(0);
+  }
+
+  /**
+   * An iterator starting at the given position
+   *
+   * @param from The position of the first element to be returned
+   * @return The iterator
+   */
+  Iterator<ElementProxy> iterator(int from) {
+    return new Itr(from);
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+  }
+
+  private Node find(int index) {
+    checkIndex(index);
+
+    Node node = root;
+    while(true) {
+      int leftSize = size(node.left);
+      if (index < leftSize) {
+        node = node.left;
+      } else if (index == leftSize) {
+        return node;
+      } else {
+        index -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  private int nextPriority() {
+    int x = seed;
+    x ^= x << 13;
+    x ^= x >>> 17;
+    x ^= x << 5;
+    seed = x;
+    return x;
+  }
+
+  private static int size(Node node) {
+    return node == null ? 0 : node.size;
+  }
+
+  private static void resize(Node node) {
+    node.size = 1 + size(node.left) + size(node.right);
+  }
+
+  // Split the tree into its first count nodes and the rest, the results are
+  // left in splitLeft and splitRight
+  private void split(Node node, int count) {
+    if (node == null) {
+      splitLeft = null;
+      splitRight = null;
+      return;
+    }
+
+    int leftSize = size(node.left);
+    if (count <= leftSize) {
+      split(node.left, count);
+      node.left = splitRight;
+      resize(node);
+      splitRight = node;
+    } else {
+      split(node.right, count - leftSize - 1);
+      node.right = splitLeft;
+      resize(node);
+      splitLeft = node;
+    }
+  }
+
+  // Join the two trees, all of the first one coming before the second
+  private static Node merge(Node first, Node second) {
+    if (first == null) {
+      return second;
+    }
+    if (second == null) {
+      return first;
+    }
+
+    if (first.priority > second.priority) {
+      first.right = merge(first.right, second);
+      resize(first);
+      return first;
+    } else {
+      second.left = merge(first, second.left);
+      resize(second);
+      return second;
+    }
+  }
+
+  /**
+   * The in order iterator. The stack has the next node on top, below it the
+   * ancestors whose left subtree the iteration is in.
+   */
+  private final class Itr implements Iterator<ElementProxy> {
+    private final ArrayDeque<Node> stack = new ArrayDeque<>();
+    /* The position of the next element */
+    private int next;
+    private boolean removable;
+    private int expectedModCount = modCount;
+
+    Itr(int from) {
+      seek(from);
+    }
+
+    private void seek(int index) {
+      stack.clear();
+      next = index;
+
+      Node node = root;
+      while(node != null) {
+        int leftSize = size(node.left);
+        if (index < leftSize) {
+          stack.push(node);
+          node = node.left;
+        } else if (index == leftSize) {
+          stack.push(node);
+          break;
+        } else {
+          index -= leftSize + 1;
+          node = node.right;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !stack.isEmpty();
+    }
+
+    @Override
+    public ElementProxy next() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (stack.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+
+      Node node = stack.pop();
+      for(Node child = node.right; child != null; child = child.left) {
+        stack.push(child);
+      }
+
+      next += 1;
+      removable = true;
+      return node.value;
+    }
+
+    @Override
+    public void remove() {
+      if (!removable) {
+        throw new IllegalStateException();
+      }
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+
+      PositionTree.this.remove(next - 1);
+      expectedModCount = modCount;
+      removable = false;
+      // The tree has been restructured, find the next element again
+      seek(next - 1);
+    }
+  }
+}
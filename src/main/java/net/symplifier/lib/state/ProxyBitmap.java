@@ -0,0 +1,108 @@
+package net.symplifier.lib.state;
+
+import java.util.Arrays;
+
+/**
+ * The set of proxies visited during a traversal, kept as a bitmap for each
+ * {@link ElementType} indexed by the dense ordinals of the proxies. Marking
+ * a proxy costs a couple of array accesses, without hashing or allocating
+ * anything except when a new page is needed.
+ *
+ * <p>
+ *   The bitmap of a type is split into pages of {@link #PAGE_BITS} ordinals
+ *   each, allocated only once a proxy within the page is marked. A traversal
+ *   of a small State in a system with a large number of proxies only pays
+ *   for the pages it touches.
+ * </p>
+ * <p>
+ *   Not thread safe, a bitmap belongs to a single traversal.
+ * </p>
+ */
+final class ProxyBitmap {
+
+  /* The number of ordinals covered by a page */
+  static final int PAGE_BITS = 4096;
+  private static final int PAGE_SHIFT = 12;
+  private static final int PAGE_WORDS = PAGE_BITS >>> 6;
+
+  /* The pages by the index of the type and the page number, null for the
+     types and the pages not seen yet */
+  private long[][][] pages = new long[8][][];
+
+  /**
+   * Mark the given proxy as visited
+   *
+   * @param proxy The proxy to be marked
+   * @return {@code true} if the proxy was not visited before
+   */
+  boolean add(ElementProxy proxy) {
+    int index = proxy.getType().getIndex();
+    if (index >= pages.length) {
+      pages = Arrays.copyOf(pages, Math.max(index + 1, pages.length * 2));
+    }
+
+    int ordinal = proxy.getOrdinal();
+    int page = ordinal >>> PAGE_SHIFT;
+    long[][] typePages = pages[index];
+    if (typePages == null || page >= typePages.length) {
+      int length = Math.max(page + 1, typePages == null ? 4 : typePages.length * 2);
+      typePages = typePages == null ? new long[length][] : Arrays.copyOf(typePages, length);
+      pages[index] = typePages;
+    }
+
+    long[] bits = typePages[page];
+    if (bits == null) {
+      bits = new long[PAGE_WORDS];
+      typePages[page] = bits;
+    }
+
+    int word = (ordinal >>> 6) & (PAGE_WORDS - 1);
+    long mask = 1L << ordinal;
+    if ((bits[word] & mask) != 0) {
+      return false;
+    }
+    bits[word] |= mask;
+    return true;
+  }
+
+  /**
+   * Clear the mark of the given proxy
+   *
+   * @param proxy The proxy to be cleared
+   */
+  void remove(ElementProxy proxy) {
+    long[] bits = page(proxy);
+    if (bits != null) {
+      int ordinal = proxy.getOrdinal();
+      bits[(ordinal >>> 6) & (PAGE_WORDS - 1)] &= ~(1L << ordinal);
+    }
+  }
+
+  /**
+   * Check if the given proxy has been visited
+   *
+   * @param proxy The proxy to be checked
+   * @return {@code true} if the proxy has been marked
+   */
+  boolean contains(ElementProxy proxy) {
+    long[] bits = page(proxy);
+    if (bits == null) {
+      return false;
+    }
+
+    int ordinal = proxy.getOrdinal();
+    return (bits[(ordinal >>> 6) & (PAGE_WORDS - 1)] & (1L << ordinal)) != 0;
+  }
+
+  // The page of the given proxy, null if none has been allocated
+  private long[] page(ElementProxy proxy) {
+    int index = proxy.getType().getIndex();
+    if (index >= pages.length || pages[index] == null) {
+      return null;
+    }
+
+    long[][] typePages = pages[index];
+    int page = proxy.getOrdinal() >>> PAGE_SHIFT;
+    return page < typePages.length ? typePages[page] : null;
+  }
+}
@@ -0,0 +1,288 @@
+package net.symplifier.lib.state;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ProxyCollector releases the proxies that no {@link State} can reach
+ * any more. The ownership of the proxies is reference counted, which never
+ * lets go of the Elements referencing each other, like a Station and its
+ * Parameters referring back to it, once they are removed from the State.
+ *
+ * <p>
+ *   The collection is a mark and sweep done in small slices, so that it
+ *   never holds up the syncs for long. Each cycle marks every proxy
+ *   reachable from the seed elements of all the States and then sweeps
+ *   through all the proxies of all the types. A proxy found unmarked in two
+ *   cycles in a row is a candidate, which takes care of the proxies that
+ *   were created or moved around while the cycle was going on.
+ * </p>
+ * <p>
+ *   The candidates are all condemned first, after which no owner can be
+ *   added to them, and the ones still owned by a State or by any proxy that
+ *   is not condemned are then spared along with everything they reach. The
+ *   rest are released, a later sync of their elements creates new proxies.
+ *   Like the marking and the sweeping, the condemning and the sparing are
+ *   done a proxy at a time within the slices.
+ * </p>
+ * <p>
+ *   The ordinal of a released proxy is reused by a new proxy of its type
+ *   only at the end of a cycle with no traversal under way, as any of them
+ *   might have marked the released proxy.
+ * </p>
+ * <p>
+ *   The proxies applied by a {@link StateFollower} that haven't been owned
+ *   by any list within two cycles are released as well.
+ * </p>
+ */
+public class ProxyCollector {
+
+  /* The number of steps between the checks on the time left in a slice */
+  private static final int CHECK_INTERVAL = 64;
+
+  private enum Phase {
+    ROOTS, MARK, SWEEP, CONDEMN, SPARE, RELEASE
+  }
+
+  /* The time between two slices */
+  private final long periodNanos;
+  /* The duration of a slice */
+  private final long sliceNanos;
+
+  private volatile boolean running;
+  private Thread thread;
+
+  /* The state of the ongoing cycle, guarded by the collector */
+  private Phase phase = Phase.ROOTS;
+  private List<ElementType> types;
+  private int typeCursor;
+  private Iterator<ElementProxy> proxies;
+  private ProxyBitmap marked;
+  private final ArrayDeque<ElementProxy> stack = new ArrayDeque<>();
+  /* The proxies found unmarked in the previous cycle and in this cycle */
+  private ProxyBitmap unmarked = new ProxyBitmap();
+  private ProxyBitmap found;
+  private final List<ElementProxy> candidates = new ArrayList<>();
+  /* The position within the candidates of the ongoing phase */
+  private int candidateCursor;
+  /* The candidates spared so far and the ones they reach */
+  private ProxyBitmap spared;
+
+  private long released;
+
+  /**
+   * Create a collector that runs a slice of the given duration on its own
+   * thread every period
+   *
+   * @param period The time between two slices
+   * @param slice The duration of a slice
+   * @param unit The unit of the period and the slice
+   */
+  public ProxyCollector(long period, long slice, TimeUnit unit) {
+    assert(period > 0 && slice > 0):"Invalid period or slice";
+
+    this.periodNanos = unit.toNanos(period);
+    this.sliceNanos = unit.toNanos(slice);
+  }
+
+  /**
+   * Start the collector thread
+   */
+  public void start() {
+    running = true;
+    thread = new Thread(this::run, "state-proxy-collector");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop the collector thread and wait for it to finish
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void stop() throws InterruptedException {
+    running = false;
+    LockSupport.unpark(thread);
+    thread.join();
+  }
+
+  /**
+   * The number of proxies released so far, mainly for monitoring
+   *
+   * @return The number of proxies
+   */
+  public synchronized long getReleased() {
+    return released;
+  }
+
+  /**
+   * Run the collection right away until a cycle is completed, without any
+   * limit on its duration. A proxy is released by the second cycle after it
+   * became unreachable.
+   */
+  public void collect() {
+    while(!step(Long.MAX_VALUE)) {
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Carry on with the collection for about the given time
+   *
+   * @param budgetNanos The time that can be spent
+   * @return {@code true} if a cycle was completed within this step
+   */
+  public synchronized boolean step(long budgetNanos) {
+    long start = System.nanoTime();
+    int steps = 0;
+    while(true) {
+      steps += 1;
+      if (steps % CHECK_INTERVAL == 0 && System.nanoTime() - start > budgetNanos) {
+        return false;
+      }
+
+      switch(phase) {
+        case ROOTS:
+          if (types == null) {
+            begin();
+          }
+
+          ElementProxy root = nextProxy();
+          if (root == null) {
+            phase = Phase.MARK;
+          } else if (root.isSeed() && marked.add(root)) {
+            stack.push(root);
+          }
+          break;
+
+        case MARK:
+          // The lists are gone through under their own locks, a list
+          // changing in the meantime is taken care of by the next cycle
+          if (stack.isEmpty()) {
+            phase = Phase.SWEEP;
+            typeCursor = 0;
+            proxies = null;
+          } else {
+            stack.pop().pushReferences(marked, stack);
+          }
+          break;
+
+        case SWEEP:
+          ElementProxy proxy = nextProxy();
+          if (proxy == null) {
+            phase = Phase.CONDEMN;
+            candidateCursor = 0;
+          } else if (!marked.contains(proxy)) {
+            found.add(proxy);
+            if (unmarked.contains(proxy)) {
+              candidates.add(proxy);
+            }
+          }
+          break;
+
+        case CONDEMN:
+          // All of them before any is spared, so that none of them gains an
+          // owner once its owners have been checked
+          if (candidateCursor < candidates.size()) {
+            candidates.get(candidateCursor++).condemn();
+          } else {
+            phase = Phase.SPARE;
+            candidateCursor = 0;
+            spared = new ProxyBitmap();
+          }
+          break;
+
+        case SPARE:
+          // Spare the candidates still owned by anything alive, along with
+          // the candidates they reach
+          if (!stack.isEmpty()) {
+            ElementProxy reached = stack.pop();
+            if (reached.isCondemned()) {
+              reached.spare();
+              reached.pushReferences(spared, stack);
+            }
+          } else if (candidateCursor < candidates.size()) {
+            ElementProxy candidate = candidates.get(candidateCursor++);
+            if (candidate.hasLiveOwner() && spared.add(candidate)) {
+              stack.push(candidate);
+            }
+          } else {
+            phase = Phase.RELEASE;
+            candidateCursor = 0;
+            spared = null;
+          }
+          break;
+
+        case RELEASE:
+          if (candidateCursor < candidates.size()) {
+            ElementProxy candidate = candidates.get(candidateCursor++);
+            if (candidate.isCondemned()) {
+              // Forget it, its ordinal goes to another proxy later on
+              found.remove(candidate);
+              candidate.getType().release(candidate);
+              released += 1;
+            }
+          } else {
+            end();
+            return true;
+          }
+          break;
+      }
+    }
+  }
+
+  private void begin() {
+    types = State.getElementTypes();
+    typeCursor = 0;
+    proxies = null;
+    marked = new ProxyBitmap();
+    found = new ProxyBitmap();
+    ElementType.beginTraversal();
+  }
+
+  private void end() {
+    ElementType.endTraversal();
+    for(ElementType type:types) {
+      type.recycleOrdinals();
+    }
+
+    unmarked = found;
+    found = null;
+    marked = null;
+    types = null;
+    candidates.clear();
+    candidateCursor = 0;
+    phase = Phase.ROOTS;
+  }
+
+  // The next proxy going through all the types, null at the end
+  private ElementProxy nextProxy() {
+    while(proxies == null || !proxies.hasNext()) {
+      if (typeCursor == types.size()) {
+        return null;
+      }
+      proxies = types.get(typeCursor++).getProxies().iterator();
+    }
+    return proxies.next();
+  }
+
+  private void run() {
+    long next = System.nanoTime();
+    while(running) {
+      try {
+        step(sliceNanos);
+      } catch(RuntimeException e) {
+        e.printStackTrace();
+      }
+
+      next += periodNanos;
+      long delay = next - System.nanoTime();
+      if (delay > 0) {
+        LockSupport.parkNanos(this, delay);
+      } else {
+        next = System.nanoTime();
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package net.symplifier.lib.state;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The read only Set of the proxies of a single {@link ElementType} returned
+ * by {@link State#getAll()}. The proxies are kept in a plain list in the
+ * order they were found, the traversal already makes sure that no proxy is
+ * added twice. For the membership they are also kept by their ordinals, in
+ * pages allocated as needed.
+ *
+ * <p>
+ *   The set may outlive the traversal, and the ordinal of a proxy released
+ *   in the meantime may be given to a new one. The membership is therefore
+ *   answered by the identity of the proxy at the ordinal, not by the
+ *   ordinal alone.
+ * </p>
+ */
+final class ProxySet extends AbstractSet<ElementProxy> {
+
+  private final ElementType type;
+  private final List<ElementProxy> proxies = new ArrayList<>();
+  /* The proxies by their ordinals, in pages of ProxyBitmap.PAGE_BITS */
+  private ElementProxy[][] pages = new ElementProxy[4][];
+
+  ProxySet(ElementType type) {
+    this.type = type;
+  }
+
+  /* Only called by the traversal, with a proxy visited for the first time */
+  void append(ElementProxy proxy) {
+    proxies.add(proxy);
+
+    int ordinal = proxy.getOrdinal();
+    int page = ordinal / ProxyBitmap.PAGE_BITS;
+    if (page >= pages.length) {
+      pages = Arrays.copyOf(pages, Math.max(page + 1, pages.length * 2));
+    }
+    if (pages[page] == null) {
+      pages[page] = new ElementProxy[ProxyBitmap.PAGE_BITS];
+    }
+    pages[page][ordinal % ProxyBitmap.PAGE_BITS] = proxy;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof ElementProxy) || ((ElementProxy) o).getType() != type) {
+      return false;
+    }
+
+    int ordinal = ((ElementProxy) o).getOrdinal();
+    int page = ordinal / ProxyBitmap.PAGE_BITS;
+    return page < pages.length && pages[page] != null
+            && pages[page][ordinal % ProxyBitmap.PAGE_BITS] == o;
+  }
+
+  @Override
+  public Iterator<ElementProxy> iterator() {
+    return Collections.unmodifiableList(proxies).iterator();
+  }
+
+  @Override
+  public int size() {
+    return proxies.size();
+  }
+}
@@ -0,0 +1,26 @@
+package net.symplifier.lib.state;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the values of an {@link ElementProxy} into a serialized record. The
+ * encoded record is cached on the proxy by
+ * {@link ElementProxy#getEncoded(RecordEncoder)} until the proxy changes, so
+ * the same record is shared by all the States and clients that need it.
+ *
+ * <p>
+ *   An encoder must only depend on the values of the proxy, and it must be
+ *   the same instance every time, since the instance is the key of the cache.
+ * </p>
+ */
+public interface RecordEncoder {
+
+  /**
+   * Encode the given proxy. The returned buffer is shared and must not be
+   * changed after it has been returned.
+   *
+   * @param proxy The proxy to be encoded
+   * @return The encoded record between position and limit
+   */
+  ByteBuffer encode(ElementProxy proxy);
+}
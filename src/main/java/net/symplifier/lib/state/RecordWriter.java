@@ -0,0 +1,173 @@
+package net.symplifier.lib.state;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link State.RecordListener} that writes the records to a client channel,
+ * like the SocketChannel of a server sent events client.
+ *
+ * <p>
+ *   The records are queued as they are, without copying, and written out
+ *   with gathering writes on {@link #flush()}. The optional prefix and suffix
+ *   (e.g. {@code "data: "} and {@code "\n\n"}) are shared as well, so the
+ *   bytes of a change exist only once however many clients receive it.
+ * </p>
+ * <p>
+ *   The records can be queued from any thread, the flush is meant to be
+ *   called by the thread serving the channel. A record is queued along with
+ *   its prefix and suffix as a single frame, so that the frames of the
+ *   records queued at the same time never interleave. A non blocking
+ *   channel that is full keeps the rest of the records for the next flush.
+ * </p>
+ * <p>
+ *   The number of frames waiting is bounded. The records coming in while
+ *   the queue is full are dropped and counted (see {@link #getDropped()}),
+ *   a client that has missed records needs to be sent the whole State
+ *   again.
+ * </p>
+ */
+public class RecordWriter implements State.RecordListener {
+
+  /* The maximum number of buffers given to a single gathering write */
+  private static final int MAX_GATHER = 64;
+  /* The number of frames waiting by default */
+  private static final int DEFAULT_CAPACITY = 4096;
+
+  private final GatheringByteChannel channel;
+  private final ByteBuffer prefix;
+  private final ByteBuffer suffix;
+
+  /* The frames waiting to be written, each with the buffers of a record */
+  private final Queue<ByteBuffer[]> pending = new ConcurrentLinkedQueue<>();
+  private final int capacity;
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /* The buffers of the write in progress, only used during the flush */
+  private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+  private int batchStart;
+  private int batchEnd;
+
+  /**
+   * Create a writer that writes the records back to back
+   *
+   * @param channel The channel of the client
+   */
+  public RecordWriter(GatheringByteChannel channel) {
+    this(channel, null, null);
+  }
+
+  /**
+   * Create a writer that surrounds every record with the given prefix and
+   * suffix
+   *
+   * @param channel The channel of the client
+   * @param prefix The bytes written before every record, {@code null} for none
+   * @param suffix The bytes written after every record, {@code null} for none
+   */
+  public RecordWriter(GatheringByteChannel channel, ByteBuffer prefix, ByteBuffer suffix) {
+    this(channel, prefix, suffix, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a writer that surrounds every record with the given prefix and
+   * suffix, keeping up to the given number of records waiting
+   *
+   * @param channel The channel of the client
+   * @param prefix The bytes written before every record, {@code null} for none
+   * @param suffix The bytes written after every record, {@code null} for none
+   * @param capacity The maximum number of records waiting to be written
+   */
+  public RecordWriter(GatheringByteChannel channel, ByteBuffer prefix, ByteBuffer suffix, int capacity) {
+    assert(capacity > 0):"The capacity must be positive";
+
+    this.channel = channel;
+    this.prefix = prefix;
+    this.suffix = suffix;
+    this.capacity = capacity;
+  }
+
+  @Override
+  public void onRecord(ElementProxy proxy, ByteBuffer record) {
+    if (pendingCount.incrementAndGet() > capacity) {
+      pendingCount.decrementAndGet();
+      dropped.incrementAndGet();
+      return;
+    }
+
+    ByteBuffer[] frame;
+    if (prefix != null && suffix != null) {
+      frame = new ByteBuffer[] { prefix.duplicate(), record, suffix.duplicate() };
+    } else if (prefix != null) {
+      frame = new ByteBuffer[] { prefix.duplicate(), record };
+    } else if (suffix != null) {
+      frame = new ByteBuffer[] { record, suffix.duplicate() };
+    } else {
+      frame = new ByteBuffer[] { record };
+    }
+    pending.add(frame);
+  }
+
+  /**
+   * The number of records dropped so far as the queue was full
+   *
+   * @return The number of records
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Write out the queued records
+   *
+   * @return {@code true} if everything has been written, {@code false} if
+   *         the channel could not take any more
+   * @throws IOException on write failure
+   */
+  public synchronized boolean flush() throws IOException {
+    while(true) {
+      if (batchStart == batchEnd) {
+        batchStart = 0;
+        batchEnd = 0;
+        // Only the flush takes the frames off, so the one peeked at is the
+        // one polled
+        ByteBuffer[] frame;
+        while((frame = pending.peek()) != null && batchEnd + frame.length <= MAX_GATHER) {
+          pending.poll();
+          pendingCount.decrementAndGet();
+          for(ByteBuffer buffer:frame) {
+            batch[batchEnd++] = buffer;
+          }
+        }
+
+        if (batchEnd == 0) {
+          return true;
+        }
+      }
+
+      channel.write(batch, batchStart, batchEnd - batchStart);
+      while(batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+        batch[batchStart++] = null;
+      }
+
+      if (batchStart < batchEnd) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Check if there is anything left to be written
+   *
+   * @return {@code true} if there are queued records
+   */
+  public synchronized boolean hasPending() {
+    return batchStart < batchEnd || !pending.isEmpty();
+  }
+}
@@ -0,0 +1,143 @@
+package net.symplifier.lib.state;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The wire format shared by {@link StateReplicator} and {@link StateFollower}.
+ * The stream is a sequence of frames, each starting with a single byte frame
+ * code.
+ *
+ * <ul>
+ *   <li><b>SCHEMA: </b>tag (short), type name, field count (short) followed by
+ *   the name, {@link ValueKind} code (byte) and for element and list fields
+ *   the name of the referenced type of each field. Sent once per type per
+ *   connection before the tag is used in any other frame</li>
+ *   <li><b>RECORD: </b>tag (short), id (long) followed by all the field values
+ *   of the proxy in the schema order</li>
+ *   <li><b>SEED: </b>list name, tag (short), count (int) followed by the ids of
+ *   the elements in the seed list. Sent with the snapshot, for a list created
+ *   later and when a list is cleared</li>
+ *   <li><b>SYNCED: </b>marks the end of the initial snapshot</li>
+ *   <li><b>INSERT: </b>list name, position (int), id (long) of an element
+ *   inserted in a seed list</li>
+ *   <li><b>REMOVE: </b>list name, position (int) of an element removed from
+ *   a seed list</li>
+ * </ul>
+ */
+final class ReplicationProtocol {
+
+  /* The frame codes */
+  static final byte SCHEMA = 1;
+  static final byte RECORD = 2;
+  static final byte SEED = 3;
+  static final byte SYNCED = 4;
+  static final byte INSERT = 5;
+  static final byte REMOVE = 6;
+
+  private ReplicationProtocol() {
+  }
+
+  /**
+   * Write a single field value. Every value is preceded by a presence flag
+   * to represent {@code null}.
+   *
+   * @param out The stream to write to
+   * @param kind The kind of the field
+   * @param value The value as stored in the proxy
+   * @throws IOException on write failure
+   */
+  static void writeValue(DataOutputStream out, ValueKind kind, Object value) throws IOException {
+    if (kind == ValueKind.LIST) {
+      // An empty list and null are the same
+      ElementListProxy list = (ElementListProxy) value;
+      if (list == null) {
+        out.writeInt(0);
+      } else {
+        out.writeInt(list.size());
+        for(ElementProxy proxy:list.getElements()) {
+          out.writeLong(proxy.getId());
+        }
+      }
+      return;
+    }
+
+    if (value == null) {
+      out.writeBoolean(false);
+      return;
+    }
+    out.writeBoolean(true);
+
+    switch(kind) {
+      case BYTE: out.writeByte((Byte)value); break;
+      case SHORT: out.writeShort((Short)value); break;
+      case INTEGER: out.writeInt((Integer)value); break;
+      case LONG: out.writeLong((Long)value); break;
+      case FLOAT: out.writeFloat((Float)value); break;
+      case DOUBLE: out.writeDouble((Double)value); break;
+      case BOOLEAN: out.writeBoolean((Boolean)value); break;
+      case CHARACTER: out.writeChar((Character)value); break;
+      case STRING: writeString(out, (String)value); break;
+      case DATE: out.writeLong((Long)value); break;
+      case ELEMENT: out.writeLong(((ElementProxy)value).getId()); break;
+      default:
+        throw new IOException("Unexpected field kind " + kind);
+    }
+  }
+
+  /**
+   * Read a single field value as written by
+   * {@link #writeValue(DataOutputStream, ValueKind, Object)}. The element
+   * references are returned as their {@link Long} id and the lists as an
+   * array of ids and the dates as their epoch millis.
+   *
+   * @param in The stream to read from
+   * @param kind The kind of the field
+   * @return The value
+   * @throws IOException on read failure
+   */
+  static Object readValue(DataInputStream in, ValueKind kind) throws IOException {
+    if (kind == ValueKind.LIST) {
+      long[] ids = new long[in.readInt()];
+      for(int i=0; i<ids.length; ++i) {
+        ids[i] = in.readLong();
+      }
+      return ids;
+    }
+
+    if (!in.readBoolean()) {
+      return null;
+    }
+
+    switch(kind) {
+      case BYTE: return in.readByte();
+      case SHORT: return in.readShort();
+      case INTEGER: return in.readInt();
+      case LONG: return in.readLong();
+      case FLOAT: return in.readFloat();
+      case DOUBLE: return in.readDouble();
+      case BOOLEAN: return in.readBoolean();
+      case CHARACTER: return in.readChar();
+      case STRING: return readString(in);
+      case DATE: return in.readLong();
+      case ELEMENT: return in.readLong();
+      default:
+        throw new IOException("Unexpected field kind " + kind);
+    }
+  }
+
+  /* Strings are length prefixed UTF-8, since writeUTF is limited to 64K */
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,200 @@
+package net.symplifier.lib.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ShardedSync spreads the {@link State.Element#sync()} calls over a fixed
+ * number of shards. The shard of an Element is decided by the hash of its id,
+ * and every shard is drained by a single thread, so all the syncs on a given
+ * {@link ElementProxy} are always applied by the same thread in the order
+ * they were requested.
+ *
+ * <p>
+ *   Any number of producer threads can request a sync through
+ *   {@link #sync(State.Element)}. The request is placed on the lock free queue
+ *   of the shard and the shard thread is woken up only if it was sleeping.
+ * </p>
+ * <p>
+ *   Every shard has a queue for each {@link ElementType.Priority}. The
+ *   elements of the HIGH types are synced before anything else, and the ones
+ *   of the LOW types only when there is nothing else to be synced. The
+ *   priority of a type never changes, so the syncs of an element still stay
+ *   in order.
+ * </p>
+ * <p>
+ *   The proxies of an element that is referenced from elements living on
+ *   different shards are still shared, the ownership bookkeeping on them is
+ *   guarded by the proxy itself.
+ * </p>
+ */
+public class ShardedSync {
+
+  /* The shards, a sync request always goes to the same shard for an id */
+  private final Shard[] shards;
+
+  /* Flag to let the shard threads know when to stop */
+  private volatile boolean running;
+
+  /**
+   * Create a ShardedSync with one shard per available processor
+   */
+  public ShardedSync() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create a ShardedSync with the given number of shards
+   *
+   * @param shardCount The number of shards (and threads) to be used
+   */
+  public ShardedSync(int shardCount) {
+    assert(shardCount > 0):"At least one shard is needed";
+
+    shards = new Shard[shardCount];
+    for(int i=0; i<shardCount; ++i) {
+      shards[i] = new Shard(i);
+    }
+  }
+
+  /**
+   * Start all the shard threads. The sync requests made before the shards are
+   * started are kept in the queue and applied once started.
+   */
+  public void start() {
+    running = true;
+    for(Shard shard:shards) {
+      shard.thread.start();
+    }
+  }
+
+  /**
+   * Stop all the shard threads after they have applied all the sync requests
+   * that are already in their queue. Waits for the threads to finish.
+   *
+   * @throws InterruptedException if interrupted while waiting for the shards
+   */
+  public void shutdown() throws InterruptedException {
+    running = false;
+    for(Shard shard:shards) {
+      LockSupport.unpark(shard.thread);
+    }
+
+    for(Shard shard:shards) {
+      shard.thread.join();
+    }
+  }
+
+  /**
+   * Request a sync for the given element on its shard. The sync is applied
+   * asynchronously on the shard thread.
+   *
+   * @param element The element that needs to be synced
+   */
+  public void sync(State.Element element) {
+    // Looked up without locking once the type is registered
+    ElementType.Priority priority = State.getElementType(element.getClass()).getPriority();
+    shards[getShardIndex(element.getId())].offer(element, priority);
+  }
+
+  /**
+   * The number of shards being used
+   *
+   * @return the shard count
+   */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Find out the shard responsible for the element with the given id. The
+   * bits of the id are mixed so that sequential ids are spread evenly.
+   *
+   * @param id The id of the element
+   * @return The index of the shard
+   */
+  int getShardIndex(Long id) {
+    long h = id * 0x9E3779B97F4A7C15L;
+    int hash = (int)(h ^ (h >>> 32));
+    return (hash & Integer.MAX_VALUE) % shards.length;
+  }
+
+  /**
+   * A single shard with its own queues drained by its own thread
+   */
+  private class Shard implements Runnable {
+    /* The queues by the priority of the types, the highest first */
+    private final List<Queue<State.Element>> queues = new ArrayList<>();
+    private final Thread thread;
+
+    /* Set by the shard thread just before it parks */
+    private volatile boolean sleeping;
+
+    Shard(int index) {
+      for(int i=0; i<ElementType.Priority.values().length; ++i) {
+        queues.add(new ConcurrentLinkedQueue<>());
+      }
+      thread = new Thread(this, "state-shard-" + index);
+      thread.setDaemon(true);
+    }
+
+    void offer(State.Element element, ElementType.Priority priority) {
+      queues.get(priority.ordinal()).offer(element);
+
+      // Wake up the thread only if its waiting for work
+      if (sleeping) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    @Override
+    public void run() {
+      while(true) {
+        State.Element element = poll();
+        if (element != null) {
+          try {
+            element.sync();
+          } catch(RuntimeException e) {
+            e.printStackTrace();
+          }
+          continue;
+        }
+
+        if (!running) {
+          break;
+        }
+
+        // Check the queue once more after announcing the sleep, to make sure
+        // we don't miss an element offered in between
+        sleeping = true;
+        if (isEmpty() && running) {
+          LockSupport.park(this);
+        }
+        sleeping = false;
+      }
+    }
+
+    // The next element of the highest priority waiting
+    private State.Element poll() {
+      for(Queue<State.Element> queue:queues) {
+        State.Element element = queue.poll();
+        if (element != null) {
+          return element;
+        }
+      }
+      return null;
+    }
+
+    private boolean isEmpty() {
+      for(Queue<State.Element> queue:queues) {
+        if (!queue.isEmpty()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
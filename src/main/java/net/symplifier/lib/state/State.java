@@ -1,6 +1,13 @@
 package net.symplifier.lib.state;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * A state provides a mechanism for maintianing state of a system at the server
@@ -36,7 +43,11 @@ import java.util.*;
  */
 public class State implements ElementProxyOwner {
   /* All the ElementTypes that have been registered on the system */
-  private static final HashMap<Class<? extends Element>, ElementType> ELEMENT_TYPES = new HashMap<>();
+  private static final Map<Class<? extends Element>, ElementType> ELEMENT_TYPES = new ConcurrentHashMap<>();
+  /* The ElementTypes defined at runtime by their names, guarded by ELEMENT_TYPES */
+  private static final HashMap<String, ElementType> DYNAMIC_TYPES = new HashMap<>();
+  /* All the ElementTypes by their registered names, guarded by ELEMENT_TYPES */
+  private static final HashMap<String, ElementType> REGISTERED_NAMES = new HashMap<>();
 
   /**
    * Get the ElementType for the given Java Class. This method tries to find
@@ -48,11 +59,22 @@ public class State implements ElementProxyOwner {
    * @return {@link ElementType}
    */
   static ElementType getElementType(Class<? extends Element> elementClass) {
-    ElementType type;
+    // Every sync looks up the type, a registered type is found without
+    // locking. The type is only put in the map once it is fully registered.
+    ElementType type = ELEMENT_TYPES.get(elementClass);
+    if (type != null) {
+      return type;
+    }
+
     synchronized (ELEMENT_TYPES) {
       type = ELEMENT_TYPES.get(elementClass);
       if (type == null) {
         type = new ElementType(elementClass);
+        if (DYNAMIC_TYPES.containsKey(type.getName())) {
+          throw new IllegalStateException("The element type " + type.getName() + " of "
+                  + elementClass.getName() + " has already been defined at runtime");
+        }
+        registerName(type);
         ELEMENT_TYPES.put(elementClass, type);
       }
     }
@@ -60,10 +82,122 @@ public class State implements ElementProxyOwner {
     return type;
   }
 
+  /**
+   * Find an already registered ElementType by its registered name (see
+   * {@link ElementType#getRegisteredName()}). Used by {@link StateFollower}
+   * to resolve the types received from the primary.
+   *
+   * <b>ThreadSafe</b>
+   * @param name The registered name of the ElementType
+   * @return {@link ElementType} or {@code null} if no such type is registered
+   */
+  static ElementType findElementType(String name) {
+    synchronized (ELEMENT_TYPES) {
+      return REGISTERED_NAMES.get(name);
+    }
+  }
+
+  // Make the type known by its registered name, which no other type may
+  // have. Called under ELEMENT_TYPES.
+  private static void registerName(ElementType type) {
+    String name = type.getRegisteredName();
+    if (REGISTERED_NAMES.containsKey(name)) {
+      throw new IllegalStateException("An element type named " + name + " is already registered");
+    }
+    REGISTERED_NAMES.put(name, type);
+  }
+
+  /**
+   * All the ElementTypes registered so far, for going through the proxies
+   * of every type.
+   *
+   * <b>ThreadSafe</b>
+   * @return A copy of the registered types
+   */
+  static List<ElementType> getElementTypes() {
+    synchronized (ELEMENT_TYPES) {
+      List<ElementType> res = new ArrayList<>(ELEMENT_TYPES.values());
+      res.addAll(DYNAMIC_TYPES.values());
+      return res;
+    }
+  }
+
+  /**
+   * Define an ElementType at runtime, for the data that has no Element class
+   * of its own, like the records ingested from a CSV file or a message
+   * broker. The fields are registered in the same way as done by the
+   * register method of an Element class, for example
+   * <pre>
+   *   ElementType sensor = State.defineElementType("Sensor", type -&gt; {
+   *     type.registerLong("id");
+   *     type.registerDouble("value");
+   *   });
+   * </pre>
+   * The values are pushed directly into the proxies with a
+   * {@link DynamicFeed}, without any Element instance. If a type with the
+   * given name has already been defined with the same structure it is
+   * returned as it is.
+   *
+   * <p>
+   *   The registration is run without holding up the other types being
+   *   looked up or defined, it may well define the types it refers to.
+   * </p>
+   *
+   * <b>ThreadSafe</b>
+   * @param name The name of the type, unique among all the types
+   * @param registration Registers the fields on the type
+   * @return {@link ElementType}
+   * @throws IllegalArgumentException if the name is taken by an Element
+   *         class, or by a type defined with another structure
+   */
+  public static ElementType defineElementType(String name, Consumer<ElementType> registration) {
+    ElementType type = new ElementType(name, registration);
+    if (!type.getName().equals(name)) {
+      throw new IllegalArgumentException("The element type " + name + " cannot be renamed to "
+              + type.getName() + " during the registration");
+    }
+
+    synchronized (ELEMENT_TYPES) {
+      ElementType existing = DYNAMIC_TYPES.get(name);
+      if (existing != null) {
+        if (!existing.getStructureJson().equals(type.getStructureJson())) {
+          throw new IllegalArgumentException("The element type " + name
+                  + " has already been defined with another structure");
+        }
+        return existing;
+      }
+
+      for(ElementType classType:ELEMENT_TYPES.values()) {
+        if (classType.getName().equals(name)) {
+          throw new IllegalArgumentException("The element type " + name
+                  + " is already used by " + classType.getElementClass().getName());
+        }
+      }
+
+      registerName(type);
+      DYNAMIC_TYPES.put(name, type);
+      return type;
+    }
+  }
+
   /* The seed elements of this State */
   private final Map<String, ElementList<? extends State.Element>> stateEntityList = new LinkedHashMap<>();
-  /* The Event Listeners for this State */
-  private final Set<EventListener> eventListeners = new LinkedHashSet<>();
+  /* The Event Listeners for this State, fired from whichever thread does the
+     sync (see ShardedSync) */
+  private final Set<EventListener> eventListeners = new CopyOnWriteArraySet<>();
+  /* The approximate bytes retained by this State as last measured, plus
+     the growth from the seed entries added since, less the seed entries
+     removed since */
+  private final AtomicLong retainedBytes = new AtomicLong();
+  /* The bytes charged since the last measurement for the seed entries that
+     were already there, which may have been counted twice */
+  private final AtomicLong sharedBytes = new AtomicLong();
+  /* The limits for the retained bytes */
+  private volatile long softLimit = Long.MAX_VALUE;
+  private volatile long hardLimit = Long.MAX_VALUE;
+
+  /* The listeners that receive the changes as encoded records, by encoder */
+  private final Map<RecordEncoder, Set<RecordListener>> recordListeners = new ConcurrentHashMap<>();
 
   /**
    * Mechanism to create seed list on the state. Each list on the state is
@@ -75,14 +209,32 @@ public class State implements ElementProxyOwner {
    * @return The newly created list {@link ElementList}
    */
   public <T extends Element> ElementList<T> createList(String name, Class<T> elementClass) {
+    return linkList(name, getElementType(elementClass));
+  }
+
+  /**
+   * Create a seed list of the given type, mainly for the types defined at
+   * runtime with {@link #defineElementType(String, Consumer)}. Such a list
+   * only maintains the proxies, the elements are added and removed by their
+   * ids with {@link ElementList#addById(Long)} and
+   * {@link ElementList#removeById(Long)}.
+   *
+   * @param name The name of the list
+   * @param type The type of the elements
+   * @return The newly created list {@link ElementList}
+   */
+  public ElementList<Element> createList(String name, ElementType type) {
+    return linkList(name, type);
+  }
+
+  private <T extends Element> ElementList<T> linkList(String name, ElementType type) {
     // The name should not be reused
     assert(!stateEntityList.containsKey(name));
 
     // The new list
     ElementList<T> list = new ElementList<>();
     // A proxy for the list is needed, for handling the automated event mechanism
-    ElementListProxy proxy = new ElementListProxy(this, getElementType(elementClass));
-    list.linkProxy(new ElementListProxy(this, getElementType(elementClass)));
+    list.linkProxy(new ElementListProxy(this, type));
     stateEntityList.put(name, list);
 
     return list;
@@ -90,38 +242,249 @@ public class State implements ElementProxyOwner {
 
 
   /**
-   * Get the entire set of the ElementProxy that this State is linked to.
+   * Get the entire set of the ElementProxy that this State is linked to. The
+   * types come in the order of their {@link ElementType#getPriority()}, and
+   * in the order they were reached within the same priority.
    *
    * @return A map of {@link Set} of {@link ElementProxy} by {@link ElementType}
    */
   public Map<ElementType, Set<ElementProxy>> getAll() {
     // Create the map
-    Map<ElementType, Set<ElementProxy>>res = new HashMap<>();
+    Map<ElementType, Set<ElementProxy>>res = new LinkedHashMap<>();
+    // The proxies found so far, also guards against the circular references
+    ProxyBitmap visited = new ProxyBitmap();
+    // The graph is walked with an explicit stack instead of recursion, so a
+    // long chain of references doesn't run out of the thread stack
+    ArrayDeque<ElementProxy> stack = new ArrayDeque<>();
 
-    // Go through the seed elements in the main lists of the stations
+    // The ordinals aren't reused while the proxies are marked by them
+    ElementType.beginTraversal();
+    try {
+      // Go through the seed elements in the main lists of the stations
+      for(ElementList<? extends State.Element> list:stateEntityList.values()) {
+        ElementListProxy proxyList = list.getLinkedProxy();
+        proxySet(res, proxyList.getType());
+        proxyList.pushElements(visited, stack);
+
+        while(!stack.isEmpty()) {
+          ElementProxy proxy = stack.pop();
+          proxySet(res, proxy.getType()).append(proxy);
+          proxy.pushReferences(visited, stack);
+        }
+      }
+    } finally {
+      ElementType.endTraversal();
+    }
+    return byPriority(res);
+  }
+
+  // Get the set of the given type, creating one if its not already there
+  private static ProxySet proxySet(Map<ElementType, Set<ElementProxy>> res, ElementType type) {
+    ProxySet proxySet = (ProxySet) res.get(type);
+    if (proxySet == null) {
+      proxySet = new ProxySet(type);
+      res.put(type, proxySet);
+    }
+    return proxySet;
+  }
+
+  // Order the map by the priority of the types, keeping the order within the
+  // same priority. The types mostly come in order already, in which case the
+  // map is returned as it is.
+  private static Map<ElementType, Set<ElementProxy>> byPriority(Map<ElementType, Set<ElementProxy>> res) {
+    ElementType.Priority last = ElementType.Priority.HIGH;
+    boolean inOrder = true;
+    for(ElementType type:res.keySet()) {
+      if (type.getPriority().compareTo(last) < 0) {
+        inOrder = false;
+        break;
+      }
+      last = type.getPriority();
+    }
+    if (inOrder) {
+      return res;
+    }
+
+    Map<ElementType, Set<ElementProxy>> ordered = new LinkedHashMap<>(res.size() * 4 / 3 + 1);
+    for(ElementType.Priority priority:ElementType.Priority.values()) {
+      for(Map.Entry<ElementType, Set<ElementProxy>> entry:res.entrySet()) {
+        if (entry.getKey().getPriority() == priority) {
+          ordered.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * Get the entire set of the ElementProxy that this State is linked to,
+   * same as {@link #getAll()} but with the graph being walked in parallel on
+   * the given pool. Worth it only for the States reaching a large number of
+   * Elements.
+   *
+   * @param pool The pool to do the traversal on
+   * @return A map of {@link Set} of {@link ElementProxy} by {@link ElementType}
+   */
+  public Map<ElementType, Set<ElementProxy>> getAll(ForkJoinPool pool) {
+    Map<ElementType, Set<ElementProxy>> res = new LinkedHashMap<>();
+    Set<ElementProxy> visited = ParallelTraversal.createVisitedSet();
+
+    // The seeds are claimed upfront, the tasks share them out
+    List<ElementProxy> seeds = new ArrayList<>();
     for(ElementList<? extends State.Element> list:stateEntityList.values()) {
       ElementListProxy proxyList = list.getLinkedProxy();
-      ElementType type = proxyList.getType();
+      if (!res.containsKey(proxyList.getType())) {
+        res.put(proxyList.getType(), new HashSet<>());
+      }
+
+      proxyList.claimElements(visited, seeds);
+    }
 
-      Set<ElementProxy> proxySet = res.get(type);
-      // Create a set of Proxy if one is not already there
+    Map<ElementType, List<ElementProxy>> buckets = pool.invoke(new ParallelTraversal(
+            seeds.toArray(new ElementProxy[seeds.size()]), 0, seeds.size(), visited));
+
+    for(Map.Entry<ElementType, List<ElementProxy>> entry:buckets.entrySet()) {
+      Set<ElementProxy> proxySet = res.get(entry.getKey());
       if (proxySet == null) {
-        proxySet = new HashSet<>();
-        res.put(type, proxySet);
+        proxySet = new HashSet<>(entry.getValue().size() * 4 / 3 + 1);
+        res.put(entry.getKey(), proxySet);
       }
+      proxySet.addAll(entry.getValue());
+    }
+    return byPriority(res);
+  }
 
-      // Go through each and every element and recursively get all the dependent
-      // elements. Make sure to check if the proxy has already been found, in which
-      // case the recursion must not be done to avoid circular reference and
-      // infinite searching
-      for(ElementProxy proxy:proxyList.getElements()) {
-        if (!proxySet.contains(proxy)) {
-          proxySet.add(proxy);
-          proxy.getAll(res);
-        }
+  /**
+   * Set the limits on the approximate memory retained by this State through
+   * its seed lists. Crossing the soft limit is informed to the listeners
+   * with {@link EventListener#onSoftLimitExceededEvent(long)}. An Element
+   * which would take the State beyond the hard limit is not added to the
+   * seed list, and a {@link MemoryLimitExceededException} is thrown instead.
+   *
+   * <p>
+   *   The proxies created by a rejected Element stay with their ElementTypes
+   *   until they are collected.
+   * </p>
+   *
+   * @param soft The soft limit in bytes
+   * @param hard The hard limit in bytes
+   */
+  public void setMemoryLimits(long soft, long hard) {
+    assert(soft <= hard):"The soft limit must not be above the hard limit";
+    this.softLimit = soft;
+    this.hardLimit = hard;
+  }
+
+  /**
+   * The approximate bytes retained by this State, as last measured with
+   * {@link #measureRetainedBytes()} plus the growth caused by the seed
+   * entries added since, less the seed entries removed since. Only the
+   * structures of the library are accounted, not the values held by the
+   * fields.
+   *
+   * @return The bytes
+   */
+  public long getRetainedBytes() {
+    return retainedBytes.get();
+  }
+
+  /**
+   * Measure the bytes retained by this State by going through all the
+   * proxies it can reach. A proxy reachable from more than one State is
+   * accounted to each.
+   *
+   * @return The bytes
+   */
+  public long measureRetainedBytes() {
+    long bytes = 0;
+    for(ElementList<? extends State.Element> list:stateEntityList.values()) {
+      bytes += list.getLinkedProxy().getFootprint();
+    }
+    for(Set<ElementProxy> proxies:getAll().values()) {
+      for(ElementProxy proxy:proxies) {
+        bytes += proxy.getFootprint();
       }
     }
-    return res;
+
+    retainedBytes.set(bytes);
+    sharedBytes.set(0);
+    return bytes;
+  }
+
+  /**
+   * Measure the bytes retained by the given proxy and all that it reaches
+   *
+   * @param entry The proxy
+   * @return The bytes
+   */
+  static long measure(ElementProxy entry) {
+    long bytes = 0;
+    ProxyBitmap visited = new ProxyBitmap();
+    ArrayDeque<ElementProxy> stack = new ArrayDeque<>();
+    ElementType.beginTraversal();
+    try {
+      visited.add(entry);
+      stack.push(entry);
+      while(!stack.isEmpty()) {
+        ElementProxy proxy = stack.pop();
+        bytes += proxy.getFootprint();
+        proxy.pushReferences(visited, stack);
+      }
+    } finally {
+      ElementType.endTraversal();
+    }
+    return bytes;
+  }
+
+  /**
+   * Account the growth caused by a new seed entry against the limits
+   *
+   * @param growth The bytes the entry has pulled in
+   * @param shared {@code true} if the entry was already there, in which case
+   *               the growth is all that it reaches and some of it may be
+   *               retained by this State already
+   * @throws MemoryLimitExceededException if the hard limit would be crossed
+   */
+  void admit(long growth, boolean shared) {
+    long bytes = retainedBytes.addAndGet(growth);
+    long counted = shared ? sharedBytes.addAndGet(growth) : sharedBytes.get();
+    if (bytes > hardLimit) {
+      retainedBytes.addAndGet(-growth);
+      if (shared) {
+        sharedBytes.addAndGet(-growth);
+      }
+
+      // Only the bytes charged for the shared entries may have been counted
+      // twice, the State is measured again only if leaving them out could
+      // bring it within the limit. A full State doesn't go through all of
+      // its proxies for every entry it rejects.
+      if (bytes - counted <= hardLimit) {
+        bytes = measureRetainedBytes() + growth;
+      }
+      if (bytes > hardLimit) {
+        throw new MemoryLimitExceededException("The State would retain " + bytes
+                + " bytes, beyond its hard limit of " + hardLimit, bytes);
+      }
+      retainedBytes.addAndGet(growth);
+      if (shared) {
+        sharedBytes.addAndGet(growth);
+      }
+    }
+
+    if (bytes > softLimit && bytes - growth <= softLimit) {
+      for(EventListener e:eventListeners) {
+        e.onSoftLimitExceededEvent(bytes);
+      }
+    }
+  }
+
+  /**
+   * Give back the bytes charged for a seed entry that has been removed
+   *
+   * @param bytes The bytes charged when the entry was added
+   */
+  void discharge(long bytes) {
+    retainedBytes.addAndGet(-bytes);
   }
 
   /**
@@ -130,6 +493,45 @@ public class State implements ElementProxyOwner {
    */
   public interface EventListener {
     void onChangedEvent(ElementProxy proxy);
+
+    /**
+     * Invoked when one of the seed lists of the State is changed
+     *
+     * @param name The name of the seed list
+     */
+    default void onListChangedEvent(String name) { }
+
+    /**
+     * Invoked when the memory retained by the State goes beyond its soft
+     * limit (see {@link #setMemoryLimits(long, long)})
+     *
+     * @param retainedBytes The approximate bytes retained by the State
+     */
+    default void onSoftLimitExceededEvent(long retainedBytes) { }
+
+    /**
+     * Invoked when the value of one of the aggregates created on the State
+     * is changed
+     *
+     * @param aggregate The aggregate with the new value
+     */
+    default void onAggregateChangedEvent(Aggregate aggregate) { }
+  }
+
+  /**
+   * The RecordListener receives the changes on the dependent Elements already
+   * encoded. A change is encoded only once for each {@link RecordEncoder} and
+   * the same bytes are handed over to all the listeners of the encoder.
+   */
+  public interface RecordListener {
+    /**
+     * Invoked with the encoded record of the changed proxy. The buffer is
+     * a view of its own, but the bytes are shared and must not be changed.
+     *
+     * @param proxy The proxy that has changed
+     * @param record The encoded record between position and limit
+     */
+    void onRecord(ElementProxy proxy, ByteBuffer record);
   }
 
   /**
@@ -149,6 +551,58 @@ public class State implements ElementProxyOwner {
     eventListeners.remove(listener);
   }
 
+  /**
+   * Add a RecordListener to this state, which receives the changes encoded
+   * with the given encoder
+   *
+   * @param encoder The encoder for the format needed by the listener, must be
+   *                the same instance for all the listeners of the format
+   * @param listener The listener that is informed of changes
+   */
+  public void addRecordListener(RecordEncoder encoder, RecordListener listener) {
+    Set<RecordListener> listeners = recordListeners.get(encoder);
+    if (listeners == null) {
+      recordListeners.putIfAbsent(encoder, new CopyOnWriteArraySet<>());
+      listeners = recordListeners.get(encoder);
+    }
+    listeners.add(listener);
+  }
+
+  /**
+   * Remove an existing RecordListener
+   *
+   * @param encoder The encoder the listener was added with
+   * @param listener The listener that needs to be removed
+   */
+  public void removeRecordListener(RecordEncoder encoder, RecordListener listener) {
+    Set<RecordListener> listeners = recordListeners.get(encoder);
+    if (listeners != null) {
+      listeners.remove(listener);
+    }
+  }
+
+  /**
+   * Publish all the changes on this State to the subscribers as fast as they
+   * ask for them
+   *
+   * @return The publisher
+   */
+  public ChangePublisher publish() {
+    return new ChangePublisher(this, proxy -> true);
+  }
+
+  /**
+   * Publish the changes on this State that pass the given filter, for
+   * example on the type of the proxy, to the subscribers as fast as they ask
+   * for them
+   *
+   * @param filter The filter on the changed proxies
+   * @return The publisher
+   */
+  public ChangePublisher publish(Predicate<ElementProxy> filter) {
+    return new ChangePublisher(this, filter);
+  }
+
   /**
    * The event firing mechanism
    * @param proxy The element that has changed
@@ -157,16 +611,87 @@ public class State implements ElementProxyOwner {
     for(EventListener e:eventListeners) {
       e.onChangedEvent(proxy);
     }
+
+    if (recordListeners.isEmpty()) {
+      return;
+    }
+
+    for(Map.Entry<RecordEncoder, Set<RecordListener>> entry:recordListeners.entrySet()) {
+      Set<RecordListener> listeners = entry.getValue();
+      if (listeners.isEmpty()) {
+        continue;
+      }
+
+      // Encoded once (and shared with the other States through the proxy),
+      // each listener only gets its own position and limit over the bytes
+      ByteBuffer record = proxy.getEncoded(entry.getKey());
+      for(RecordListener l:listeners) {
+        l.onRecord(proxy, record.duplicate());
+      }
+    }
+  }
+
+  /**
+   * The event firing mechanism for the changes on the seed lists
+   * @param proxy The proxy of the seed list that has changed
+   */
+  void fireListChangedListeners(ElementListProxy proxy) {
+    for(Map.Entry<String, ElementList<? extends State.Element>> entry:stateEntityList.entrySet()) {
+      if (entry.getValue().getLinkedProxy() == proxy) {
+        for(EventListener e:eventListeners) {
+          e.onListChangedEvent(entry.getKey());
+        }
+        break;
+      }
+    }
+  }
+
+  /**
+   * The event firing mechanism for the aggregates over the seed lists
+   * @param aggregate The aggregate whose value has changed
+   */
+  void fireAggregateListeners(Aggregate aggregate) {
+    for(EventListener e:eventListeners) {
+      e.onAggregateChangedEvent(aggregate);
+    }
+  }
+
+  /**
+   * Create an aggregate over a numeric field of the Elements in a seed list.
+   * The aggregate is maintained incrementally as the Elements are synced and
+   * as the list changes, and the listeners are informed whenever its value
+   * changes.
+   *
+   * @param name The name of the aggregate
+   * @param list The name of the seed list
+   * @param field The name of the numeric field on the Elements of the list
+   * @param function The aggregate function
+   * @return The aggregate
+   */
+  public Aggregate createAggregate(String name, String list, String field, Aggregate.Function function) {
+    ElementList<? extends State.Element> seeds = stateEntityList.get(list);
+    assert(seeds != null):"No seed list " + list;
+
+    ElementType type = seeds.getType();
+    int idx = type.getFieldIndex(field);
+    type.markAggregated(idx);
+
+    Aggregate aggregate = new Aggregate(name, function, idx, -1);
+    seeds.getLinkedProxy().addAggregate(aggregate);
+    return aggregate;
   }
 
   /**
    * Retrieve the name of all the seed list that have been created on this
-   * State on the same order as they were created.
+   * State, the lists of the higher priority types first and on the same
+   * order as they were created within the same priority.
    *
    * @return An {@link Iterable} list of names of seed list
    */
   public Iterable<String> getLists() {
-    return stateEntityList.keySet();
+    List<String> names = new ArrayList<>(stateEntityList.keySet());
+    names.sort(Comparator.comparing(name -> stateEntityList.get(name).getType().getPriority()));
+    return names;
   }
 
   /**
@@ -228,6 +753,12 @@ public class State implements ElementProxyOwner {
    * </p>
    */
   public interface Element {
+    /**
+     * The version returned by the Elements that don't keep track of their
+     * versions
+     */
+    long NO_VERSION = Long.MIN_VALUE;
+
     /**
      * An Entity must provide a unique id among the entity
      *
@@ -235,6 +766,18 @@ public class State implements ElementProxyOwner {
      */
     Long getId();
 
+    /**
+     * The version of the data of this Element. An Element that can tell when
+     * it has changed, should return a different version after every change.
+     * The {@link #sync()} is skipped altogether without looking into any
+     * field, when the version is the same as during the last sync.
+     *
+     * @return The version or {@link #NO_VERSION} to always check the fields
+     */
+    default long getVersion() {
+      return NO_VERSION;
+    }
+
     /**
      * Update the Proxy with the data from the Entity. Use the
      * {@link ElementProxy#update} methods to update the proxy with the new data.
@@ -256,10 +799,11 @@ public class State implements ElementProxyOwner {
       ElementProxy proxy = type.findProxy(this);
 
       // Try to update the proxy with the values from this element
-      // and sync all the states if there was any change
-      if (proxy.updateProxy(this)) {
+      // and sync all the states if there was any change. There is no proxy
+      // for an element that isn't in any State, or has been collected.
+      if (proxy != null && proxy.updateProxy(this)) {
         // Inform all the states for the proxy that the proxy has changed
-        proxy.syncStates();
+        proxy.fireChanged();
       }
     }
 
@@ -0,0 +1,253 @@
+package net.symplifier.lib.state;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The follower side of the State replication. The StateFollower connects to
+ * a {@link StateReplicator} and applies the received proxies on its own
+ * {@link ElementType}s, so that the local {@link State} and its listeners
+ * behave as if the elements were synced locally.
+ *
+ * <p>
+ *   The seed lists are created on the local State with the same name as on
+ *   the primary, if they are not already created. The element classes
+ *   referred by the primary must have been registered on this process, the
+ *   easiest way is to create the seed lists up front with
+ *   {@link State#createList(String, Class)}.
+ * </p>
+ * <p>
+ *   On a follower the seed lists only maintain the proxies, use
+ *   {@link ElementList#getProxies()} to go through them.
+ * </p>
+ */
+public class StateFollower implements Closeable {
+
+  /* The local state being maintained */
+  private final State state;
+  /* The address of the primary */
+  private final InetSocketAddress address;
+
+  /* The types as tagged by the primary */
+  private final Map<Integer, RemoteType> types = new HashMap<>();
+  /* Released once the initial snapshot has been applied */
+  private final CountDownLatch synced = new CountDownLatch(1);
+
+  private Socket socket;
+  private Thread readerThread;
+
+  /**
+   * Create a follower for the given state
+   *
+   * @param state The local State which is updated from the primary
+   * @param address The address of the {@link StateReplicator}
+   */
+  public StateFollower(State state, InetSocketAddress address) {
+    this.state = state;
+    this.address = address;
+  }
+
+  /**
+   * Connect to the primary and start applying the changes in the background
+   *
+   * @throws IOException if the connection could not be established
+   */
+  public void start() throws IOException {
+    socket = new Socket();
+    socket.connect(address);
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+    readerThread = new Thread(() -> {
+      try {
+        while(true) {
+          readFrame(in);
+        }
+      } catch(EOFException e) {
+        // The primary has closed the connection
+      } catch(IOException e) {
+        if (!socket.isClosed()) {
+          e.printStackTrace();
+        }
+      }
+    }, "state-follower");
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+  /**
+   * Wait for the initial snapshot to be applied
+   *
+   * @param timeout The maximum time to wait in milliseconds
+   * @return {@code true} if the snapshot has been applied
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitSynced(long timeout) throws InterruptedException {
+    return synced.await(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (socket != null) {
+      socket.close();
+    }
+  }
+
+  private void readFrame(DataInputStream in) throws IOException {
+    byte frame = in.readByte();
+    switch(frame) {
+      case ReplicationProtocol.SCHEMA:
+        readSchema(in);
+        break;
+      case ReplicationProtocol.RECORD:
+        readRecord(in);
+        break;
+      case ReplicationProtocol.SEED:
+        readSeed(in);
+        break;
+      case ReplicationProtocol.SYNCED:
+        synced.countDown();
+        break;
+      case ReplicationProtocol.INSERT:
+        getSeedList(in.readUTF()).add(in.readInt(), in.readLong());
+        break;
+      case ReplicationProtocol.REMOVE:
+        getSeedList(in.readUTF()).remove(in.readInt());
+        break;
+      default:
+        throw new IOException("Unknown frame " + frame);
+    }
+  }
+
+  private void readSchema(DataInputStream in) throws IOException {
+    int tag = in.readShort();
+    String name = in.readUTF();
+    ElementType type = State.findElementType(name);
+    if (type == null) {
+      throw new IOException("The element type " + name + " is not registered "
+              + "on the follower");
+    }
+
+    int fieldCount = in.readShort();
+    RemoteType remote = new RemoteType(type, fieldCount);
+
+    // Map the fields by name, a field missing on either side is ignored
+    Map<String, Integer> local = new HashMap<>();
+    for(int i=0; i<type.getFieldCount(); ++i) {
+      local.put(type.getFieldName(i), i);
+    }
+
+    for(int i=0; i<fieldCount; ++i) {
+      String fieldName = in.readUTF();
+      byte code = in.readByte();
+      ValueKind kind = ValueKind.fromCode(code);
+      if (kind == null) {
+        throw new IOException("Unknown field kind " + code);
+      }
+      String refName = null;
+      if (kind.isReference()) {
+        refName = in.readUTF();
+      }
+
+      remote.kinds[i] = kind;
+      remote.fieldMap[i] = -1;
+      Integer idx = local.get(fieldName);
+      if (idx != null) {
+        if (type.getFieldKind(idx) == kind
+                && (refName == null || refName.equals(type.getReferredType(idx).getRegisteredName()))) {
+          remote.fieldMap[i] = idx;
+        }
+      }
+    }
+
+    types.put(tag, remote);
+  }
+
+  private void readRecord(DataInputStream in) throws IOException {
+    RemoteType remote = getRemoteType(in.readShort());
+    ElementProxy proxy = remote.type.findOrCreateProxy(in.readLong());
+
+    boolean changed = false;
+    for(int i=0; i<remote.kinds.length; ++i) {
+      ValueKind kind = remote.kinds[i];
+      Object value = ReplicationProtocol.readValue(in, kind);
+      int idx = remote.fieldMap[i];
+      if (idx < 0) {
+        continue;
+      }
+
+      if (kind == ValueKind.ELEMENT) {
+        changed |= proxy.applyReference(idx, (Long)value);
+      } else if (kind == ValueKind.LIST) {
+        changed |= proxy.applyList(idx, (long[])value);
+      } else {
+        changed |= proxy.apply(idx, value);
+      }
+    }
+
+    if (changed) {
+      proxy.markChanged();
+      proxy.fireChanged();
+    }
+  }
+
+  private void readSeed(DataInputStream in) throws IOException {
+    String name = in.readUTF();
+    RemoteType remote = getRemoteType(in.readShort());
+    long[] ids = new long[in.readInt()];
+    for(int i=0; i<ids.length; ++i) {
+      ids[i] = in.readLong();
+    }
+
+    ElementList<? extends State.Element> list = state.getList(name);
+    if (list == null) {
+      list = state.createList(name, remote.type);
+    } else if (list.getType() != remote.type) {
+      throw new IOException("The seed list " + name + " is of a different type "
+              + "on the follower");
+    }
+
+    list.getLinkedProxy().apply(ids);
+  }
+
+  private ElementListProxy getSeedList(String name) throws IOException {
+    ElementList<? extends State.Element> list = state.getList(name);
+    if (list == null) {
+      throw new IOException("Unknown seed list " + name);
+    }
+    return list.getLinkedProxy();
+  }
+
+  private RemoteType getRemoteType(int tag) throws IOException {
+    RemoteType remote = types.get(tag);
+    if (remote == null) {
+      throw new IOException("Unknown type tag " + tag);
+    }
+    return remote;
+  }
+
+  /**
+   * The type as described by the primary, mapped to the local type
+   */
+  private static class RemoteType {
+    private final ElementType type;
+    /* The kinds of the fields as sent by the primary */
+    private final ValueKind[] kinds;
+    /* The local field index for each of the primary field, -1 if skipped */
+    private final int[] fieldMap;
+
+    RemoteType(ElementType type, int fieldCount) {
+      this.type = type;
+      this.kinds = new ValueKind[fieldCount];
+      this.fieldMap = new int[fieldCount];
+    }
+  }
+}
@@ -0,0 +1,538 @@
+package net.symplifier.lib.state;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The primary side of the State replication. The StateReplicator listens on a
+ * socket and streams the proxies of its {@link State} to every
+ * {@link StateFollower} that connects, so that the followers don't need to
+ * poll the sources themselves.
+ *
+ * <p>
+ *   A follower that connects first receives a snapshot of all the proxies
+ *   reachable from the State along with the seed lists. After that, every
+ *   changed proxy is sent as a record, and every element inserted in or
+ *   removed from a seed list as a change of that position alone. See
+ *   {@link ReplicationProtocol} for the format.
+ * </p>
+ * <p>
+ *   The changes are only queued on the thread doing the sync, each follower
+ *   has its own thread writing to its socket. A follower that falls behind
+ *   by more than the capacity of its queue is disconnected, and has to
+ *   connect again for a fresh snapshot.
+ * </p>
+ */
+public class StateReplicator implements State.EventListener, Closeable {
+
+  /* The number of changes waiting for a follower by default */
+  private static final int DEFAULT_CAPACITY = 65536;
+  /* The number of proxies known to a follower before they are first pruned */
+  private static final int PRUNE_THRESHOLD = 1024;
+
+  /* The state being replicated */
+  private final State state;
+  /* The socket on which the followers connect */
+  private final ServerSocket serverSocket;
+  /* The followers that are currently connected */
+  private final List<Follower> followers = new CopyOnWriteArrayList<>();
+  /* The number of changes each follower may have waiting */
+  private final int capacity;
+
+  /* The seed lists as sent to the followers, by name. Changed only through
+     the windows over the lists and guarded by the map, so that a follower
+     joining gets a copy in line with the changes queued after it. */
+  private final Map<String, SeedMirror> mirrors = new HashMap<>();
+
+  private Thread acceptThread;
+
+  /**
+   * Create a replicator for the given state listening on the loopback
+   * interface
+   *
+   * @param state The State to be replicated
+   * @param port The port to listen on, 0 for any free port
+   * @throws IOException if the socket could not be opened
+   */
+  public StateReplicator(State state, int port) throws IOException {
+    this(state, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+  }
+
+  /**
+   * Create a replicator for the given state listening on the given address
+   *
+   * @param state The State to be replicated
+   * @param address The address to listen on
+   * @throws IOException if the socket could not be opened
+   */
+  public StateReplicator(State state, InetSocketAddress address) throws IOException {
+    this(state, address, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a replicator for the given state listening on the given address,
+   * keeping up to the given number of changes waiting for each follower
+   *
+   * @param state The State to be replicated
+   * @param address The address to listen on
+   * @param capacity The maximum number of changes waiting for a follower
+   * @throws IOException if the socket could not be opened
+   */
+  public StateReplicator(State state, InetSocketAddress address, int capacity) throws IOException {
+    assert(capacity > 0):"The capacity must be positive";
+
+    this.state = state;
+    this.capacity = capacity;
+    this.serverSocket = new ServerSocket();
+    this.serverSocket.bind(address);
+  }
+
+  /**
+   * The port on which the replicator is listening
+   *
+   * @return The local port
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Start accepting the followers
+   */
+  public void start() {
+    state.addEventListener(this);
+    for(String name:state.getLists()) {
+      mirror(name);
+    }
+
+    acceptThread = new Thread(() -> {
+      while(!serverSocket.isClosed()) {
+        try {
+          Socket socket = serverSocket.accept();
+          socket.setTcpNoDelay(true);
+          accept(new Follower(socket));
+        } catch(IOException e) {
+          if (!serverSocket.isClosed()) {
+            e.printStackTrace();
+          }
+        }
+      }
+    }, "state-replicator");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  // Register the follower with its snapshot as the first thing to be sent.
+  // The snapshot itself is taken by the thread of the follower.
+  private void accept(Follower follower) {
+    // Opening a window fills the mirror, which is then copied as it is
+    List<SeedMirror> current = new ArrayList<>();
+    for(String name:state.getLists()) {
+      current.add(mirror(name));
+    }
+
+    synchronized (mirrors) {
+      Map<String, List<ElementProxy>> seeds = new LinkedHashMap<>();
+      for(SeedMirror mirror:current) {
+        seeds.put(mirror.name, new ArrayList<>(mirror.proxies));
+      }
+
+      // A record changing before the snapshot is taken is simply sent
+      // twice, the changes of the seed lists come strictly after the copy
+      follower.queue(new Snapshot(seeds));
+      followers.add(follower);
+    }
+    follower.start();
+  }
+
+  // The mirror of the seed list with the given name. The callbacks of a
+  // window take the mirrors under the lock of the window, so the window is
+  // always opened and closed outside the mirrors.
+  private SeedMirror mirror(String name) {
+    SeedMirror mirror;
+    synchronized (mirrors) {
+      mirror = mirrors.get(name);
+      if (mirror != null) {
+        return mirror;
+      }
+      mirror = new SeedMirror(name);
+      mirrors.put(name, mirror);
+    }
+
+    ListWindow window = state.getList(name).openWindow(0, Integer.MAX_VALUE, mirror);
+    boolean closed;
+    synchronized (mirrors) {
+      mirror.window = window;
+      closed = mirrors.get(name) != mirror;
+    }
+    if (closed) {
+      // The replicator was closed in the meantime
+      window.close();
+    }
+    return mirror;
+  }
+
+  @Override
+  public void close() throws IOException {
+    state.removeEventListener(this);
+    serverSocket.close();
+    List<ListWindow> windows = new ArrayList<>();
+    synchronized (mirrors) {
+      for(SeedMirror mirror:mirrors.values()) {
+        if (mirror.window != null) {
+          windows.add(mirror.window);
+        }
+      }
+      mirrors.clear();
+    }
+    for(ListWindow window:windows) {
+      window.close();
+    }
+    for(Follower follower:followers) {
+      follower.close();
+    }
+  }
+
+  @Override
+  public void onChangedEvent(ElementProxy proxy) {
+    for(Follower follower:followers) {
+      follower.queue(proxy);
+    }
+  }
+
+  @Override
+  public void onListChangedEvent(String name) {
+    // A list created after the start is followed from its first change on,
+    // its whole content goes out when the window is opened
+    mirror(name);
+  }
+
+  /**
+   * The snapshot for a joining follower, with the seed lists as they were
+   * when it joined
+   */
+  private static final class Snapshot {
+    private final Map<String, List<ElementProxy>> seeds;
+
+    Snapshot(Map<String, List<ElementProxy>> seeds) {
+      this.seeds = seeds;
+    }
+  }
+
+  /**
+   * The change of a single position of a seed list, or the whole list when
+   * the list has been reset
+   */
+  private static final class SeedChange {
+    private final String name;
+    private final int position;
+    /* The proxy inserted, null when removed */
+    private final ElementProxy proxy;
+    /* The whole content, when reset */
+    private final List<ElementProxy> proxies;
+
+    SeedChange(String name, int position, ElementProxy proxy, List<ElementProxy> proxies) {
+      this.name = name;
+      this.position = position;
+      this.proxy = proxy;
+      this.proxies = proxies;
+    }
+  }
+
+  /**
+   * The content of a seed list as sent to the followers, kept in line by a
+   * window over the whole list
+   */
+  private class SeedMirror implements ListWindow.Listener {
+    private final String name;
+    private final List<ElementProxy> proxies = new ArrayList<>();
+    private ListWindow window;
+    /* The position of an insertion, whose element follows right after */
+    private int inserting = -1;
+
+    SeedMirror(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void onReset(List<ElementProxy> proxies) {
+      synchronized (mirrors) {
+        this.proxies.clear();
+        this.proxies.addAll(proxies);
+        publish(new SeedChange(name, 0, null, new ArrayList<>(proxies)));
+      }
+    }
+
+    @Override
+    public void onShifted(int position, int delta) {
+      synchronized (mirrors) {
+        if (delta > 0) {
+          inserting = position;
+        } else {
+          proxies.remove(position);
+          publish(new SeedChange(name, position, null, null));
+        }
+      }
+    }
+
+    @Override
+    public void onEntered(int position, ElementProxy proxy) {
+      synchronized (mirrors) {
+        if (position == inserting) {
+          inserting = -1;
+        } else {
+          // Replaced
+          proxies.remove(position);
+          publish(new SeedChange(name, position, null, null));
+        }
+        proxies.add(position, proxy);
+        publish(new SeedChange(name, position, proxy, null));
+      }
+    }
+
+    private void publish(SeedChange change) {
+      for(Follower follower:followers) {
+        follower.queue(change);
+      }
+    }
+  }
+
+  /**
+   * A single connected follower. The changes are queued from any thread and
+   * written out by the thread of the follower, which alone touches the
+   * stream and the state of the follower.
+   */
+  private class Follower {
+    private final Socket socket;
+    private final DataOutputStream out;
+    /* The changes waiting to be written */
+    private final BlockingQueue<Object> pending;
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    /* The tags of the types whose schema has been sent */
+    private final Map<ElementType, Integer> tags = new HashMap<>();
+    /* The proxies whose records have been sent at least once */
+    private final Set<ElementProxy> known = Collections.newSetFromMap(new IdentityHashMap<>());
+    /* The size of the known set at which it is pruned next */
+    private int pruneAt = PRUNE_THRESHOLD;
+    /* The proxies whose records are being written, the referred ones first */
+    private final ArrayDeque<ElementProxy> stack = new ArrayDeque<>();
+
+    Follower(Socket socket) throws IOException {
+      this.socket = socket;
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      this.pending = new ArrayBlockingQueue<>(capacity);
+      this.writerThread = new Thread(this::run, "state-replicator-follower");
+      this.writerThread.setDaemon(true);
+    }
+
+    void start() {
+      writerThread.start();
+    }
+
+    // Never blocks the thread doing the sync, a follower that can't keep
+    // up is let go
+    void queue(Object change) {
+      if (!pending.offer(change)) {
+        drop();
+      }
+    }
+
+    private void run() {
+      try {
+        while(!closed) {
+          Object change = pending.take();
+          if (change instanceof ElementProxy) {
+            writeRecord((ElementProxy) change);
+          } else if (change instanceof SeedChange) {
+            writeSeedChange((SeedChange) change);
+          } else {
+            writeSnapshot((Snapshot) change);
+          }
+
+          // Flushed once everything queued so far has been written
+          if (pending.isEmpty()) {
+            out.flush();
+          }
+        }
+      } catch(InterruptedException e) {
+        // Closed
+      } catch(IOException e) {
+        drop();
+      } catch(RuntimeException e) {
+        // A failure writing one follower must not leave it hanging
+        e.printStackTrace();
+        drop();
+      }
+    }
+
+    void close() {
+      closed = true;
+      writerThread.interrupt();
+      try {
+        socket.close();
+      } catch(IOException e) {
+        // Nothing to do, the follower is going away anyway
+      }
+    }
+
+    private void drop() {
+      followers.remove(this);
+      close();
+    }
+
+    private void writeSnapshot(Snapshot snapshot) throws IOException {
+      for(Set<ElementProxy> proxies:state.getAll().values()) {
+        for(ElementProxy proxy:proxies) {
+          writeUnknown(proxy);
+        }
+      }
+
+      for(Map.Entry<String, List<ElementProxy>> entry:snapshot.seeds.entrySet()) {
+        writeSeed(entry.getKey(), entry.getValue());
+      }
+      out.writeByte(ReplicationProtocol.SYNCED);
+    }
+
+    private void writeSeedChange(SeedChange change) throws IOException {
+      if (change.proxies != null) {
+        writeSeed(change.name, change.proxies);
+      } else if (change.proxy != null) {
+        // The element must be known to the follower before the list
+        writeUnknown(change.proxy);
+        out.writeByte(ReplicationProtocol.INSERT);
+        out.writeUTF(change.name);
+        out.writeInt(change.position);
+        out.writeLong(change.proxy.getId());
+      } else {
+        out.writeByte(ReplicationProtocol.REMOVE);
+        out.writeUTF(change.name);
+        out.writeInt(change.position);
+      }
+    }
+
+    private void writeSeed(String name, List<ElementProxy> proxies) throws IOException {
+      // The elements must be known to the follower before the list
+      for(ElementProxy proxy:proxies) {
+        writeUnknown(proxy);
+      }
+
+      int tag = getTag(state.getList(name).getType());
+      out.writeByte(ReplicationProtocol.SEED);
+      out.writeUTF(name);
+      out.writeShort(tag);
+      out.writeInt(proxies.size());
+      for(ElementProxy proxy:proxies) {
+        out.writeLong(proxy.getId());
+      }
+    }
+
+    private void writeUnknown(ElementProxy proxy) throws IOException {
+      if (!known.contains(proxy)) {
+        writeRecord(proxy);
+      }
+    }
+
+    // The records of the referred elements that are not known yet go ahead
+    // of the record of the proxy. The graph is walked with an explicit stack,
+    // so a long chain of references doesn't run out of the thread stack.
+    private void writeRecord(ElementProxy proxy) throws IOException {
+      prune();
+      known.add(proxy);
+      stack.push(proxy);
+      while(!stack.isEmpty()) {
+        ElementProxy top = stack.peek();
+        if (!pushUnknown(top)) {
+          stack.pop();
+          writeValues(top);
+        }
+      }
+    }
+
+    // Push the referred elements not known yet, which are known from now on
+    // as their records are on the way. False if there are none.
+    private boolean pushUnknown(ElementProxy proxy) {
+      boolean pushed = false;
+      ElementType type = proxy.getType();
+      for(int i=0; i<type.getFieldCount(); ++i) {
+        Object value = proxy.getStoredValue(i);
+        if (value instanceof ElementProxy) {
+          pushed |= pushIfUnknown((ElementProxy) value);
+        } else if (value instanceof ElementListProxy) {
+          for(ElementProxy child:((ElementListProxy) value).getElements()) {
+            pushed |= pushIfUnknown(child);
+          }
+        }
+      }
+      return pushed;
+    }
+
+    private boolean pushIfUnknown(ElementProxy proxy) {
+      if (known.add(proxy)) {
+        stack.push(proxy);
+        return true;
+      }
+      return false;
+    }
+
+    private void writeValues(ElementProxy proxy) throws IOException {
+      ElementType type = proxy.getType();
+      int fieldCount = type.getFieldCount();
+      int tag = getTag(type);
+      out.writeByte(ReplicationProtocol.RECORD);
+      out.writeShort(tag);
+      out.writeLong(proxy.getId());
+      for(int i=0; i<fieldCount; ++i) {
+        ReplicationProtocol.writeValue(out, type.getFieldKind(i), proxy.getStoredValue(i));
+      }
+    }
+
+    // Forget the proxies released by the collector once the known set has
+    // doubled since it was last pruned. An element coming back has a new
+    // proxy, which is sent as unknown.
+    private void prune() {
+      if (known.size() < pruneAt) {
+        return;
+      }
+
+      known.removeIf(ElementProxy::isCondemned);
+      pruneAt = Math.max(PRUNE_THRESHOLD, known.size() * 2);
+    }
+
+    private int getTag(ElementType type) throws IOException {
+      Integer tag = tags.get(type);
+      if (tag != null) {
+        return tag;
+      }
+
+      tag = tags.size();
+      tags.put(type, tag);
+
+      int fieldCount = type.getFieldCount();
+      out.writeByte(ReplicationProtocol.SCHEMA);
+      out.writeShort(tag);
+      out.writeUTF(type.getRegisteredName());
+      out.writeShort(fieldCount);
+      for(int i=0; i<fieldCount; ++i) {
+        ValueKind kind = type.getFieldKind(i);
+        out.writeUTF(type.getFieldName(i));
+        out.writeByte(kind.getCode());
+        if (kind.isReference()) {
+          out.writeUTF(type.getReferredType(i).getRegisteredName());
+        }
+      }
+      return tag;
+    }
+  }
+}
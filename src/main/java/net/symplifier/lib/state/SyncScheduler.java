@@ -0,0 +1,254 @@
+package net.symplifier.lib.state;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The SyncScheduler periodically syncs all the Elements reachable from a
+ * {@link State}, so that the applications don't need their own polling loop.
+ *
+ * <p>
+ *   The syncs are spread over a timing wheel, every element is placed on the
+ *   wheel at its own offset so that the elements don't all fire at the same
+ *   time. The interval of each element adapts between the minimum and the
+ *   maximum interval. It is halved whenever the element was found changed
+ *   since its last sync and doubled whenever it wasn't.
+ * </p>
+ * <p>
+ *   The reachable elements are found out again with {@link State#getAll()}
+ *   once every wheel revolution. The new elements are added to the wheel and
+ *   the ones that are no longer reachable are dropped. An element that is
+ *   reachable from more than one State with a scheduler is synced by each.
+ * </p>
+ * <p>
+ *   The syncs are done on the scheduler thread, or handed over to a
+ *   {@link ShardedSync} when one is given.
+ * </p>
+ */
+public class SyncScheduler {
+
+  /* The number of slots on the wheel */
+  private static final int WHEEL_SIZE = 512;
+
+  private final State state;
+  /* Where the syncs are handed over to, null to sync on the scheduler thread */
+  private final ShardedSync shards;
+
+  /* The duration of a tick, same as the minimum interval */
+  private final long tickNanos;
+  /* The maximum interval in ticks */
+  private final int maxTicks;
+
+  /* The wheel, each slot has the entries due on that slot */
+  private final List<List<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+  /* The entries for the proxies currently on the wheel */
+  private final Map<ElementProxy, Entry> entries = new IdentityHashMap<>();
+
+  private int cursor;
+  /* The entries due on the current tick, only used by the scheduler thread */
+  private final List<Entry> due = new ArrayList<>();
+  private volatile boolean running;
+  private Thread thread;
+
+  /**
+   * Create a scheduler that syncs on its own thread
+   *
+   * @param state The state whose elements are to be synced
+   * @param minInterval The shortest interval between two syncs of an element
+   * @param maxInterval The longest interval between two syncs of an element
+   * @param unit The unit of the intervals
+   */
+  public SyncScheduler(State state, long minInterval, long maxInterval, TimeUnit unit) {
+    this(state, null, minInterval, maxInterval, unit);
+  }
+
+  /**
+   * Create a scheduler that hands over the syncs to the given shards
+   *
+   * @param state The state whose elements are to be synced
+   * @param shards The shards to do the syncs, {@code null} to sync on the
+   *               scheduler thread
+   * @param minInterval The shortest interval between two syncs of an element,
+   *                    also the resolution of the wheel
+   * @param maxInterval The longest interval between two syncs of an element
+   * @param unit The unit of the intervals
+   */
+  public SyncScheduler(State state, ShardedSync shards, long minInterval, long maxInterval, TimeUnit unit) {
+    assert(minInterval > 0 && maxInterval >= minInterval):"Invalid intervals";
+
+    this.state = state;
+    this.shards = shards;
+    this.tickNanos = unit.toNanos(minInterval);
+    this.maxTicks = (int) Math.min(Integer.MAX_VALUE, unit.toNanos(maxInterval) / tickNanos);
+
+    for(int i=0; i<WHEEL_SIZE; ++i) {
+      wheel.add(new ArrayList<>());
+    }
+  }
+
+  /**
+   * Start the scheduler thread
+   */
+  public void start() {
+    running = true;
+    thread = new Thread(this::run, "state-sync-scheduler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop the scheduler thread and wait for it to finish
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void stop() throws InterruptedException {
+    running = false;
+    LockSupport.unpark(thread);
+    thread.join();
+  }
+
+  /**
+   * The current interval of the given proxy in the units of the minimum
+   * interval, mainly for monitoring
+   *
+   * @param proxy The proxy reachable from the State
+   * @return The interval or 0 if the proxy is not scheduled
+   */
+  public synchronized int getInterval(ElementProxy proxy) {
+    Entry entry = entries.get(proxy);
+    return entry == null ? 0 : entry.interval;
+  }
+
+  private void run() {
+    long next = System.nanoTime();
+    while(running) {
+      if (cursor == 0) {
+        refresh();
+      }
+
+      tick();
+
+      next += tickNanos;
+      long delay = next - System.nanoTime();
+      if (delay > 0) {
+        LockSupport.parkNanos(this, delay);
+      }
+    }
+  }
+
+  /* Bring the wheel in line with the elements reachable right now */
+  private void refresh() {
+    // The lists are walked under their own locks, a list changing in the
+    // meantime shows up on the next revolution
+    Map<ElementType, Set<ElementProxy>> all = state.getAll();
+    Set<ElementProxy> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+    for(Set<ElementProxy> proxies:all.values()) {
+      reachable.addAll(proxies);
+    }
+
+    synchronized (this) {
+      Iterator<Map.Entry<ElementProxy, Entry>> it = entries.entrySet().iterator();
+      while(it.hasNext()) {
+        Map.Entry<ElementProxy, Entry> e = it.next();
+        if (!reachable.contains(e.getKey())) {
+          e.getValue().cancelled = true;
+          it.remove();
+        }
+      }
+
+      for(ElementProxy proxy:reachable) {
+        if (!entries.containsKey(proxy) && proxy.getElement() != null) {
+          Entry entry = new Entry(proxy);
+          entries.put(proxy, entry);
+          // Spread the first sync of the new entries over a revolution
+          int spread = Math.min(WHEEL_SIZE, maxTicks);
+          schedule(entry, 1 + (System.identityHashCode(proxy) & Integer.MAX_VALUE) % spread);
+        }
+      }
+    }
+  }
+
+  private void tick() {
+    synchronized (this) {
+      cursor = (cursor + 1) % WHEEL_SIZE;
+      List<Entry> slot = wheel.get(cursor);
+      Iterator<Entry> it = slot.iterator();
+      while(it.hasNext()) {
+        Entry entry = it.next();
+        if (entry.cancelled) {
+          it.remove();
+        } else if (entry.rounds > 0) {
+          entry.rounds -= 1;
+        } else {
+          it.remove();
+          adapt(entry);
+          schedule(entry, entry.interval);
+          due.add(entry);
+        }
+      }
+    }
+
+    // The syncs are done outside the lock, so that a slow sync doesn't hold
+    // up the refresh or the monitoring
+    for(Entry entry:due) {
+      fire(entry);
+    }
+    due.clear();
+  }
+
+  // Adapt the interval of the entry to whether it changed since last time
+  private void adapt(Entry entry) {
+    // The effect of the previous sync shows up in the revision now, which
+    // works the same whether the sync was done here or on a shard
+    long revision = entry.proxy.getRevision();
+    if (revision != entry.revision) {
+      entry.revision = revision;
+      entry.interval = Math.max(1, entry.interval / 2);
+    } else {
+      entry.interval = (int) Math.min(maxTicks, entry.interval * 2L);
+    }
+  }
+
+  private void fire(Entry entry) {
+    State.Element element = entry.proxy.getElement();
+    if (element == null) {
+      return;
+    }
+
+    try {
+      if (shards != null) {
+        shards.sync(element);
+      } else {
+        element.sync();
+      }
+    } catch(RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void schedule(Entry entry, int delay) {
+    entry.rounds = (delay - 1) / WHEEL_SIZE;
+    wheel.get((int)((cursor + (long)delay) % WHEEL_SIZE)).add(entry);
+  }
+
+  /**
+   * A proxy on the wheel
+   */
+  private static class Entry {
+    private final ElementProxy proxy;
+    /* The interval in ticks */
+    private int interval;
+    /* The revision of the proxy when last checked */
+    private long revision;
+    /* The number of revolutions left before the entry is due */
+    private int rounds;
+    private boolean cancelled;
+
+    Entry(ElementProxy proxy) {
+      this.proxy = proxy;
+      this.revision = proxy.getRevision();
+      this.interval = 1;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package net.symplifier.lib.state;
+
+/**
+ * The kind of a field value, resolved once from its {@link ValueType} when
+ * the {@link ElementType} is created. The serializers switch on the kind of
+ * each field instead of going through the {@link ValueType} every time a
+ * value is written.
+ *
+ * <p>
+ *   The code of a kind is used as is on the wire (see
+ *   {@link ReplicationProtocol}) and must never be changed.
+ * </p>
+ */
+public enum ValueKind {
+  BYTE(1),
+  SHORT(2),
+  INTEGER(3),
+  LONG(4),
+  FLOAT(5),
+  DOUBLE(6),
+  BOOLEAN(7),
+  CHARACTER(8),
+  STRING(9),
+  DATE(10),
+  ELEMENT(11),
+  LIST(12);
+
+  private final byte code;
+
+  ValueKind(int code) {
+    this.code = (byte)code;
+  }
+
+  /**
+   * The stable code for the kind
+   *
+   * @return The code
+   */
+  public byte getCode() {
+    return code;
+  }
+
+  /**
+   * Find out if the kind refers to other elements, either as a reference or
+   * as a list
+   *
+   * @return {@code true} for {@link #ELEMENT} and {@link #LIST}
+   */
+  public boolean isReference() {
+    return this == ELEMENT || this == LIST;
+  }
+
+  /**
+   * Find the kind for the given code
+   *
+   * @param code The code as returned by {@link #getCode()}
+   * @return The kind or {@code null} if the code is not known
+   */
+  public static ValueKind fromCode(byte code) {
+    for(ValueKind kind:values()) {
+      if (kind.code == code) {
+        return kind;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Resolve the kind of the given value type
+   *
+   * @param type The value type of a field
+   * @return The kind of the value type
+   */
+  public static ValueKind of(ValueType type) {
+    if (type.isElement()) {
+      return ELEMENT;
+    } else if (type.isList()) {
+      return LIST;
+    } else if (type == ValueType.BYTE) {
+      return BYTE;
+    } else if (type == ValueType.SHORT) {
+      return SHORT;
+    } else if (type == ValueType.INTEGER) {
+      return INTEGER;
+    } else if (type == ValueType.LONG) {
+      return LONG;
+    } else if (type == ValueType.FLOAT) {
+      return FLOAT;
+    } else if (type == ValueType.DOUBLE) {
+      return DOUBLE;
+    } else if (type == ValueType.BOOLEAN) {
+      return BOOLEAN;
+    } else if (type == ValueType.CHARACTER) {
+      return CHARACTER;
+    } else if (type == ValueType.STRING) {
+      return STRING;
+    } else if (type == ValueType.DATE) {
+      return DATE;
+    }
+
+    throw new IllegalArgumentException("Unknown value type " + type.getName());
+  }
+}
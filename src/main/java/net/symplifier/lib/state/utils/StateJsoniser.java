@@ -1,10 +1,13 @@
 package net.symplifier.lib.state.utils;
 
-import net.symplifier.lib.persistence.state.*;
 import net.symplifier.lib.state.*;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Set;
 
@@ -13,6 +16,14 @@ import java.util.Set;
  */
 public class StateJsoniser {
 
+  /**
+   * Encodes the proxy as its JSON record in UTF-8, use it with
+   * {@link ElementProxy#getEncoded(RecordEncoder)} to share the same record
+   * with every client
+   */
+  public static final RecordEncoder RECORD_ENCODER = proxy ->
+          ByteBuffer.wrap(toRecord(proxy).toString().getBytes(StandardCharsets.UTF_8));
+
   private final State state;
 
   public StateJsoniser(State state) {
@@ -37,7 +48,7 @@ public class StateJsoniser {
       ElementType type = items.getType();
       o.put("type", type.getName());
       JSONArray list = new JSONArray();
-      for(State.Element e:items) {
+      for(ElementProxy e:items.getProxies()) {
         list.put(e.getId());
       }
       o.put("items", list);
@@ -49,52 +60,146 @@ public class StateJsoniser {
     res.put("oracle", oracle);
     Map<ElementType, Set<ElementProxy>> all = this.state.getAll();
     for(Map.Entry<ElementType, Set<ElementProxy>> entry: all.entrySet()) {
+      ElementType type = entry.getKey();
       JSONObject o = new JSONObject();
       oracle.put(o);
-      o.put("type", entry.getKey().getName());
-      JSONArray structure = new JSONArray();
-      o.put("structure", structure);
-      Map<String, ValueType> struct = entry.getKey().getStructure();
-      for(Map.Entry<String, ValueType> structEntry: struct.entrySet()) {
-        JSONObject field = new JSONObject();
-        structure.put(field);
-        field.put(structEntry.getKey(), structEntry.getValue().getName());
-      }
+      o.put("type", type.getName());
+      o.put("structure", getStructure(type));
 
       JSONObject data = new JSONObject();
       o.put("data", data);
       for(ElementProxy e:entry.getValue()) {
-        JSONArray record = new JSONArray();
-        data.put(e.getId().toString(), record);
-
-        int idx = 0;
-        for(ValueType v:struct.values()) {
-          Object value = e.getValue(idx++);
-          if (v.isElement()) {
-            if (value == null) {
-              record.put(JSONObject.NULL);
-            } else {
-              record.put(((ElementProxy) value).getId());
-            }
-          } else if(v.isList()) {
-            JSONArray list = new JSONArray();
-            for(ElementProxy ch:((ElementListProxy)value).getElements()) {
-              list.put(ch.getId());
-            }
-            record.put(list);
-          } else {
-            record.put(value);
-          }
-        }
+        data.put(e.getId().toString(), toRecord(e));
+      }
+    }
+
+    // Put the entire oracle for this state into a object
+    return res;
+  }
+
+  /**
+   * Write the same document as {@link #toJSON()} in UTF-8 to the given stream.
+   * The records are taken from the encoded record cache of the proxies, so
+   * a record is only encoded again once its proxy has changed.
+   *
+   * @param out The stream to write to
+   * @throws IOException on write failure
+   */
+  public void write(OutputStream out) throws IOException {
+    JSONArray state = new JSONArray();
+    for(String name:this.state.getLists()) {
+      JSONObject o = new JSONObject();
+      o.put("name", name);
+      ElementList<? extends State.Element> items = this.state.getList(name);
+      o.put("type", items.getType().getName());
+      JSONArray list = new JSONArray();
+      for(ElementProxy e:items.getProxies()) {
+        list.put(e.getId());
+      }
+      o.put("items", list);
+      state.put(o);
+    }
+
+    writeText(out, "{\"state\":");
+    writeText(out, state.toString());
+    writeText(out, ",\"oracle\":[");
+
+    boolean firstType = true;
+    for(Map.Entry<ElementType, Set<ElementProxy>> entry: this.state.getAll().entrySet()) {
+      ElementType type = entry.getKey();
+      if (!firstType) {
+        out.write(',');
       }
+      firstType = false;
+
+      writeText(out, "{\"type\":");
+      writeText(out, JSONObject.quote(type.getName()));
+      writeText(out, ",\"structure\":");
+      writeText(out, type.getStructureJson());
+      writeText(out, ",\"data\":{");
 
+      boolean firstRecord = true;
+      for(ElementProxy e:entry.getValue()) {
+        if (!firstRecord) {
+          out.write(',');
+        }
+        firstRecord = false;
+
+        writeText(out, "\"" + e.getId() + "\":");
+        writeBuffer(out, e.getEncoded(RECORD_ENCODER));
+      }
+      writeText(out, "}}");
     }
+    writeText(out, "]}");
+  }
+
+  private static void writeText(OutputStream out, String text) throws IOException {
+    out.write(text.getBytes(StandardCharsets.UTF_8));
+  }
 
+  // Write the remaining bytes of the buffer, copied out of the direct and the
+  // read only buffers which don't give away their array
+  private static void writeBuffer(OutputStream out, ByteBuffer buffer) throws IOException {
+    if (buffer.hasArray()) {
+      out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    } else {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.duplicate().get(bytes);
+      out.write(bytes);
+    }
+  }
 
+  /**
+   * Retrieve the structure block for the given type, a new array on every
+   * call that the caller is free to change. The block written by
+   * {@link #write(OutputStream)} is the text encoded once by the type, see
+   * {@link ElementType#getStructureJson()}.
+   *
+   * @param type The type whose structure is needed
+   * @return The structure as an array of name and type name pairs
+   */
+  public static JSONArray getStructure(ElementType type) {
+    return new JSONArray(type.getStructureJson());
+  }
 
+  /**
+   * Convert the values of the given proxy to a JSON record, the values are
+   * in the same order as the structure of its type
+   *
+   * @param proxy The proxy to be converted
+   * @return The record as a JSON array
+   */
+  public static JSONArray toRecord(ElementProxy proxy) {
+    ElementType type = proxy.getType();
+    int fieldCount = type.getFieldCount();
+
+    JSONArray record = new JSONArray();
+    for(int i=0; i<fieldCount; ++i) {
+      Object value = proxy.getValue(i);
+      switch(type.getFieldKind(i)) {
+        case ELEMENT:
+          record.put(value == null ? JSONObject.NULL : ((ElementProxy) value).getId());
+          break;
+        case DATE:
+          // The epoch millis, a number is read back the same everywhere
+          long millis = proxy.getEpochMillis(i);
+          record.put(millis == ElementProxy.NO_DATE ? JSONObject.NULL : millis);
+          break;
+        case LIST:
+          JSONArray list = new JSONArray();
+          if (value != null) {
+            for(ElementProxy ch:((ElementListProxy)value).getElements()) {
+              list.put(ch.getId());
+            }
+          }
+          record.put(list);
+          break;
+        default:
+          record.put(value);
+      }
+    }
 
-    // Put the entire oracle for this state into a object
-    return res;
+    return record;
   }
 
 
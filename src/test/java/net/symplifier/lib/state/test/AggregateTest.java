@@ -0,0 +1,171 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.Aggregate;
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.ShardedSync;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The aggregates follow the changes of the values and of the lists
+ */
+public class AggregateTest {
+
+  public static class Meter implements State.Element {
+    private final long id;
+    private double reading;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerDouble("reading");
+    }
+
+    public Meter(long id, double reading) {
+      this.id = id;
+      this.reading = reading;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(reading);
+    }
+  }
+
+  public static class Tank implements State.Element {
+    private final long id;
+    private final List<Meter> meters = new ArrayList<>();
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerList("meters", Meter.class);
+      type.registerAggregate("total", "meters", "reading", Aggregate.Function.SUM);
+      type.registerAggregate("highest", "meters", "reading", Aggregate.Function.MAX);
+      type.registerAggregate("average", "meters", "reading", Aggregate.Function.AVG);
+    }
+
+    public Tank(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(meters);
+    }
+  }
+
+  @Test
+  public void followsChanges() {
+    State state = new State();
+    final List<ElementProxy> changes = new ArrayList<>();
+    final List<Double> lowest = new ArrayList<>();
+    state.addEventListener(new State.EventListener() {
+      @Override
+      public void onChangedEvent(ElementProxy proxy) {
+        changes.add(proxy);
+      }
+
+      @Override
+      public void onAggregateChangedEvent(Aggregate aggregate) {
+        lowest.add(aggregate.getValue());
+      }
+    });
+
+    ElementList<Tank> tanks = state.createList("tanks", Tank.class);
+    Tank tank = new Tank(801);
+    Meter first = new Meter(811, 2);
+    Meter second = new Meter(812, 6);
+    tank.meters.add(first);
+    tank.meters.add(second);
+    tanks.add(tank);
+
+    ElementList<Meter> meters = state.createList("meters", Meter.class);
+    meters.add(first);
+    meters.add(second);
+    Aggregate min = state.createAggregate("lowest", "meters", "reading", Aggregate.Function.MIN);
+    assertEquals(2, min.getValue(), 0);
+
+    ElementProxy proxy = tanks.getProxies().iterator().next();
+    ElementType type = proxy.getType();
+    assertEquals("total", type.getFieldName(2));
+    assertEquals(8.0, proxy.getValue(2));
+    assertEquals(6.0, proxy.getValue(3));
+    assertEquals(4.0, proxy.getValue(4));
+
+    // A change on a meter changes the tank as well
+    second.reading = 10;
+    second.sync();
+    assertEquals(12.0, proxy.getValue(2));
+    assertEquals(10.0, proxy.getValue(3));
+    assertTrue(changes.contains(proxy));
+
+    first.reading = 1;
+    first.sync();
+    assertEquals(1, min.getValue(), 0);
+    assertEquals(1.0, lowest.get(lowest.size() - 1), 0);
+
+    // Leaving the list
+    tank.meters.remove(second);
+    tank.sync();
+    assertEquals(1.0, proxy.getValue(2));
+    assertEquals(1.0, proxy.getValue(3));
+
+    tank.meters.clear();
+    tank.sync();
+    assertEquals(0.0, proxy.getValue(2));
+    assertNull(proxy.getValue(3));
+    assertNull(proxy.getValue(4));
+  }
+
+  @Test
+  public void followsShardedChanges() throws InterruptedException {
+    State state = new State();
+    ElementList<Tank> tanks = state.createList("tanks", Tank.class);
+    Tank tank = new Tank(802);
+    for(int i=0; i<64; ++i) {
+      tank.meters.add(new Meter(820 + i, 0));
+    }
+    tanks.add(tank);
+    ElementProxy proxy = tanks.getProxies().iterator().next();
+    long revision = proxy.getRevision();
+
+    // The meters publish on the tank from their own shards, while the tank
+    // is being synced on its own
+    ShardedSync shards = new ShardedSync(4);
+    shards.start();
+    for(int round=1; round<=100; ++round) {
+      for(Meter meter:tank.meters) {
+        meter.reading = round + meter.getId() % 3;
+        shards.sync(meter);
+      }
+      shards.sync(tank);
+    }
+    shards.shutdown();
+
+    double total = 0;
+    for(Meter meter:tank.meters) {
+      total += meter.reading;
+    }
+    assertEquals(total, proxy.getValue(2));
+    assertEquals(102.0, proxy.getValue(3));
+    assertTrue(proxy.getRevision() > revision);
+  }
+}
@@ -0,0 +1,143 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The bytes allocated by the sync paths that run all the time, so that a
+ * change creating garbage on every sync doesn't go unnoticed. Measured on the
+ * current thread after a warm up, as an average over a number of syncs.
+ */
+public class AllocationTest {
+  private static final int WARMUP = 20000;
+  private static final int ROUNDS = 10000;
+
+  private final int[] events = new int[1];
+
+  @Test
+  public void unchangedSync() {
+    Gauge gauge = gauge(90000L);
+    assertEquals(0, measure(gauge::sync), 1);
+    assertEquals(0, events[0]);
+  }
+
+  @Test
+  public void oneFieldChange() {
+    Gauge gauge = gauge(90100L);
+    // Only the iterator over the listeners of the State
+    assertEquals(0, measure(() -> {
+      gauge.level += 1;
+      gauge.sync();
+    }), 32);
+    assertEquals(WARMUP + ROUNDS, events[0]);
+  }
+
+  @Test
+  public void identicalListUpdate() {
+    Gauge gauge = gauge(90200L);
+    List<Tag> same = new ArrayList<>(gauge.tags);
+    List<Tag> original = gauge.tags;
+    assertEquals(0, measure(() -> {
+      gauge.tags = gauge.tags == original ? same : original;
+      gauge.sync();
+    }), 1);
+    assertEquals(0, events[0]);
+  }
+
+  private Gauge gauge(Long id) {
+    State state = new State();
+    state.addEventListener(proxy -> events[0] += 1);
+    ElementList<Gauge> gauges = state.createList("gauges", Gauge.class);
+
+    Gauge gauge = new Gauge(id);
+    for(int i=1; i<=5; ++i) {
+      gauge.tags.add(new Tag(id + i));
+    }
+    gauges.add(gauge);
+    return gauge;
+  }
+
+  // The average bytes allocated by the given operation
+  private static double measure(Runnable op) {
+    assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+    long thread = Thread.currentThread().getId();
+    for(int i=0; i<WARMUP; ++i) {
+      op.run();
+    }
+
+    long before = bean.getThreadAllocatedBytes(thread);
+    for(int i=0; i<ROUNDS; ++i) {
+      op.run();
+    }
+    return (double) (bean.getThreadAllocatedBytes(thread) - before) / ROUNDS;
+  }
+
+  public static class Tag implements State.Element {
+    private final Long id;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+    }
+
+    Tag(Long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id.longValue());
+    }
+  }
+
+  public static class Gauge implements State.Element {
+    private final Long id;
+    private String name = "Gauge";
+    private int count;
+    private double level = 1.5;
+    private List<Tag> tags = new ArrayList<>();
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerString("name");
+      type.registerInteger("count");
+      type.registerDouble("level");
+      type.registerList("tags", Tag.class);
+    }
+
+    Gauge(Long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id.longValue());
+      proxy.update(name);
+      proxy.update(count);
+      proxy.update(level);
+      proxy.update(tags);
+    }
+  }
+}
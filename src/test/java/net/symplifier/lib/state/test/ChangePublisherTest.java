@@ -0,0 +1,172 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ChangePublisher;
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A subscriber only receives as many changes as it has asked for, and the
+ * ones held back are conflated per proxy
+ */
+public class ChangePublisherTest {
+
+  public static class Gauge implements State.Element {
+    private final long id;
+    private long reading;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerLong("reading");
+    }
+
+    public Gauge(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(reading);
+    }
+  }
+
+  public static class Alarm implements State.Element {
+    private final long id;
+    private boolean raised;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerBoolean("raised");
+    }
+
+    public Alarm(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(raised);
+    }
+  }
+
+  private static class Collector implements ChangePublisher.Subscriber {
+    private ChangePublisher.Subscription subscription;
+    private final List<ElementProxy> received = new ArrayList<>();
+    private final List<Object> values = new ArrayList<>();
+    private Throwable error;
+
+    @Override
+    public void onSubscribe(ChangePublisher.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(ElementProxy proxy) {
+      received.add(proxy);
+      values.add(proxy.getValue(1));
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+    }
+  }
+
+  @Test
+  public void conflatesUntilRequested() {
+    State state = new State();
+    ElementList<Gauge> list = state.createList("gauges", Gauge.class);
+    Gauge[] gauges = new Gauge[3];
+    for(int i=0; i<gauges.length; ++i) {
+      gauges[i] = new Gauge(97000 + i);
+      list.add(gauges[i]);
+    }
+
+    Collector collector = new Collector();
+    state.publish().subscribe(collector);
+    assertNotNull(collector.subscription);
+
+    for(int i=1; i<=100; ++i) {
+      for(Gauge gauge:gauges) {
+        gauge.reading = i;
+        gauge.sync();
+      }
+    }
+    assertTrue(collector.received.isEmpty());
+
+    // Only the latest values, in the order of the first changes
+    collector.subscription.request(2);
+    assertEquals(2, collector.received.size());
+    assertEquals(Long.valueOf(97000), collector.received.get(0).getId());
+    assertEquals(Long.valueOf(97001), collector.received.get(1).getId());
+    assertEquals(100L, collector.values.get(0));
+
+    collector.subscription.request(10);
+    assertEquals(3, collector.received.size());
+
+    // The demand left over is used by the next changes right away
+    gauges[0].reading = 101;
+    gauges[0].sync();
+    assertEquals(4, collector.received.size());
+    assertEquals(101L, collector.values.get(3));
+
+    collector.subscription.cancel();
+    gauges[0].reading = 102;
+    gauges[0].sync();
+    assertEquals(4, collector.received.size());
+  }
+
+  @Test
+  public void publishesFilteredSubset() {
+    State state = new State();
+    ElementList<Gauge> gauges = state.createList("gauges", Gauge.class);
+    ElementList<Alarm> alarms = state.createList("alarms", Alarm.class);
+    Gauge gauge = new Gauge(97100);
+    Alarm alarm = new Alarm(97101);
+    gauges.add(gauge);
+    alarms.add(alarm);
+
+    ElementType alarmType = alarms.getType();
+    Collector collector = new Collector();
+    state.publish(proxy -> proxy.getType() == alarmType).subscribe(collector);
+    collector.subscription.request(Long.MAX_VALUE);
+
+    gauge.reading = 5;
+    gauge.sync();
+    alarm.raised = true;
+    alarm.sync();
+
+    assertEquals(1, collector.received.size());
+    assertEquals(Long.valueOf(97101), collector.received.get(0).getId());
+    assertEquals(true, collector.values.get(0));
+
+    collector.subscription.request(0);
+    assertTrue(collector.error instanceof IllegalArgumentException);
+    alarm.raised = false;
+    alarm.sync();
+    assertEquals(1, collector.received.size());
+  }
+}
@@ -0,0 +1,140 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import net.symplifier.lib.state.ValueType;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * The computed fields are computed on read and only again after one of their
+ * dependencies has changed
+ */
+public class ComputedFieldTest {
+
+  private static final AtomicInteger COMPUTATIONS = new AtomicInteger();
+
+  public static class Level implements State.Element {
+    private final long id;
+    private String name;
+    private double value;
+    private double threshold;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerString("name");
+      type.registerDouble("value");
+      type.registerDouble("threshold");
+      type.registerComputed("status", ValueType.STRING, proxy -> {
+        COMPUTATIONS.incrementAndGet();
+        return proxy.getDouble(2) > proxy.getDouble(3) ? "HIGH" : "NORMAL";
+      }, "value", "threshold");
+    }
+
+    public Level(long id, String name, double value, double threshold) {
+      this.id = id;
+      this.name = name;
+      this.value = value;
+      this.threshold = threshold;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(name);
+      proxy.update(value);
+      proxy.update(threshold);
+    }
+  }
+
+  public static class Reading implements State.Element {
+    private final long id;
+    private double value;
+    private Date taken;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerDouble("value");
+      type.registerDate("taken");
+      type.registerComputed("twice", ValueType.DOUBLE, proxy -> proxy.getDouble(1) * 2, "value");
+      type.registerComputed("due", ValueType.DATE,
+              proxy -> new Date(proxy.getEpochMillis(2) + 1000), "taken");
+    }
+
+    public Reading(long id, double value, Date taken) {
+      this.id = id;
+      this.value = value;
+      this.taken = taken;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(value);
+      proxy.update(taken);
+    }
+  }
+
+  @Test
+  public void computedDoubleAndDate() {
+    State state = new State();
+    ElementList<Reading> readings = state.createList("readings", Reading.class);
+    Reading reading = new Reading(902, 1.5, new Date(5000));
+    readings.add(reading);
+    ElementProxy proxy = readings.getProxies().iterator().next();
+
+    assertEquals(3.0, proxy.getValue(3));
+    assertEquals(3.0, proxy.getDouble(3), 0);
+    assertEquals(new Date(6000), proxy.getValue(4));
+    assertEquals(6000L, proxy.getEpochMillis(4));
+
+    reading.value = 4;
+    reading.taken = new Date(7000);
+    reading.sync();
+    assertEquals(8.0, proxy.getDouble(3), 0);
+    assertEquals(8000L, proxy.getEpochMillis(4));
+  }
+
+  @Test
+  public void computedLazily() {
+    State state = new State();
+    ElementList<Level> levels = state.createList("levels", Level.class);
+    Level level = new Level(901, "Koshi", 3, 5);
+    levels.add(level);
+    ElementProxy proxy = levels.getProxies().iterator().next();
+
+    // Nothing is computed until the value is read
+    assertEquals(0, COMPUTATIONS.get());
+    assertEquals("NORMAL", proxy.getValue(4));
+    assertEquals("NORMAL", proxy.getValue(4));
+    assertEquals(1, COMPUTATIONS.get());
+
+    // A change on a field that is not a dependency keeps the cached value
+    level.name = "Sunkoshi";
+    level.sync();
+    assertEquals("NORMAL", proxy.getValue(4));
+    assertEquals(1, COMPUTATIONS.get());
+
+    level.value = 7;
+    level.sync();
+    assertEquals(1, COMPUTATIONS.get());
+    assertEquals("HIGH", proxy.getValue(4));
+    assertEquals(2, COMPUTATIONS.get());
+  }
+}
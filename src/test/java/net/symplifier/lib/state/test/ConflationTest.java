@@ -0,0 +1,72 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rapid changes within the conflation window reach the listener as a single
+ * event with the latest value. The window is far longer than the changes
+ * take, a slow machine may still split them across two windows.
+ */
+public class ConflationTest {
+
+  public static class Gauge implements State.Element {
+    private final long id;
+    private int reading;
+
+    public static void register(ElementType type) {
+      type.setConflationWindow(1, TimeUnit.SECONDS);
+      type.registerLong("id");
+      type.registerInteger("reading");
+    }
+
+    public Gauge(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(reading);
+    }
+  }
+
+  @Test
+  public void mergesChanges() throws InterruptedException {
+    State state = new State();
+    final AtomicInteger events = new AtomicInteger();
+    final CountDownLatch last = new CountDownLatch(1);
+    state.addEventListener(proxy -> {
+      events.incrementAndGet();
+      if (Integer.valueOf(100).equals(proxy.getValue(1))) {
+        last.countDown();
+      }
+    });
+
+    ElementList<Gauge> gauges = state.createList("gauges", Gauge.class);
+    Gauge gauge = new Gauge(501);
+    gauges.add(gauge);
+
+    for(int i=1; i<=100; ++i) {
+      gauge.reading = i;
+      gauge.sync();
+    }
+
+    assertTrue(last.await(10, TimeUnit.SECONDS));
+    assertTrue(events.get() <= 2);
+  }
+}
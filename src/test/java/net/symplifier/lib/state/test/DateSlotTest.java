@@ -0,0 +1,83 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * The Date fields are kept as their epoch millis in a primitive slot, and
+ * are read back as a new {@link Date} or as the millis themselves
+ */
+public class DateSlotTest {
+
+  public static class Observation implements State.Element {
+    private final long id;
+    private Date observed;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerDate("observed");
+    }
+
+    public Observation(long id, Date observed) {
+      this.id = id;
+      this.observed = observed;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(observed);
+    }
+  }
+
+  @Test
+  public void roundTrips() {
+    State state = new State();
+    final int[] events = new int[1];
+    state.addEventListener(proxy -> events[0] += 1);
+    ElementList<Observation> observations = state.createList("observations", Observation.class);
+    Date date = new Date(1447632000000L);
+    Observation observation = new Observation(25000, date);
+    observations.add(observation);
+    ElementProxy proxy = observations.getProxies().iterator().next();
+
+    assertEquals(1447632000000L, proxy.getEpochMillis(1));
+    // The value of a Date field is a Date of its own every time
+    Object value = proxy.getValue(1);
+    assertEquals(date, value);
+    assertNotSame(date, value);
+    assertNotSame(value, proxy.getValue(1));
+    ((Date) value).setTime(1);
+    assertEquals(1447632000000L, proxy.getEpochMillis(1));
+
+    // Only the millis are kept, the caller can change its instance
+    date.setTime(0);
+    assertEquals(1447632000000L, proxy.getEpochMillis(1));
+    observation.sync();
+    assertEquals(1, events[0]);
+    assertEquals(new Date(0), proxy.getValue(1));
+
+    // An equal date is not a change
+    observation.observed = new Date(0);
+    observation.sync();
+    assertEquals(1, events[0]);
+
+    observation.observed = null;
+    observation.sync();
+    assertEquals(2, events[0]);
+    assertNull(proxy.getValue(1));
+    assertEquals(ElementProxy.NO_DATE, proxy.getEpochMillis(1));
+  }
+}
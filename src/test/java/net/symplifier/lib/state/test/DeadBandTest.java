@@ -0,0 +1,80 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The noise within the dead-band of a field doesn't count as a change
+ */
+public class DeadBandTest {
+
+  public static class Probe implements State.Element {
+    private final long id;
+    private double temperature;
+    private float humidity;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerDouble("temperature", 0.5, 0);
+      type.registerFloat("humidity", 0, 0.1);
+    }
+
+    public Probe(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(temperature);
+      proxy.update(humidity);
+    }
+  }
+
+  @Test
+  public void ignoresNoise() {
+    State state = new State();
+    final int[] events = new int[1];
+    state.addEventListener(proxy -> events[0] += 1);
+
+    ElementList<Probe> probes = state.createList("probes", Probe.class);
+    Probe probe = new Probe(601);
+    probe.temperature = 20;
+    probe.humidity = 50;
+    probes.add(probe);
+
+    // Drifting within the absolute band of the published value
+    probe.temperature = 20.3;
+    probe.sync();
+    probe.temperature = 19.6;
+    probe.sync();
+    assertEquals(0, events[0]);
+
+    probe.temperature = 20.6;
+    probe.sync();
+    assertEquals(1, events[0]);
+
+    // Within the 10% relative band
+    probe.humidity = 54;
+    probe.sync();
+    assertEquals(1, events[0]);
+
+    probe.humidity = 56;
+    probe.sync();
+    assertEquals(2, events[0]);
+
+    ElementProxy proxy = probes.getProxies().iterator().next();
+    assertEquals(20.6, proxy.getDouble(1), 0);
+    assertEquals(56f, proxy.getValue(2));
+  }
+}
@@ -0,0 +1,76 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+/**
+ * The values of a deduplicated String field are kept as a single canonical
+ * instance for all the proxies of the type
+ */
+public class DedupeTest {
+
+  public static class Site implements State.Element {
+    private final long id;
+    private String district;
+    private String name;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerString("district", true);
+      type.registerString("name");
+    }
+
+    public Site(long id, String district, String name) {
+      this.id = id;
+      this.district = district;
+      this.name = name;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(district);
+      proxy.update(name);
+    }
+  }
+
+  @Test
+  public void keepsCanonicalInstances() {
+    State state = new State();
+    ElementList<Site> sites = state.createList("sites", Site.class);
+    // Equal but distinct instances, as read from a feed
+    Site first = new Site(24000, new String("Kaski"), new String("Pokhara"));
+    Site second = new Site(24001, new String("Kaski"), new String("Pokhara"));
+    sites.add(first);
+    sites.add(second);
+
+    Iterator<ElementProxy> it = sites.getProxies().iterator();
+    ElementProxy a = it.next();
+    ElementProxy b = it.next();
+    assertEquals("Kaski", a.getValue(1));
+    assertSame(a.getValue(1), b.getValue(1));
+    // Only the registered field is deduplicated
+    assertEquals(a.getValue(2), b.getValue(2));
+    assertNotSame(a.getValue(2), b.getValue(2));
+
+    // A changed value is canonical as well
+    first.district = new String("Syangja");
+    second.district = new String("Syangja");
+    first.sync();
+    second.sync();
+    assertEquals("Syangja", b.getValue(1));
+    assertSame(a.getValue(1), b.getValue(1));
+  }
+}
@@ -0,0 +1,136 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.DynamicFeed;
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A type defined at runtime gets its values pushed by the id and the field
+ * index, and behaves like any other type on the State
+ */
+public class DynamicTypeTest implements State.EventListener {
+  private final List<ElementProxy> changes = new ArrayList<>();
+
+  @Test
+  public void pushesValues() {
+    ElementType sensor = State.defineElementType("DynamicSensor", type -> {
+      type.registerLong("id");
+      type.registerString("name");
+      type.registerDouble("reading", 0.5, 0);
+      type.registerInteger("samples");
+    });
+    assertTrue(sensor.isDynamic());
+    // The same structure again is the same type
+    assertSame(sensor, State.defineElementType("DynamicSensor", type -> {
+      type.registerLong("id");
+      type.registerString("name");
+      type.registerDouble("reading", 0.5, 0);
+      type.registerInteger("samples");
+    }));
+
+    int name = sensor.getFieldIndex("name");
+    int reading = sensor.getFieldIndex("reading");
+    int samples = sensor.getFieldIndex("samples");
+
+    State state = new State();
+    state.addEventListener(this);
+    ElementList<State.Element> sensors = state.createList("sensors", sensor);
+    assertSame(sensor, sensors.getType());
+
+    DynamicFeed feed = new DynamicFeed(sensor);
+    for(long id=95000; id<95010; ++id) {
+      feed.begin(id).set(0, id).set(name, "Sensor " + id).set(reading, 10.0).set(samples, 1).commit();
+      sensors.addById(id);
+    }
+
+    int seen = 0;
+    for(ElementProxy proxy:sensors.getProxies()) {
+      assertEquals("Sensor " + proxy.getId(), proxy.getValue(name));
+      assertEquals(10.0, proxy.getDouble(reading), 0);
+      assertEquals(1, proxy.getValue(samples));
+      seen += 1;
+    }
+    assertEquals(10, seen);
+
+    changes.clear();
+    // Nothing changed, or within the dead-band
+    assertFalse(feed.begin(95003).set(0, 95003L).set(samples, 1).set(reading, 10.2).commit());
+    assertTrue(changes.isEmpty());
+
+    assertTrue(feed.begin(95003).set(reading, 11.0).set(samples, 2).commit());
+    assertEquals(1, changes.size());
+    assertEquals(95003L, (long) changes.get(0).getId());
+    assertEquals(11.0, changes.get(0).getDouble(reading), 0);
+    assertEquals(2, changes.get(0).getValue(samples));
+
+    sensors.removeById(95003L);
+    changes.clear();
+    feed.begin(95003).set(reading, 12.0).commit();
+    assertTrue(changes.isEmpty());
+  }
+
+  @Test
+  public void rejectsConflictingNames() {
+    State.defineElementType("DynamicValve", type -> {
+      type.registerLong("id");
+      type.registerBoolean("open");
+    });
+
+    try {
+      State.defineElementType("DynamicValve", type -> {
+        type.registerLong("id");
+        type.registerDouble("opening");
+      });
+      fail("Defined again with another structure");
+    } catch(IllegalArgumentException e) {
+      // Expected
+    }
+
+    // The name of an Element class is taken as well
+    new State().createList("units", Unit.class);
+    try {
+      State.defineElementType("Unit", type -> type.registerLong("id"));
+      fail("Defined with the name of an Element class");
+    } catch(IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void referencesOtherDynamicTypes() {
+    ElementType site = State.defineElementType("DynamicSite", type -> {
+      type.registerLong("id");
+      type.registerString("name");
+    });
+    ElementType meter = State.defineElementType("DynamicMeter", type -> {
+      type.registerLong("id");
+      type.registerReference("site", site);
+      type.registerList("parts", site);
+    });
+
+    State state = new State();
+    ElementList<State.Element> meters = state.createList("meters", meter);
+
+    new DynamicFeed(site).begin(96000).set(1, "Site").commit();
+    new DynamicFeed(meter).begin(96100).set(0, 96100L)
+            .setReference(1, 96000L).setList(2, new long[] {96000, 96000}).commit();
+    meters.addById(96100L);
+
+    assertEquals(1, state.getAll().get(site).size());
+    ElementProxy proxy = meters.getProxies().iterator().next();
+    assertEquals("Site", ((ElementProxy) proxy.getValue(1)).getValue(1));
+  }
+
+  @Override
+  public void onChangedEvent(ElementProxy proxy) {
+    changes.add(proxy);
+  }
+}
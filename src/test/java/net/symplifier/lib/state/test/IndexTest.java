@@ -0,0 +1,145 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * The proxies are found through the field indexes as the values change
+ */
+public class IndexTest {
+
+  public static class Gate implements State.Element {
+    private final long id;
+    private String region;
+    private double level;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerString("region");
+      type.registerDouble("level");
+      type.addIndex("region");
+      type.addSortedIndex("level");
+    }
+
+    public Gate(long id, String region, double level) {
+      this.id = id;
+      this.region = region;
+      this.level = level;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(region);
+      proxy.update(level);
+    }
+  }
+
+  public static class Meter implements State.Element {
+    private final long id;
+    private int floor;
+    private long serial;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerInteger("floor");
+      type.registerLong("serial");
+      type.addIndex("floor");
+      type.addSortedIndex("serial");
+    }
+
+    public Meter(long id, int floor, long serial) {
+      this.id = id;
+      this.floor = floor;
+      this.serial = serial;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(floor);
+      proxy.update(serial);
+    }
+  }
+
+  @Test
+  public void followsChanges() {
+    State state = new State();
+    ElementList<Gate> gates = state.createList("gates", Gate.class);
+    Gate east = new Gate(701, "east", 1.5);
+    Gate west = new Gate(702, "west", 3.0);
+    Gate other = new Gate(703, "east", 4.5);
+    gates.add(east);
+    gates.add(west);
+    gates.add(other);
+
+    ElementType type = gates.getType();
+    assertEquals(2, type.findByValue("region", "east").size());
+    assertEquals(1, type.findByValue("region", "west").size());
+    assertTrue(type.findByValue("region", "north").isEmpty());
+
+    List<ElementProxy> range = type.findInRange("level", 2, 5);
+    assertEquals(2, range.size());
+    assertEquals(702L, (long) range.get(0).getId());
+    assertEquals(703L, (long) range.get(1).getId());
+
+    // The indexes follow the synced changes
+    other.region = "west";
+    other.level = 0.5;
+    other.sync();
+
+    Set<ElementProxy> westGates = type.findByValue("region", "west");
+    assertEquals(2, westGates.size());
+    assertEquals(1, type.findByValue("region", "east").size());
+    assertEquals(1, type.findInRange("level", 2.0, null).size());
+    assertEquals(703L, (long) type.findInRange("level", null, 1.0).get(0).getId());
+
+    // A null value is not indexed
+    east.region = null;
+    east.sync();
+    assertTrue(type.findByValue("region", "east").isEmpty());
+  }
+
+  @Test
+  public void matchesNumbers() {
+    State state = new State();
+    ElementList<Meter> meters = state.createList("meters", Meter.class);
+    meters.add(new Meter(704, 2, 1000L));
+    meters.add(new Meter(705, 3, 2000L));
+    Meter moving = new Meter(706, 2, 3000L);
+    meters.add(moving);
+
+    // Any number finds the field as it is typed
+    ElementType type = meters.getType();
+    assertEquals(2, type.findByValue("floor", 2L).size());
+    assertEquals(1, type.findByValue("floor", 3.0).size());
+    assertEquals(1, type.findByValue("serial", 2000).size());
+    assertEquals(2, type.findInRange("serial", 1500, 5000).size());
+
+    // The proxies found stay as they were
+    Set<ElementProxy> second = type.findByValue("floor", 2);
+    moving.floor = 4;
+    moving.sync();
+    assertEquals(2, second.size());
+    assertEquals(1, type.findByValue("floor", 2).size());
+    assertEquals(1, type.findByValue("floor", 4).size());
+  }
+}
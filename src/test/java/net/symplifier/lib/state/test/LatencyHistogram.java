@@ -0,0 +1,117 @@
+package net.symplifier.lib.state.test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the manner of HdrHistogram, without pulling
+ * it in as a dependency. Beyond 256 the values are kept in buckets of a
+ * power of two, each split into 128 linear sub buckets, which keeps every
+ * value to within 1% with a few thousand counters.
+ *
+ * <p>
+ *   Recording is lock free and can be done from any number of threads.
+ * </p>
+ */
+public class LatencyHistogram {
+  /* The values below this have a counter each, the ones above share a
+     counter with the values having the same top 8 bits */
+  private static final int LINEAR = 256;
+  /* The sub buckets within each power of two beyond the linear range */
+  private static final int SUB_COUNT = 128;
+
+  private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (64 - 8) * SUB_COUNT);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a value
+   *
+   * @param value The value, negative values are taken as 0
+   */
+  public void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(index(value));
+    total.incrementAndGet();
+    sum.addAndGet(value);
+
+    long current = max.get();
+    while(value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  private static int index(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+
+    int shift = 64 - Long.numberOfLeadingZeros(value) - 8;
+    int sub = (int) (value >>> shift);
+    return LINEAR + (shift - 1) * SUB_COUNT + (sub - SUB_COUNT);
+  }
+
+  // The highest value sharing the counter at the given index
+  private static long highest(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+
+    int shift = (index - LINEAR) / SUB_COUNT + 1;
+    int sub = (index - LINEAR) % SUB_COUNT + SUB_COUNT;
+    return ((long) (sub + 1) << shift) - 1;
+  }
+
+  /**
+   * The number of values recorded
+   *
+   * @return The count
+   */
+  public long getCount() {
+    return total.get();
+  }
+
+  /**
+   * The largest value recorded
+   *
+   * @return The maximum, 0 when empty
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * The average of the values recorded
+   *
+   * @return The mean, 0 when empty
+   */
+  public double getMean() {
+    long count = total.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * The value at the given percentile, as the highest value equivalent to
+   * the one found, same as HdrHistogram reports
+   *
+   * @param percentile The percentile between 0 and 100
+   * @return The value, 0 when empty
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = total.get();
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for(int i=0; i<counts.length(); ++i) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highest(i), getMax());
+      }
+    }
+    return getMax();
+  }
+}
@@ -0,0 +1,104 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ListWindow;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * A client following a window over a long list always has the same elements
+ * as the list has in that range
+ */
+public class ListWindowTest implements ListWindow.Listener {
+  private static final int LIMIT = 10;
+
+  /* The window as seen by the client */
+  private final List<Long> client = new ArrayList<>();
+
+  @Test
+  public void followsChanges() {
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    for(int i=0; i<1000; ++i) {
+      stations.add(new Station(50000 + i, "Station " + i));
+    }
+
+    ListWindow window = stations.openWindow(100, LIMIT, this);
+    assertWindow(stations, window);
+
+    Random random = new Random(42);
+    long nextId = 51000;
+    for(int i=0; i<500; ++i) {
+      // Mostly around the window to see the shifts
+      int index = 90 + random.nextInt(30);
+      if (random.nextBoolean()) {
+        stations.add(index, new Station(nextId, "Station " + nextId));
+        nextId += 1;
+      } else {
+        stations.remove(index);
+      }
+      assertWindow(stations, window);
+    }
+
+    stations.set(105, new Station(nextId, "Replaced"));
+    assertWindow(stations, window);
+
+    window.moveTo(500);
+    assertWindow(stations, window);
+
+    stations.clear();
+    assertTrue(client.isEmpty());
+    window.close();
+  }
+
+  private void assertWindow(ElementList<Station> stations, ListWindow window) {
+    List<Long> expected = new ArrayList<>();
+    for(int i=window.getOffset(); i<Math.min(stations.size(), window.getOffset() + LIMIT); ++i) {
+      expected.add(stations.get(i).getId());
+    }
+
+    assertEquals(expected, client);
+    List<Long> proxies = new ArrayList<>();
+    for(ElementProxy proxy:window.getProxies()) {
+      proxies.add(proxy.getId());
+    }
+    assertEquals(expected, proxies);
+  }
+
+  @Override
+  public void onReset(List<ElementProxy> proxies) {
+    client.clear();
+    for(ElementProxy proxy:proxies) {
+      client.add(proxy.getId());
+    }
+  }
+
+  @Override
+  public void onShifted(int position, int delta) {
+    if (delta > 0) {
+      if (client.size() == LIMIT) {
+        client.remove(LIMIT - 1);
+      }
+      // Make room, filled by the following onEntered
+      client.add(position, null);
+    } else {
+      client.remove(position);
+    }
+  }
+
+  @Override
+  public void onEntered(int position, ElementProxy proxy) {
+    if (position == client.size()) {
+      client.add(proxy.getId());
+    } else {
+      client.set(position, proxy.getId());
+    }
+  }
+}
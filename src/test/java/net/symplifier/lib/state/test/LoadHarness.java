@@ -0,0 +1,270 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ShardedSync;
+import net.symplifier.lib.state.State;
+import org.json.JSONObject;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator for sizing the hardware, built on the {@link Station},
+ * {@link Parameter} and {@link Unit} elements. It builds a graph of stations
+ * each with its parameters sharing a few units, adds it to a number of
+ * States with listeners on each, and syncs the stations at a given rate from
+ * a number of threads. Every listener records the latency from the change
+ * to its delivery.
+ *
+ * <p>
+ *   Run with the settings as {@code name=value} arguments, for example
+ *   {@code stations=10000 parameters=20 threads=4 rate=50000 seconds=60}.
+ *   See {@link Config} for all the settings. The report is printed as JSON.
+ * </p>
+ */
+public class LoadHarness {
+
+  /**
+   * The settings of a run
+   */
+  public static class Config {
+    /* The first id used, the ids must not clash with the other elements */
+    public long firstId = 1_000_000;
+    public int stations = 1000;
+    public int parameters = 10;
+    /* The units shared by all the parameters */
+    public int units = 5;
+    /* The threads doing the syncs, each with its own share of the stations */
+    public int threads = 2;
+    /* The syncs per second on each thread, 0 for as fast as possible */
+    public int rate = 10000;
+    /* The probability of a sync having a change */
+    public double changeProbability = 0.5;
+    /* The probability of a change being on a parameter instead of the station */
+    public double parameterProbability = 0.5;
+    public int states = 1;
+    public int listeners = 1;
+    /* The shards doing the syncs, 0 to sync on the threads themselves */
+    public int shards = 0;
+    public double seconds = 10;
+
+    /**
+     * Read the settings from {@code name=value} arguments
+     *
+     * @param args The arguments
+     * @return The config
+     */
+    public static Config parse(String[] args) {
+      Config config = new Config();
+      for(String arg:args) {
+        int eq = arg.indexOf('=');
+        assert(eq > 0):"Expected name=value, found " + arg;
+        try {
+          Field field = Config.class.getField(arg.substring(0, eq));
+          String value = arg.substring(eq + 1);
+          if (field.getType() == int.class) {
+            field.setInt(config, Integer.parseInt(value));
+          } else if (field.getType() == long.class) {
+            field.setLong(config, Long.parseLong(value));
+          } else {
+            field.setDouble(config, Double.parseDouble(value));
+          }
+        } catch(NoSuchFieldException | IllegalAccessException e) {
+          throw new IllegalArgumentException("Unknown setting " + arg, e);
+        }
+      }
+      return config;
+    }
+  }
+
+  /* The prefix of the names carrying the time of the change */
+  private static final char STAMP = '@';
+
+  private final Config config;
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final AtomicLong syncs = new AtomicLong();
+  private final AtomicLong changes = new AtomicLong();
+
+  public LoadHarness(Config config) {
+    this.config = config;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    System.out.println(new LoadHarness(Config.parse(args)).run().toString(2));
+  }
+
+  /**
+   * Build the graph, drive the load for the configured time and report
+   *
+   * @return The report
+   * @throws InterruptedException if interrupted while waiting for the threads
+   */
+  public JSONObject run() throws InterruptedException {
+    List<Station> stations = build();
+
+    for(int i=0; i<config.states; ++i) {
+      State state = new State();
+      for(int j=0; j<config.listeners; ++j) {
+        state.addEventListener(this::delivered);
+      }
+
+      ElementList<Station> list = state.createList("stations", Station.class);
+      for(Station station:stations) {
+        list.add(station);
+      }
+    }
+
+    ShardedSync shards = null;
+    if (config.shards > 0) {
+      shards = new ShardedSync(config.shards);
+      shards.start();
+    }
+
+    long deadline = System.nanoTime() + (long) (config.seconds * TimeUnit.SECONDS.toNanos(1));
+    List<Thread> threads = new ArrayList<>();
+    for(int i=0; i<config.threads; ++i) {
+      List<Station> share = new ArrayList<>();
+      for(int j=i; j<stations.size(); j+=config.threads) {
+        share.add(stations.get(j));
+      }
+
+      Driver driver = new Driver(share, shards, deadline, i);
+      Thread thread = new Thread(driver, "load-driver-" + i);
+      threads.add(thread);
+    }
+
+    long start = System.nanoTime();
+    for(Thread thread:threads) {
+      thread.start();
+    }
+    for(Thread thread:threads) {
+      thread.join();
+    }
+    if (shards != null) {
+      shards.shutdown();
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    return report(elapsed);
+  }
+
+  private List<Station> build() {
+    List<Unit> units = new ArrayList<>();
+    for(int i=0; i<config.units; ++i) {
+      units.add(new Unit(config.firstId + i, "Unit " + i));
+    }
+
+    List<Station> stations = new ArrayList<>();
+    long id = config.firstId;
+    for(int i=0; i<config.stations; ++i) {
+      Station station = new Station(id, "Station " + i);
+      for(int j=1; j<=config.parameters; ++j) {
+        station.addParameter(new Parameter(id + j, "Parameter " + j, units.get((i + j) % units.size())));
+      }
+      stations.add(station);
+      id += config.parameters + 1;
+    }
+    return stations;
+  }
+
+  // A change has reached a listener, the name of the element carries the
+  // time it was made
+  private void delivered(ElementProxy proxy) {
+    Object name = proxy.getValue(1);
+    if (name instanceof String && ((String) name).charAt(0) == STAMP) {
+      latencies.record(System.nanoTime() - Long.parseLong(((String) name).substring(1)));
+    }
+  }
+
+  private JSONObject report(double elapsed) {
+    JSONObject latency = new JSONObject();
+    latency.put("count", latencies.getCount());
+    latency.put("meanMicros", latencies.getMean() / 1000);
+    latency.put("p50Micros", latencies.getValueAtPercentile(50) / 1000.0);
+    latency.put("p99Micros", latencies.getValueAtPercentile(99) / 1000.0);
+    latency.put("p999Micros", latencies.getValueAtPercentile(99.9) / 1000.0);
+    latency.put("maxMicros", latencies.getMax() / 1000.0);
+
+    JSONObject res = new JSONObject();
+    res.put("seconds", elapsed);
+    res.put("syncs", syncs.get());
+    res.put("changes", changes.get());
+    res.put("syncsPerSecond", syncs.get() / elapsed);
+    res.put("deliveriesPerSecond", latencies.getCount() / elapsed);
+    res.put("latency", latency);
+    return res;
+  }
+
+  /**
+   * The latencies recorded so far
+   *
+   * @return The histogram
+   */
+  public LatencyHistogram getLatencies() {
+    return latencies;
+  }
+
+  /**
+   * Syncs its own share of the stations at the configured rate
+   */
+  private class Driver implements Runnable {
+    private final List<Station> stations;
+    private final ShardedSync shards;
+    private final long deadline;
+    private final Random random;
+
+    Driver(List<Station> stations, ShardedSync shards, long deadline, int seed) {
+      this.stations = stations;
+      this.shards = shards;
+      this.deadline = deadline;
+      this.random = new Random(seed);
+    }
+
+    @Override
+    public void run() {
+      long interval = config.rate > 0 ? TimeUnit.SECONDS.toNanos(1) / config.rate : 0;
+      long next = System.nanoTime();
+      while(deadline - next > 0 && !stations.isEmpty()) {
+        Station station = stations.get(random.nextInt(stations.size()));
+        if (random.nextDouble() < config.changeProbability) {
+          String stamp = STAMP + Long.toString(System.nanoTime());
+          if (config.parameters > 0 && random.nextDouble() < config.parameterProbability) {
+            Parameter parameter = station.getParameters().get(random.nextInt(config.parameters));
+            parameter.setName(stamp);
+            sync(parameter);
+          } else {
+            station.setName(stamp);
+            sync(station);
+          }
+          changes.incrementAndGet();
+        } else {
+          sync(station);
+        }
+        syncs.incrementAndGet();
+
+        next += interval;
+        long delay = next - System.nanoTime();
+        if (delay > 0) {
+          LockSupport.parkNanos(delay);
+        } else if (delay < -TimeUnit.SECONDS.toNanos(1)) {
+          // Too far behind, don't try to catch up with a burst
+          next = System.nanoTime();
+        }
+      }
+    }
+
+    private void sync(State.Element element) {
+      if (shards != null) {
+        shards.sync(element);
+      } else {
+        element.sync();
+      }
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package net.symplifier.lib.state.test;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * A short run of the {@link LoadHarness}, to keep it working. The real runs
+ * are done from its main method with the sizes of the deployment.
+ */
+public class LoadHarnessTest {
+
+  @Test
+  public void shortRun() throws InterruptedException {
+    LoadHarness.Config config = LoadHarness.Config.parse(new String[] {
+            "firstId=2000000", "stations=200", "parameters=5", "threads=2",
+            "rate=2000", "states=2", "listeners=2", "shards=2", "seconds=0.5"
+    });
+    LoadHarness harness = new LoadHarness(config);
+    JSONObject report = harness.run();
+
+    LatencyHistogram latencies = harness.getLatencies();
+    assertTrue(report.getLong("changes") > 0);
+    // Each change reaches every listener on every State, unless a later
+    // change on the same element catches up with it on the shard
+    assertTrue(latencies.getCount() > 0);
+    assertTrue(latencies.getCount() <= report.getLong("changes") * 4);
+    assertTrue(latencies.getValueAtPercentile(50) <= latencies.getValueAtPercentile(99));
+    assertTrue(latencies.getValueAtPercentile(99) <= latencies.getValueAtPercentile(99.9));
+    assertTrue(latencies.getValueAtPercentile(99.9) <= latencies.getMax());
+  }
+
+  @Test
+  public void histogramPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for(long i=1; i<=100000; ++i) {
+      histogram.record(i * 1000);
+    }
+
+    assertEquals(100000, histogram.getCount());
+    assertEquals(100000000, histogram.getMax());
+    assertEquals(50000000, histogram.getValueAtPercentile(50), 50000000 * 0.01);
+    assertEquals(99000000, histogram.getValueAtPercentile(99), 99000000 * 0.01);
+    assertEquals(99900000, histogram.getValueAtPercentile(99.9), 99900000 * 0.01);
+  }
+}
@@ -0,0 +1,136 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.MemoryLimitExceededException;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * A State doesn't take in the seed entries that would take it beyond its
+ * hard limit
+ */
+public class MemoryLimitTest implements State.EventListener {
+  private long softLimitEvent;
+
+  @Test
+  public void rejectsBeyondHardLimit() {
+    State state = new State();
+    state.addEventListener(this);
+    ElementList<Station> stations = state.createList("stations", Station.class);
+
+    Unit unit = new Unit(60000, "mm");
+    for(int i=0; i<10; ++i) {
+      stations.add(station(60000 + i * 100, unit));
+    }
+
+    long measured = state.measureRetainedBytes();
+    assertTrue(measured > 0);
+    assertEquals(measured, state.getRetainedBytes());
+    assertTrue(stations.getType().getRetainedBytes() > 0);
+
+    // Room for about one more station
+    long perStation = measured / 10;
+    state.setMemoryLimits(measured + perStation / 2, measured + perStation * 3 / 2);
+
+    stations.add(station(61000, unit));
+    assertTrue(softLimitEvent > measured);
+    assertEquals(11, stations.size());
+
+    try {
+      stations.add(station(61100, unit));
+      fail("The hard limit was not enforced");
+    } catch(MemoryLimitExceededException e) {
+      assertTrue(e.getRetainedBytes() > measured + perStation * 3 / 2);
+    }
+    assertEquals(11, stations.size());
+
+    int seeds = 0;
+    for(ElementProxy ignored:stations.getProxies()) {
+      seeds += 1;
+    }
+    assertEquals(11, seeds);
+  }
+
+  @Test
+  public void givesBackRemovedEntries() {
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    Unit unit = new Unit(62000, "mm");
+    stations.add(station(62000, unit));
+    long before = state.measureRetainedBytes();
+
+    stations.add(station(62100, unit));
+    assertTrue(state.getRetainedBytes() > before);
+    stations.remove(1);
+    assertEquals(before, state.getRetainedBytes());
+
+    // An entry already held by another State is charged with all it reaches
+    State other = new State();
+    ElementList<Station> shared = other.createList("stations", Station.class);
+    long empty = other.measureRetainedBytes();
+    shared.add(stations.get(0));
+    long perStation = (before - empty) / 2;
+    assertTrue(other.getRetainedBytes() - empty > perStation);
+  }
+
+  @Test
+  public void measuresOwnEntries() throws InterruptedException {
+    // The bytes of a list node, which the seed entries are not charged with
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    long empty = state.measureRetainedBytes();
+    stations.add(station(63000, new Unit(63000, "mm")));
+    long charged = state.getRetainedBytes();
+    assertTrue(charged > empty);
+    long node = state.measureRetainedBytes() - charged;
+
+    // Each State is charged with only what its own thread creates
+    State[] states = new State[4];
+    long[] measured = new long[states.length];
+    Thread[] threads = new Thread[states.length];
+    for(int t=0; t<states.length; ++t) {
+      State s = new State();
+      ElementList<Station> list = s.createList("stations", Station.class);
+      states[t] = s;
+      measured[t] = s.measureRetainedBytes();
+      long base = 64000 + t * 1000;
+      threads[t] = new Thread(() -> {
+        Unit unit = new Unit(base, "mm");
+        for(int i=0; i<20; ++i) {
+          list.add(station(base + i * 50, unit));
+        }
+      });
+    }
+    for(Thread thread:threads) {
+      thread.start();
+    }
+    for(Thread thread:threads) {
+      thread.join();
+    }
+
+    for(State s:states) {
+      long estimate = s.getRetainedBytes();
+      assertEquals(s.measureRetainedBytes(), estimate + 20 * node);
+    }
+  }
+
+  private static Station station(long id, Unit unit) {
+    Station station = new Station(id, "Station " + id);
+    for(int i=1; i<20; ++i) {
+      station.addParameter(new Parameter(id + i, "Parameter " + i, unit));
+    }
+    return station;
+  }
+
+  @Override
+  public void onChangedEvent(ElementProxy proxy) {
+  }
+
+  @Override
+  public void onSoftLimitExceededEvent(long retainedBytes) {
+    softLimitEvent = retainedBytes;
+  }
+}
@@ -0,0 +1,85 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementListProxy;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * A proxy keeps the count of its owners right as they grow past the inline
+ * slots and the arrays and shrink back
+ */
+public class OwnerTest {
+
+  @Test
+  public void countsOwners() {
+    Station station = new Station(70000, "Shared");
+    List<ElementList<Station>> lists = new ArrayList<>();
+    for(int i=0; i<20; ++i) {
+      ElementList<Station> stations = new State().createList("stations", Station.class);
+      stations.add(station);
+      // The same owner twice is counted once
+      stations.add(station);
+      lists.add(stations);
+    }
+
+    ElementProxy proxy = lists.get(0).getProxies().iterator().next();
+    assertEquals(20, proxy.getOwners().size());
+
+    int seen = 0;
+    for(Object ignored:proxy.getOwners()) {
+      seen += 1;
+    }
+    assertEquals(20, seen);
+
+    for(int i=0; i<19; ++i) {
+      ElementList<Station> stations = lists.get(i);
+      stations.remove(station);
+      assertEquals(20 - i, proxy.getOwners().size());
+      stations.remove(station);
+      assertEquals(19 - i, proxy.getOwners().size());
+
+      // Gone through in place whether inline, in the array or in the map
+      Set<Object> owners = new HashSet<>();
+      for(Object owner:proxy.getOwners()) {
+        assertTrue(owners.add(owner));
+      }
+      assertEquals(19 - i, owners.size());
+    }
+
+    assertEquals(1, proxy.getOwners().size());
+    assertTrue(proxy.getOwners().contains(proxy.getOwners().iterator().next()));
+  }
+
+  @Test
+  public void movesReference() {
+    Unit before = new Unit(70601, "mm");
+    Unit after = new Unit(70602, "cm");
+    Parameter parameter = new Parameter(70600, "Rainfall", before);
+    Station station = new Station(70610, "Jumla");
+    station.addParameter(parameter);
+
+    ElementList<Station> stations = new State().createList("stations", Station.class);
+    stations.add(station);
+    ElementProxy stationProxy = stations.getProxies().iterator().next();
+    ElementProxy parameterProxy = ((ElementListProxy) stationProxy.getValue(2)).getElements().iterator().next();
+    ElementProxy beforeProxy = (ElementProxy) parameterProxy.getValue(2);
+    assertEquals(Long.valueOf(70601), beforeProxy.getId());
+
+    // The new unit takes the place of the old one, which loses its owner
+    parameter.setUnit(after);
+    parameter.sync();
+    ElementProxy afterProxy = (ElementProxy) parameterProxy.getValue(2);
+    assertEquals(Long.valueOf(70602), afterProxy.getId());
+    assertTrue(afterProxy.getOwners().contains(parameterProxy));
+    assertFalse(beforeProxy.getOwners().contains(parameterProxy));
+  }
+}
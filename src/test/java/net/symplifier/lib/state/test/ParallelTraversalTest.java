@@ -0,0 +1,66 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The parallel walk of the graph finds the same proxies as the serial one,
+ * with many seeds as well as with the long lists split off as tasks of their
+ * own
+ */
+public class ParallelTraversalTest {
+
+  @Test
+  public void manySeeds() {
+    Unit percentage = new Unit(20000, "Percentage");
+    Parameter temperature = new Parameter(20000, "Temperature", new Unit(20001, "Celcius"));
+
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    for(int i=0; i<2000; ++i) {
+      Station station = new Station(20000 + i, "Station " + i);
+      station.addParameter(new Parameter(20001 + i, "Rainfall " + i, percentage));
+      station.addParameter(temperature);
+      stations.add(station);
+    }
+
+    assertEquals(state.getAll(), state.getAll(ForkJoinPool.commonPool()));
+  }
+
+  @Test
+  public void longLists() {
+    Unit unit = new Unit(23000, "mm");
+
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    // Well beyond the threshold of a task, so the lists are forked
+    for(int i=0; i<3; ++i) {
+      Station station = new Station(23000 + i, "Station " + i);
+      for(int j=0; j<3000; ++j) {
+        station.addParameter(new Parameter(23000 + i * 3000 + j, "Parameter " + j, unit));
+      }
+      stations.add(station);
+    }
+
+    Map<ElementType, Set<ElementProxy>> serial = state.getAll();
+    Map<ElementType, Set<ElementProxy>> parallel = state.getAll(ForkJoinPool.commonPool());
+    assertEquals(serial, parallel);
+
+    int parameters = 0;
+    for(Map.Entry<ElementType, Set<ElementProxy>> entry:parallel.entrySet()) {
+      if (entry.getKey().getName().equals("Parameter")) {
+        parameters = entry.getValue().size();
+      }
+    }
+    assertEquals(9000, parameters);
+  }
+}
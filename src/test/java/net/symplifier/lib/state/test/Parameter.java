@@ -39,7 +39,15 @@ public class Parameter implements State.Element {
     return name;
   }
 
+  public void setName(String name) {
+    this.name = name;
+  }
+
   public Unit getUnit() {
     return unit;
   }
+
+  public void setUnit(Unit unit) {
+    this.unit = unit;
+  }
 }
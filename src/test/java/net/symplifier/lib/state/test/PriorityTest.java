@@ -0,0 +1,200 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ChangePublisher;
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.ShardedSync;
+import net.symplifier.lib.state.State;
+import net.symplifier.lib.state.utils.StateJsoniser;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The Elements of the high priority types come ahead of the others in the
+ * snapshots and in the dispatch
+ */
+public class PriorityTest {
+
+  public static class Trend implements State.Element {
+    private final long id;
+    private long value;
+
+    public static void register(ElementType type) {
+      type.setPriority(ElementType.Priority.LOW);
+      type.registerLong("id");
+      type.registerLong("value");
+    }
+
+    public Trend(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(value);
+    }
+  }
+
+  public static class Alarm implements State.Element {
+    private final long id;
+    private long level;
+
+    public static void register(ElementType type) {
+      type.setPriority(ElementType.Priority.HIGH);
+      type.registerLong("id");
+      type.registerLong("level");
+    }
+
+    public Alarm(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(level);
+    }
+  }
+
+  public static class Level implements State.Element {
+    private final long id;
+    private long value;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerLong("value");
+    }
+
+    public Level(long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      proxy.update(id);
+      proxy.update(value);
+    }
+  }
+
+  @Test
+  public void snapshotsHighPriorityFirst() {
+    State state = new State();
+    ElementList<Trend> trends = state.createList("trends", Trend.class);
+    ElementList<Alarm> alarms = state.createList("alarms", Alarm.class);
+    trends.add(new Trend(98000));
+    alarms.add(new Alarm(98001));
+
+    List<String> lists = new ArrayList<>();
+    for(String name:state.getLists()) {
+      lists.add(name);
+    }
+    assertEquals(Arrays.asList("alarms", "trends"), lists);
+
+    List<ElementType> types = new ArrayList<>(state.getAll().keySet());
+    assertEquals(alarms.getType(), types.get(0));
+    assertEquals(trends.getType(), types.get(1));
+
+    JSONObject json = new StateJsoniser(state).toJSON();
+    JSONArray oracle = json.getJSONArray("oracle");
+    assertEquals(alarms.getType().getName(), oracle.getJSONObject(0).getString("type"));
+    assertEquals("alarms", json.getJSONArray("state").getJSONObject(0).getString("name"));
+
+    // Fixed once registered
+    try {
+      trends.getType().setPriority(ElementType.Priority.HIGH);
+      fail("The priority was changed after the registration");
+    } catch(IllegalStateException e) {
+      assertEquals(ElementType.Priority.LOW, trends.getType().getPriority());
+    }
+  }
+
+  @Test
+  public void dispatchesHighPriorityFirst() throws InterruptedException {
+    State state = new State();
+    ElementList<Trend> trends = state.createList("trends", Trend.class);
+    ElementList<Alarm> alarms = state.createList("alarms", Alarm.class);
+    ElementList<Level> levels = state.createList("levels", Level.class);
+    Trend trend = new Trend(98100);
+    Alarm alarm = new Alarm(98101);
+    Level level = new Level(98102);
+    trends.add(trend);
+    alarms.add(alarm);
+    levels.add(level);
+
+    // Queued on a single shard before it is started, the low priority
+    // trend waits for the normal level as well
+    List<Long> synced = Collections.synchronizedList(new ArrayList<>());
+    state.addEventListener(proxy -> synced.add(proxy.getId()));
+    ShardedSync shards = new ShardedSync(1);
+    trend.value = 1;
+    shards.sync(trend);
+    level.value = 1;
+    shards.sync(level);
+    alarm.level = 1;
+    shards.sync(alarm);
+    shards.start();
+    shards.shutdown();
+
+    assertEquals(Arrays.asList(98101L, 98102L, 98100L), synced);
+
+    // Held back by a subscriber that hasn't asked for anything yet, the
+    // trend changes first
+    List<Long> published = new ArrayList<>();
+    ChangePublisher.Subscription[] subscription = new ChangePublisher.Subscription[1];
+    state.publish().subscribe(new ChangePublisher.Subscriber() {
+      @Override
+      public void onSubscribe(ChangePublisher.Subscription s) {
+        subscription[0] = s;
+      }
+
+      @Override
+      public void onNext(ElementProxy proxy) {
+        published.add(proxy.getId());
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        fail(throwable.toString());
+      }
+
+      @Override
+      public void onComplete() {
+      }
+    });
+
+    trend.value = 2;
+    trend.sync();
+    alarm.level = 2;
+    alarm.sync();
+
+    subscription[0].request(1);
+    assertEquals(Collections.singletonList(98101L), published);
+    subscription[0].request(1);
+    assertEquals(Arrays.asList(98101L, 98100L), published);
+  }
+}
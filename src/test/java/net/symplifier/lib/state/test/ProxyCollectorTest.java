@@ -0,0 +1,145 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementListProxy;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.ProxyCollector;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The collector lets go of the proxies of the elements removed from the
+ * State and keeps everything still reachable
+ */
+public class ProxyCollectorTest {
+
+  @Test
+  public void releasesUnreachable() {
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+
+    Unit unit = new Unit(70000, "m3");
+    Station kept = station(70100, unit);
+    Station removed = station(70200, unit);
+    stations.add(kept);
+    stations.add(removed);
+
+    ElementProxy keptProxy = stations.getProxies().iterator().next();
+    ElementProxy unitProxy = (ElementProxy) parameter(keptProxy).getValue(2);
+
+    ElementProxy removedProxy = null;
+    for(ElementProxy proxy:stations.getProxies()) {
+      removedProxy = proxy;
+    }
+    stations.remove(removed);
+    long bytes = stations.getType().getRetainedBytes();
+
+    ProxyCollector collector = new ProxyCollector(10, 1, TimeUnit.MILLISECONDS);
+    // Found unreachable by the first cycle, released by the second
+    collector.collect();
+    collector.collect();
+    assertTrue(collector.getReleased() >= 10);
+    assertTrue(stations.getType().getRetainedBytes() < bytes);
+
+    // The reachable ones are left alone
+    assertSame(keptProxy, stations.getProxies().iterator().next());
+    assertSame(unitProxy, parameter(keptProxy).getValue(2));
+
+    // The ordinals of the released proxies are reused after another cycle
+    collector.collect();
+    int parameterBound = parameter(keptProxy).getType().getOrdinalBound();
+
+    // Coming back gets a new proxy
+    stations.add(removed);
+    ElementProxy readded = null;
+    for(ElementProxy proxy:stations.getProxies()) {
+      readded = proxy;
+    }
+    assertNotNull(readded);
+    assertNotSame(removedProxy, readded);
+    assertEquals(removedProxy.getId(), readded.getId());
+    assertSame(unitProxy, parameter(readded).getValue(2));
+    assertEquals(parameterBound, parameter(readded).getType().getOrdinalBound());
+  }
+
+  @Test
+  public void keepsTraversalResultsApart() {
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+
+    Unit unit = new Unit(70300, "m2");
+    Station removed = station(70310, unit);
+    stations.add(station(70320, unit));
+    stations.add(removed);
+
+    Map<ElementType, Set<ElementProxy>> all = state.getAll();
+    Set<ElementProxy> found = all.get(stations.getType());
+    ElementProxy removedProxy = null;
+    for(ElementProxy proxy:stations.getProxies()) {
+      removedProxy = proxy;
+    }
+    assertTrue(found.contains(removedProxy));
+
+    // Released and its ordinal made available at the end of the second cycle
+    stations.remove(removed);
+    ProxyCollector collector = new ProxyCollector(10, 1, TimeUnit.MILLISECONDS);
+    collector.collect();
+    collector.collect();
+    int bound = stations.getType().getOrdinalBound();
+
+    // The new station takes the ordinal over, but it isn't in the old result
+    stations.add(station(70330, unit));
+    ElementProxy added = null;
+    for(ElementProxy proxy:stations.getProxies()) {
+      added = proxy;
+    }
+    assertEquals(bound, stations.getType().getOrdinalBound());
+    assertFalse(found.contains(added));
+    assertTrue(found.contains(removedProxy));
+    assertTrue(state.getAll().get(stations.getType()).contains(added));
+  }
+
+  @Test
+  public void releasesInSlices() {
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+
+    Unit unit = new Unit(70400, "m/s");
+    Station removed = station(70410, unit);
+    stations.add(removed);
+    stations.remove(removed);
+
+    // Every phase moves on a few proxies at a time with no time to spare
+    ProxyCollector collector = new ProxyCollector(10, 1, TimeUnit.MILLISECONDS);
+    int cycles = 0;
+    int slices = 0;
+    while(cycles < 2) {
+      slices += 1;
+      if (collector.step(0)) {
+        cycles += 1;
+      }
+    }
+    assertTrue(slices > 2);
+    assertTrue(collector.getReleased() >= 10);
+  }
+
+  // The proxy of the first parameter of the given station
+  private static ElementProxy parameter(ElementProxy station) {
+    return ((ElementListProxy) station.getValue(2)).getElements().iterator().next();
+  }
+
+  private static Station station(long id, Unit unit) {
+    Station station = new Station(id, "Station " + id);
+    for(int i=1; i<10; ++i) {
+      station.addParameter(new Parameter(id + i, "Parameter " + i, unit));
+    }
+    return station;
+  }
+}
@@ -0,0 +1,56 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.State;
+import net.symplifier.lib.state.utils.StateJsoniser;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * The encoded record of a proxy is shared until the proxy changes
+ */
+public class RecordCacheTest implements State.EventListener {
+  private ElementProxy changed;
+
+  @Test
+  public void sharedUntilChanged() throws Exception {
+    State state = new State();
+    state.addEventListener(this);
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    Station station = new Station(301, "Biratnagar");
+    stations.add(station);
+
+    station.setName("Dharan");
+    station.sync();
+    assertNotNull(changed);
+
+    ByteBuffer first = changed.getEncoded(StateJsoniser.RECORD_ENCODER);
+    ByteBuffer second = changed.getEncoded(StateJsoniser.RECORD_ENCODER);
+    assertSame(first.array(), second.array());
+
+    station.setName("Itahari");
+    station.sync();
+    ByteBuffer third = changed.getEncoded(StateJsoniser.RECORD_ENCODER);
+    assertNotSame(first.array(), third.array());
+    assertTrue(new String(third.array(), StandardCharsets.UTF_8).contains("Itahari"));
+
+    // The streamed document is the same as the JSON object
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StateJsoniser jsoniser = new StateJsoniser(state);
+    jsoniser.write(out);
+    JSONObject streamed = new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals(jsoniser.toJSON().toString(), streamed.toString());
+  }
+
+  @Override
+  public void onChangedEvent(ElementProxy proxy) {
+    changed = proxy;
+  }
+}
@@ -0,0 +1,168 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.RecordEncoder;
+import net.symplifier.lib.state.RecordWriter;
+import net.symplifier.lib.state.State;
+import net.symplifier.lib.state.utils.StateJsoniser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * A change is encoded once and the same bytes reach every client
+ */
+public class RecordFanOutTest {
+
+  /**
+   * Collects everything written to it
+   */
+  private static class Collector implements GatheringByteChannel {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      long written = 0;
+      for(int i=offset; i<offset + length; ++i) {
+        written += write(srcs[i]);
+      }
+      return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      int n = src.remaining();
+      byte[] bytes = new byte[n];
+      src.get(bytes);
+      out.write(bytes, 0, n);
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  @Test
+  public void framesDontInterleave() throws Exception {
+    Collector channel = new Collector();
+    RecordWriter writer = new RecordWriter(channel, ByteBuffer.wrap("<".getBytes(StandardCharsets.UTF_8)),
+            ByteBuffer.wrap(">".getBytes(StandardCharsets.UTF_8)), 100000);
+
+    Thread[] producers = new Thread[4];
+    for(int p=0; p<producers.length; ++p) {
+      final int producer = p;
+      producers[p] = new Thread(() -> {
+        for(int i=0; i<2000; ++i) {
+          writer.onRecord(null, ByteBuffer.wrap((producer + ":" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+      });
+      producers[p].start();
+    }
+    for(Thread producer:producers) {
+      producer.join();
+    }
+    assertTrue(writer.flush());
+
+    String text = new String(channel.out.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(text.endsWith(">"));
+    String[] frames = text.split(">");
+    assertEquals(8000, frames.length);
+    for(String frame:frames) {
+      assertTrue(frame, frame.matches("<\\d:\\d+"));
+    }
+    assertEquals(0, writer.getDropped());
+  }
+
+  @Test
+  public void dropsBeyondCapacity() throws Exception {
+    Collector channel = new Collector();
+    RecordWriter writer = new RecordWriter(channel, null, null, 2);
+    for(int i=0; i<3; ++i) {
+      writer.onRecord(null, ByteBuffer.wrap(Integer.toString(i).getBytes(StandardCharsets.UTF_8)));
+    }
+    assertEquals(1, writer.getDropped());
+
+    assertTrue(writer.flush());
+    assertEquals("01", new String(channel.out.toByteArray(), StandardCharsets.UTF_8));
+
+    // There is room again once flushed
+    writer.onRecord(null, ByteBuffer.wrap("3".getBytes(StandardCharsets.UTF_8)));
+    assertTrue(writer.flush());
+    assertEquals("013", new String(channel.out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void encodedOnce() throws Exception {
+    final AtomicInteger encodings = new AtomicInteger();
+    RecordEncoder encoder = proxy -> {
+      encodings.incrementAndGet();
+      return StateJsoniser.RECORD_ENCODER.encode(proxy);
+    };
+
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    Station station = new Station(501, "Janakpur");
+    stations.add(station);
+
+    final List<ByteBuffer> received = new ArrayList<>();
+    state.addRecordListener(encoder, (proxy, record) -> received.add(record));
+
+    ByteBuffer prefix = ByteBuffer.wrap("data: ".getBytes(StandardCharsets.UTF_8));
+    ByteBuffer suffix = ByteBuffer.wrap("\n\n".getBytes(StandardCharsets.UTF_8));
+    List<Pipe> pipes = new ArrayList<>();
+    List<RecordWriter> writers = new ArrayList<>();
+    for(int i=0; i<3; ++i) {
+      Pipe pipe = Pipe.open();
+      RecordWriter writer = new RecordWriter(pipe.sink(), prefix, suffix);
+      state.addRecordListener(encoder, writer);
+      pipes.add(pipe);
+      writers.add(writer);
+    }
+
+    station.setName("Birgunj");
+    station.sync();
+
+    assertEquals(1, encodings.get());
+    assertEquals(1, received.size());
+
+    for(int i=0; i<pipes.size(); ++i) {
+      assertTrue(writers.get(i).flush());
+      assertFalse(writers.get(i).hasPending());
+
+      // Everything has been written already, a single read gets it all
+      ByteBuffer in = ByteBuffer.allocate(1024);
+      pipes.get(i).source().read(in);
+      String text = new String(in.array(), 0, in.position(), StandardCharsets.UTF_8);
+      assertTrue(text.startsWith("data: ["));
+      assertTrue(text.contains("Birgunj"));
+      assertTrue(text.endsWith("\n\n"));
+    }
+
+    // Another change is encoded once again
+    station.setName("Hetauda");
+    station.sync();
+    assertEquals(2, encodings.get());
+    assertNotSame(received.get(0).array(), received.get(1).array());
+  }
+}
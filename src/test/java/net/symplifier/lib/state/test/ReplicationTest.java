@@ -0,0 +1,142 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.State;
+import net.symplifier.lib.state.StateFollower;
+import net.symplifier.lib.state.StateReplicator;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a primary and a follower in this process, connected over the loopback
+ * interface. The two States share the proxies since the ElementTypes are
+ * the same, the seed lists of the follower are its own and follow the ones
+ * of the primary.
+ */
+public class ReplicationTest {
+
+  @Test
+  public void replicate() throws Exception {
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    Unit celcius = new Unit(11, "Celcius");
+    Station station = new Station(101, "Kathmandu");
+    station.addParameter(new Parameter(21, "Temperature", celcius));
+    station.addParameter(new Parameter(22, "Dew Point", celcius));
+    stations.add(station);
+
+    try(StateReplicator replicator = new StateReplicator(state, 0)) {
+      replicator.start();
+
+      // The list is read on the thread of the follower as it changes
+      State local = new State();
+      ElementList<Station> list = local.createList("stations", Station.class);
+      AtomicReference<List<Long>> following = new AtomicReference<>(Collections.emptyList());
+      local.addEventListener(new State.EventListener() {
+        @Override
+        public void onChangedEvent(ElementProxy proxy) {
+        }
+
+        @Override
+        public void onListChangedEvent(String name) {
+          following.set(ids(list));
+        }
+      });
+      try(StateFollower follower = new StateFollower(local,
+              new InetSocketAddress(InetAddress.getLoopbackAddress(), replicator.getPort()))) {
+        follower.start();
+        assertTrue(follower.awaitSynced(10000));
+        assertEquals(Collections.singletonList(101L), following.get());
+
+        // The changes of the seed list go out position by position
+        stations.add(new Station(102, "Pokhara"));
+        awaitIds(following, 101L, 102L);
+        stations.add(0, new Station(103, "Dharan"));
+        awaitIds(following, 103L, 101L, 102L);
+        stations.remove(1);
+        awaitIds(following, 103L, 102L);
+        stations.set(1, new Station(104, "Butwal"));
+        awaitIds(following, 103L, 104L);
+
+        // The records keep flowing in between
+        station.setName("Lalitpur");
+        station.sync();
+        stations.add(station);
+        awaitIds(following, 103L, 104L, 101L);
+
+        stations.clear();
+        awaitIds(following);
+      }
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void dropsSlowFollower() throws Exception {
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    Station station = new Station(105, "Biratnagar");
+    stations.add(station);
+
+    char[] padding = new char[1024];
+    Arrays.fill(padding, 'x');
+    String name = new String(padding);
+
+    InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    try(StateReplicator replicator = new StateReplicator(state, address, 16);
+        Socket socket = new Socket()) {
+      replicator.start();
+      socket.setReceiveBufferSize(4096);
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), replicator.getPort()));
+
+      // The follower never reads, the syncs go on regardless
+      for(int i=0; i<100000; ++i) {
+        station.setName(name + i);
+        station.sync();
+      }
+
+      // Until the primary lets it go
+      socket.setSoTimeout(10000);
+      InputStream in = socket.getInputStream();
+      byte[] buffer = new byte[65536];
+      try {
+        while(in.read(buffer) >= 0) {
+          // Whatever was sent before the follower was dropped
+        }
+      } catch(SocketTimeoutException e) {
+        fail("The slow follower was not dropped");
+      } catch(IOException e) {
+        // Reset by the primary
+      }
+    }
+  }
+
+  private static List<Long> ids(ElementList<Station> list) {
+    List<Long> ids = new ArrayList<>();
+    for(ElementProxy proxy:list.getProxies()) {
+      ids.add(proxy.getId());
+    }
+    return ids;
+  }
+
+  private static void awaitIds(AtomicReference<List<Long>> ids, Long... expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while(!ids.get().equals(Arrays.asList(expected)) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(Arrays.asList(expected), ids.get());
+  }
+}
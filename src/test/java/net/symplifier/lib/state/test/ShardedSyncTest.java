@@ -0,0 +1,124 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.ShardedSync;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Syncs the stations of a State from several producer threads through the
+ * shards and checks that every change reaches the listener
+ */
+public class ShardedSyncTest implements State.EventListener {
+  private final AtomicInteger events = new AtomicInteger();
+
+  /* Holds up the first update of a Slow element until released */
+  private static final CountDownLatch ENTERED = new CountDownLatch(1);
+  private static final CountDownLatch RELEASED = new CountDownLatch(1);
+
+  public static class Slow implements State.Element {
+    private final long id;
+    private final String name;
+
+    public static void register(ElementType type) {
+      type.registerLong("id");
+      type.registerString("name");
+    }
+
+    public Slow(long id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public void updateProxy(ElementProxy proxy) {
+      ENTERED.countDown();
+      try {
+        RELEASED.await();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      proxy.update(id);
+      proxy.update(name);
+    }
+  }
+
+  @Test
+  public void syncAcrossShards() throws InterruptedException {
+    State state = new State();
+    state.addEventListener(this);
+    ElementList<Station> stations = state.createList("stations", Station.class);
+
+    final Station[] all = new Station[64];
+    for(int i=0; i<all.length; ++i) {
+      all[i] = new Station(1000 + i, "Station " + i);
+      stations.add(all[i]);
+    }
+
+    final ShardedSync shards = new ShardedSync(4);
+    shards.start();
+
+    Thread[] producers = new Thread[4];
+    for(int p=0; p<producers.length; ++p) {
+      final int offset = p;
+      producers[p] = new Thread(() -> {
+        for(int i=offset; i<all.length; i+=producers.length) {
+          all[i].setName("Renamed " + i);
+          shards.sync(all[i]);
+        }
+      });
+      producers[p].start();
+    }
+
+    for(Thread producer:producers) {
+      producer.join();
+    }
+    shards.shutdown();
+
+    assertEquals(all.length, events.get());
+  }
+
+  @Test
+  public void racingOwnerWaitsForPopulated() throws InterruptedException {
+    final Slow slow = new Slow(26000, "Slow");
+    final ElementList<Slow> first = new State().createList("slow", Slow.class);
+    final ElementList<Slow> second = new State().createList("slow", Slow.class);
+
+    Thread creator = new Thread(() -> first.add(slow));
+    creator.start();
+    assertTrue(ENTERED.await(5, TimeUnit.SECONDS));
+
+    // The proxy is published but not populated yet, the other owner waits
+    final Object[] seen = new Object[1];
+    Thread racer = new Thread(() -> {
+      second.add(slow);
+      seen[0] = second.getProxies().iterator().next().getValue(1);
+    });
+    racer.start();
+    racer.join(200);
+    assertTrue(racer.isAlive());
+
+    RELEASED.countDown();
+    creator.join();
+    racer.join();
+    assertEquals("Slow", seen[0]);
+  }
+
+  @Override
+  public void onChangedEvent(ElementProxy proxy) {
+    events.incrementAndGet();
+  }
+}
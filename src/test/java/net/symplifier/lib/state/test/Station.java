@@ -15,6 +15,7 @@ public class Station implements State.Element {
   private long id;
   private String name;
   private List<Parameter> parameters = new ArrayList<>();
+  private long version;
 
   public static void register(ElementType type) {
     type.registerLong("id");
@@ -32,6 +33,11 @@ public class Station implements State.Element {
     return id;
   }
 
+  @Override
+  public long getVersion() {
+    return version;
+  }
+
   @Override
   public void updateProxy(ElementProxy proxy) {
     proxy.update(id);
@@ -44,12 +50,28 @@ public class Station implements State.Element {
     return name;
   }
 
+  public void setName(String name) {
+    this.name = name;
+    version += 1;
+  }
+
+  // Changes the name without moving to a new version
+  void updateNameSilently(String name) {
+    this.name = name;
+  }
+
+  public List<Parameter> getParameters() {
+    return parameters;
+  }
+
   public void addParameter(Parameter parameter) {
     parameters.add(parameter);
+    version += 1;
   }
 
   public void removeParameter(Parameter parameter) {
     parameters.remove(parameter);
+    version += 1;
   }
 
 }
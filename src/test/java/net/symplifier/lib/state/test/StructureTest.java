@@ -0,0 +1,61 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import net.symplifier.lib.state.utils.StateJsoniser;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * The structure of a type is encoded once, and the outputs can't change it
+ */
+public class StructureTest {
+
+  @Test
+  public void encodedOnce() throws Exception {
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    stations.add(new Station(27000, "Dhulikhel"));
+    ElementType type = stations.getType();
+
+    assertSame(type.getStructureJson(), type.getStructureJson());
+    JSONArray structure = new JSONArray(type.getStructureJson());
+    assertEquals(type.getFieldCount(), structure.length());
+    for(int i=0; i<type.getFieldCount(); ++i) {
+      JSONObject field = structure.getJSONObject(i);
+      assertEquals(type.getValueType(i).getName(), field.getString(type.getFieldName(i)));
+    }
+
+    // Changing the output doesn't change the next one
+    StateJsoniser jsoniser = new StateJsoniser(state);
+    JSONObject json = jsoniser.toJSON();
+    json.getJSONArray("oracle").getJSONObject(0).getJSONArray("structure").put("changed");
+    JSONArray again = jsoniser.toJSON().getJSONArray("oracle").getJSONObject(0).getJSONArray("structure");
+    assertEquals(structure.toString(), again.toString());
+
+    // The streamed document has the same structure
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    jsoniser.write(out);
+    JSONObject written = new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals(structure.toString(),
+            written.getJSONArray("oracle").getJSONObject(0).getJSONArray("structure").toString());
+  }
+
+  @Test
+  public void escapesNames() {
+    ElementType type = State.defineElementType("StructureQuoted", t -> {
+      t.registerLong("id");
+      t.registerString("say \"hi\"\\");
+    });
+
+    JSONArray structure = new JSONArray(type.getStructureJson());
+    assertEquals("String", structure.getJSONObject(1).getString("say \"hi\"\\"));
+  }
+}
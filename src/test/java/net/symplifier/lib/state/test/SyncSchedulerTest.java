@@ -0,0 +1,73 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.State;
+import net.symplifier.lib.state.SyncScheduler;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A change on an element reachable from the State is picked up by the
+ * scheduler without any explicit sync
+ */
+public class SyncSchedulerTest {
+
+  @Test
+  public void picksUpChanges() throws InterruptedException {
+    State state = new State();
+    final CountDownLatch changed = new CountDownLatch(1);
+    state.addEventListener(proxy -> changed.countDown());
+
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    Station station = new Station(401, "Janakpur");
+    stations.add(station);
+
+    SyncScheduler scheduler = new SyncScheduler(state, 1, 20, TimeUnit.MILLISECONDS);
+    scheduler.start();
+    try {
+      station.setName("Birgunj");
+      assertTrue(changed.await(5, TimeUnit.SECONDS));
+    } finally {
+      scheduler.stop();
+    }
+  }
+
+  @Test
+  public void adaptsIntervals() throws InterruptedException {
+    State state = new State();
+    ElementList<Station> stations = state.createList("stations", Station.class);
+    Station quiet = new Station(402, "Dhankuta");
+    Station hot = new Station(403, "Hetauda");
+    stations.add(quiet);
+    stations.add(hot);
+
+    Iterator<ElementProxy> proxies = stations.getProxies().iterator();
+    ElementProxy quietProxy = proxies.next();
+    ElementProxy hotProxy = proxies.next();
+
+    SyncScheduler scheduler = new SyncScheduler(state, 1, 64, TimeUnit.MILLISECONDS);
+    scheduler.start();
+    try {
+      // The hot one changes all the time, the quiet one never does
+      long deadline = System.currentTimeMillis() + 10000;
+      int i = 0;
+      while(scheduler.getInterval(quietProxy) < 64 && System.currentTimeMillis() < deadline) {
+        hot.setName("Hetauda " + (i++));
+        Thread.sleep(1);
+      }
+
+      // Halved on every change, doubled up to the maximum otherwise
+      assertEquals(64, scheduler.getInterval(quietProxy));
+      assertTrue(scheduler.getInterval(hotProxy) < 64);
+    } finally {
+      scheduler.stop();
+    }
+  }
+}
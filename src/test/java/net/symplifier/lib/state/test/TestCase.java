@@ -6,6 +6,8 @@ import net.symplifier.lib.state.State;
 import net.symplifier.lib.state.utils.StateJsoniser;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+
 /**
  * Created by ranjan on 11/16/15.
  */
@@ -36,6 +38,26 @@ public class TestCase implements State.EventListener {
     System.out.println(jsoniser.toJSON().toString(2));
   }
 
+  @Test
+  public void sameVersionSkipsSync() {
+    State state = new State();
+    final int[] events = new int[1];
+    state.addEventListener(proxy -> events[0] += 1);
+    ElementList<Station> stations = state.createList("stations", Station.class);
+
+    Station station = new Station(3, "Butwal");
+    stations.add(station);
+
+    // The field changed behind the version, so the sync must not notice
+    station.updateNameSilently("Bhairahawa");
+    station.sync();
+    assertEquals(0, events[0]);
+
+    station.setName("Bhairahawa");
+    station.sync();
+    assertEquals(1, events[0]);
+  }
+
   @Override
   public void onChangedEvent(ElementProxy proxy) {
     System.out.println("EVENT:CHANGED:" + proxy.toString());
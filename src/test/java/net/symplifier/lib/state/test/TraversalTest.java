@@ -0,0 +1,59 @@
+package net.symplifier.lib.state.test;
+
+import net.symplifier.lib.state.DynamicFeed;
+import net.symplifier.lib.state.ElementList;
+import net.symplifier.lib.state.ElementProxy;
+import net.symplifier.lib.state.ElementType;
+import net.symplifier.lib.state.State;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * A long chain of references is walked without using the thread stack for
+ * every level
+ */
+public class TraversalTest {
+
+  private static final long FIRST_ID = 3_000_000;
+  private static final int LENGTH = 200_000;
+
+  @Test
+  public void walksLongChain() {
+    ElementType link = State.defineElementType("TraversalLink", type -> {
+      type.registerLong("id");
+      type.registerReference("next", type);
+    });
+
+    // From the tail, so that every link refers to one already pushed
+    DynamicFeed feed = new DynamicFeed(link);
+    for(long id=FIRST_ID + LENGTH - 1; id>=FIRST_ID; --id) {
+      feed.begin(id)
+              .set(0, id)
+              .setReference(1, id == FIRST_ID + LENGTH - 1 ? null : id + 1)
+              .commit();
+    }
+
+    State state = new State();
+    ElementList<State.Element> chain = state.createList("chain", link);
+    chain.addById(FIRST_ID);
+
+    Map<ElementType, Set<ElementProxy>> all = state.getAll();
+    assertEquals(LENGTH, all.get(link).size());
+    assertEquals(all, state.getAll(ForkJoinPool.commonPool()));
+
+    // The last link is the end of the chain
+    ElementProxy last = null;
+    for(ElementProxy proxy:all.get(link)) {
+      if (proxy.getValue(1) == null) {
+        last = proxy;
+      }
+    }
+    assertNotNull(last);
+    assertEquals(FIRST_ID + LENGTH - 1, last.getValue(0));
+  }
+}